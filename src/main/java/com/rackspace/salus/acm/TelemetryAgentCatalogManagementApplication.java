@@ -25,6 +25,7 @@ import com.rackspace.salus.common.web.EnableRoleBasedJsonViews;
 import com.rackspace.salus.telemetry.web.EnableTenantVerification;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 
 @SpringBootApplication
@@ -33,6 +34,7 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 @EnableRoleBasedJsonViews
 @EnableTenantVerification
 @AutoConfigureSalusAppMetrics
+@EnableScheduling
 public class TelemetryAgentCatalogManagementApplication {
 
   public static void main(String[] args) {
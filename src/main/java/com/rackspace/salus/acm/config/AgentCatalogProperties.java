@@ -0,0 +1,232 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.config;
+
+import java.time.Duration;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties("salus.agent-catalog")
+@Component
+@Data
+@Validated
+public class AgentCatalogProperties {
+
+  /**
+   * When enabled, resource labels are matched against an in-memory, per-tenant index of
+   * agent install label selectors rather than querying the database on every resource event.
+   */
+  boolean labelIndexEnabled = true;
+
+  /**
+   * How long a tenant's indexed installs are trusted before re-checking the tenant's install
+   * fingerprint in the database, which is how changes made by other instances get picked up.
+   */
+  @NotNull
+  Duration labelIndexRevalidateAfter = Duration.ofSeconds(5);
+
+  /**
+   * The maximum number of tenants held by the label index. The least recently used tenant is
+   * dropped beyond that and re-loaded on its next resource event.
+   */
+  @Min(1)
+  int labelIndexMaxTenants = 10000;
+
+  /**
+   * The number of threads that handle the resource events of each consumed batch. Events of the
+   * same tenant resource are always handled sequentially and in order.
+   */
+  @Min(1)
+  int resourceEventWorkers = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The maximum number of agent install change events that are sent without yet having been
+   * acknowledged by the broker.
+   */
+  @Min(1)
+  int eventSendWindow = 1000;
+
+  /**
+   * How often the outbox of agent install change events is checked for events to publish.
+   */
+  @NotNull
+  Duration outboxRelayInterval = Duration.ofSeconds(1);
+
+  /**
+   * The maximum number of outbox events that are published and removed per relay batch.
+   */
+  @Min(1)
+  int outboxRelayBatchSize = 500;
+
+  /**
+   * How long an instance holds the relay of outbox events once taken, unless renewed by its
+   * next batch. Must be longer than the publishing of a batch takes.
+   */
+  @NotNull
+  Duration outboxRelayLease = Duration.ofMinutes(1);
+
+  /**
+   * The maximum number of distinct agent release versions retained in parsed form.
+   */
+  @Min(1)
+  int versionCacheSize = 10000;
+
+  /**
+   * The number of agent release cache entries held on heap, per cache.
+   */
+  @Min(1)
+  long releaseCacheHeapEntries = 1000;
+
+  /**
+   * The size in megabytes of the off-heap tier of each agent release cache, which must be larger
+   * than the heap tier.
+   */
+  @Min(1)
+  long releaseCacheOffHeapMegabytes = 16;
+
+  /**
+   * How long agent releases are cached. Changes made through this instance evict the caches
+   * immediately, but changes made through other instances are only seen after this long.
+   */
+  @NotNull
+  Duration releaseCacheTtl = Duration.ofMinutes(5);
+
+  /**
+   * The number of bound agent install lookups cached on heap.
+   */
+  @Min(1)
+  long boundInstallCacheHeapEntries = 10000;
+
+  /**
+   * The size in megabytes of the off-heap tier of the bound agent install cache, which must be
+   * larger than the heap tier.
+   */
+  @Min(1)
+  long boundInstallCacheOffHeapMegabytes = 64;
+
+  /**
+   * How long bound agent install lookups are cached. Bindings changed by any instance are
+   * evicted as their change events are consumed, so this only bounds missed evictions, such as
+   * those of events sent while this instance was starting and not yet consuming.
+   */
+  @NotNull
+  Duration boundInstallCacheTtl = Duration.ofMinutes(10);
+
+  /**
+   * The number of resource lookups cached on heap.
+   */
+  @Min(1)
+  long resourceCacheHeapEntries = 10000;
+
+  /**
+   * The size in megabytes of the off-heap tier of the resource lookup cache, which must be
+   * larger than the heap tier.
+   */
+  @Min(1)
+  long resourceCacheOffHeapMegabytes = 64;
+
+  /**
+   * How long resource lookups are cached. Resources are evicted as the events of their label
+   * and envoy changes are consumed, so this only bounds changes whose events this instance
+   * doesn't consume.
+   */
+  @NotNull
+  Duration resourceCacheTtl = Duration.ofMinutes(5);
+
+  /**
+   * The maximum number of bindings, or bound resources of a tenant, deleted per transaction
+   * when deleting an install or all of a tenant's installs.
+   */
+  @Min(1)
+  int deleteChunkSize = 1000;
+
+  /**
+   * The number of threads that bind asynchronously created agent installs to resources.
+   */
+  @Min(1)
+  int installJobThreads = 2;
+
+  /**
+   * The number of asynchronously created agent installs that may wait to be bound by this
+   * instance. Beyond this, jobs remain pending until resumed by a later sweep.
+   */
+  @Min(0)
+  int installJobQueueCapacity = 100;
+
+  /**
+   * How often install jobs that are pending, or that were abandoned by a stopped instance, are
+   * checked for and resumed. Jobs are only resumed once pending for at least this long.
+   */
+  @NotNull
+  Duration installJobSweepInterval = Duration.ofMinutes(1);
+
+  /**
+   * How long a running install job may go without recording progress before it is considered
+   * abandoned and resumed. Must be longer than the binding of a chunk of resources takes.
+   */
+  @NotNull
+  Duration installJobStaleAfter = Duration.ofMinutes(10);
+
+  /**
+   * The number of times an install job is run before an abandoned job is failed rather than
+   * resumed.
+   */
+  @Min(1)
+  int installJobMaxAttempts = 3;
+
+  /**
+   * The maximum number of matching resources retrieved and bound at a time when binding a new
+   * agent install. Asynchronous install jobs bind each chunk in its own transaction and record
+   * their progress after each one.
+   */
+  @Min(1)
+  int bindingChunkSize = 1000;
+
+  /**
+   * How long the export of a tenant's installs and bindings may stream before the request is
+   * timed out, which also bounds how long the export holds its database transaction open.
+   * Other async requests keep the <code>spring.mvc.async.request-timeout</code>.
+   */
+  @NotNull
+  Duration exportTimeout = Duration.ofHours(1);
+
+  /**
+   * Where the resources matching the label selector of a new agent install are looked up.
+   */
+  @NotNull
+  ResourceSelection resourceSelection = ResourceSelection.LOCAL;
+
+  public enum ResourceSelection {
+    /**
+     * Query the resources table of the shared database
+     */
+    LOCAL,
+    /**
+     * Query resource management
+     */
+    REMOTE,
+    /**
+     * Match against an in-memory index of resource labels that is kept current by consuming
+     * resource events, querying the shared database until the index is bootstrapped
+     */
+    INDEX
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.config;
+
+import java.time.Duration;
+import javax.cache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.ExpiryPolicyBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.jsr107.Eh107Configuration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.cache.JCacheManagerCustomizer;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableCaching
+public class CacheConfig {
+
+  public static final String AGENT_RELEASES_BY_ID = "agentcatalog_releases";
+  public static final String AGENT_RELEASES_BY_TYPE = "agentcatalog_releases_by_type";
+  public static final String BOUND_AGENT_INSTALLS = "agentcatalog_bound_installs";
+  public static final String RESOURCES = "agentcatalog_resources";
+
+  private final AgentCatalogProperties properties;
+
+  @Autowired
+  public CacheConfig(AgentCatalogProperties properties) {
+    this.properties = properties;
+  }
+
+  @Bean
+  public JCacheManagerCustomizer agentReleaseCacheCustomizer() {
+    return cacheManager -> {
+      createCache(cacheManager, AGENT_RELEASES_BY_ID,
+          properties.getReleaseCacheHeapEntries(), properties.getReleaseCacheOffHeapMegabytes(),
+          properties.getReleaseCacheTtl());
+      createCache(cacheManager, AGENT_RELEASES_BY_TYPE,
+          properties.getReleaseCacheHeapEntries(), properties.getReleaseCacheOffHeapMegabytes(),
+          properties.getReleaseCacheTtl());
+    };
+  }
+
+  @Bean
+  public JCacheManagerCustomizer boundAgentInstallCacheCustomizer() {
+    return cacheManager -> createCache(cacheManager, BOUND_AGENT_INSTALLS,
+        properties.getBoundInstallCacheHeapEntries(),
+        properties.getBoundInstallCacheOffHeapMegabytes(),
+        properties.getBoundInstallCacheTtl());
+  }
+
+  @Bean
+  public JCacheManagerCustomizer resourceCacheCustomizer() {
+    return cacheManager -> createCache(cacheManager, RESOURCES,
+        properties.getResourceCacheHeapEntries(),
+        properties.getResourceCacheOffHeapMegabytes(),
+        properties.getResourceCacheTtl());
+  }
+
+  private static void createCache(CacheManager cacheManager, String cacheName,
+                                  long heapEntries, long offHeapMegabytes, Duration ttl) {
+    // the provider's cache manager is shared by application contexts of the same class loader,
+    // such as those cached by tests, so the cache may already be configured
+    if (cacheManager.getCache(cacheName) != null) {
+      return;
+    }
+
+    cacheManager.createCache(cacheName, Eh107Configuration.fromEhcacheCacheConfiguration(
+        CacheConfigurationBuilder.newCacheConfigurationBuilder(Object.class, Object.class,
+            ResourcePoolsBuilder.newResourcePoolsBuilder()
+                .heap(heapEntries, EntryUnit.ENTRIES)
+                .offheap(offHeapMegabytes, MemoryUnit.MB)
+        )
+            // bounds how long changes that weren't seen by this instance go unnoticed
+            .withExpiry(ExpiryPolicyBuilder.timeToLiveExpiration(ttl))
+    ));
+    // needed for the hit and miss metrics that are registered for each cache
+    cacheManager.enableStatistics(cacheName, true);
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.config;
+
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.HttpServerErrorException;
+
+/**
+ * Records the outcome of each request with the given circuit breaker. Connection failures,
+ * timeouts and server errors count as failures. While the circuit breaker is open, requests
+ * are rejected with a {@link CallNotPermittedException} without being sent.
+ */
+public class CircuitBreakerInterceptor implements ClientHttpRequestInterceptor {
+
+  private final CircuitBreaker circuitBreaker;
+
+  public CircuitBreakerInterceptor(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  @Override
+  public ClientHttpResponse intercept(HttpRequest request, byte[] body,
+                                      ClientHttpRequestExecution execution) throws IOException {
+    circuitBreaker.acquirePermission();
+
+    final long start = System.nanoTime();
+    final ClientHttpResponse response;
+    try {
+      response = execution.execute(request, body);
+    } catch (IOException | RuntimeException e) {
+      circuitBreaker.onError(System.nanoTime() - start, TimeUnit.NANOSECONDS, e);
+      throw e;
+    }
+
+    final long duration = System.nanoTime() - start;
+    final HttpStatus status = HttpStatus.resolve(response.getRawStatusCode());
+    if (status == null || status.is5xxServerError()) {
+      circuitBreaker.onError(duration, TimeUnit.NANOSECONDS, new HttpServerErrorException(
+          status != null ? status : HttpStatus.INTERNAL_SERVER_ERROR));
+    } else {
+      circuitBreaker.onSuccess(duration, TimeUnit.NANOSECONDS);
+    }
+    return response;
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.rackspace.salus.acm.config;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.kafka.ConcurrentKafkaListenerContainerFactoryConfigurer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+
+@Configuration
+public class KafkaConfig {
+
+  public static final String BATCH_LISTENER_CONTAINER_FACTORY = "batchListenerContainerFactory";
+
+  /**
+   * Creates the containers of listeners that consume all of the records of a poll at once.
+   * Other listeners keep the record at a time containers of the default factory.
+   */
+  @Bean(BATCH_LISTENER_CONTAINER_FACTORY)
+  public ConcurrentKafkaListenerContainerFactory<Object, Object> batchListenerContainerFactory(
+      ObjectProvider<ConcurrentKafkaListenerContainerFactoryConfigurer> configurer,
+      ObjectProvider<ConsumerFactory<Object, Object>> consumerFactory) {
+    final ConcurrentKafkaListenerContainerFactory<Object, Object> factory =
+        new ConcurrentKafkaListenerContainerFactory<>();
+    // absent when Kafka isn't auto-configured, such as by tests
+    configurer.ifAvailable(available ->
+        available.configure(factory, consumerFactory.getObject()));
+    factory.setBatchListener(true);
+    return factory;
+  }
+}
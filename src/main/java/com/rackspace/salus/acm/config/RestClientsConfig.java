@@ -17,16 +17,32 @@
 package com.rackspace.salus.acm.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.salus.acm.config.ServicesProperties.ClientProperties;
 import com.rackspace.salus.resource_management.web.client.ResourceApi;
 import com.rackspace.salus.resource_management.web.client.ResourceApiClient;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 
 @Configuration
 public class RestClientsConfig {
 
+  private static final String RESOURCE_MANAGEMENT = "resourceManagement";
+
   private final ServicesProperties servicesProperties;
 
   @Autowired
@@ -34,12 +50,72 @@ public class RestClientsConfig {
     this.servicesProperties = servicesProperties;
   }
 
+  /**
+   * Pools the connections to resource management and bounds each call by the configured
+   * timeouts, so a slow resource management instance can't hold request threads indefinitely.
+   */
+  @Bean(destroyMethod = "close")
+  public CloseableHttpClient resourceManagementHttpClient(MeterRegistry meterRegistry) {
+    final ClientProperties client = servicesProperties.getResourceManagementClient();
+
+    final PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(client.getMaxConnections());
+    connectionManager.setDefaultMaxPerRoute(client.getMaxConnectionsPerRoute());
+    new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, RESOURCE_MANAGEMENT)
+        .bindTo(meterRegistry);
+
+    final long keepAliveMillis = client.getKeepAlive().toMillis();
+    return HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout((int) client.getConnectTimeout().toMillis())
+            .setSocketTimeout((int) client.getReadTimeout().toMillis())
+            .setConnectionRequestTimeout((int) client.getPoolTimeout().toMillis())
+            .build())
+        .setKeepAliveStrategy((response, context) -> {
+          final long advertised = DefaultConnectionKeepAliveStrategy.INSTANCE
+              .getKeepAliveDuration(response, context);
+          return advertised > 0 ? Math.min(advertised, keepAliveMillis) : keepAliveMillis;
+        })
+        .evictExpiredConnections()
+        .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  @Bean
+  public CircuitBreaker resourceManagementCircuitBreaker(MeterRegistry meterRegistry) {
+    final ClientProperties client = servicesProperties.getResourceManagementClient();
+
+    final CircuitBreakerRegistry registry = CircuitBreakerRegistry.of(
+        CircuitBreakerConfig.custom()
+            .failureRateThreshold(client.getCircuitBreakerFailureRateThreshold())
+            .slidingWindowSize(client.getCircuitBreakerSlidingWindowSize())
+            .minimumNumberOfCalls(client.getCircuitBreakerSlidingWindowSize())
+            .waitDurationInOpenState(client.getCircuitBreakerOpenDuration())
+            .build()
+    );
+    TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(registry).bindTo(meterRegistry);
+
+    return registry.circuitBreaker(RESOURCE_MANAGEMENT);
+  }
+
+  /**
+   * The builder provided by Spring Boot already instruments the client's requests with the
+   * <code>http.client.requests</code> metric.
+   */
   @Bean
-  public ResourceApi resourceApi(ObjectMapper objectMapper, RestTemplateBuilder restTemplateBuilder) {
+  public ResourceApi resourceApi(ObjectMapper objectMapper, RestTemplateBuilder restTemplateBuilder,
+                                 CloseableHttpClient resourceManagementHttpClient,
+                                 CircuitBreaker resourceManagementCircuitBreaker) {
     return new ResourceApiClient(
         objectMapper,
         restTemplateBuilder
             .rootUri(servicesProperties.getResourceManagementUrl())
+            .requestFactory(() ->
+                new HttpComponentsClientHttpRequestFactory(resourceManagementHttpClient))
+            .additionalInterceptors(
+                new CircuitBreakerInterceptor(resourceManagementCircuitBreaker))
             .build()
     );
   }
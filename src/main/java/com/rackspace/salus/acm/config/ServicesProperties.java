@@ -16,7 +16,12 @@
 
 package com.rackspace.salus.acm.config;
 
+import java.time.Duration;
+import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.NotNull;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
@@ -29,4 +34,66 @@ import org.springframework.validation.annotation.Validated;
 public class ServicesProperties {
   @NotEmpty
   String resourceManagementUrl;
+
+  @Valid
+  @NotNull
+  ClientProperties resourceManagementClient = new ClientProperties();
+
+  @Data
+  public static class ClientProperties {
+
+    /**
+     * How long to wait for a connection to be established.
+     */
+    @NotNull
+    Duration connectTimeout = Duration.ofSeconds(2);
+
+    /**
+     * How long to wait for data on an established connection, which bounds how long a slow
+     * response can hold the calling thread.
+     */
+    @NotNull
+    Duration readTimeout = Duration.ofSeconds(10);
+
+    /**
+     * How long to wait for a pooled connection to become available.
+     */
+    @NotNull
+    Duration poolTimeout = Duration.ofSeconds(2);
+
+    @Min(1)
+    int maxConnections = 50;
+
+    /**
+     * The maximum number of pooled connections to each resource management host.
+     */
+    @Min(1)
+    int maxConnectionsPerRoute = 20;
+
+    /**
+     * How long an idle connection is kept alive when the server doesn't say otherwise.
+     */
+    @NotNull
+    Duration keepAlive = Duration.ofSeconds(30);
+
+    /**
+     * The percentage of failed calls, among the calls in the sliding window, at which the
+     * circuit breaker opens and further calls are rejected without being attempted.
+     */
+    @Min(1)
+    @Max(100)
+    float circuitBreakerFailureRateThreshold = 50;
+
+    /**
+     * The number of most recent calls evaluated by the circuit breaker.
+     */
+    @Min(1)
+    int circuitBreakerSlidingWindowSize = 20;
+
+    /**
+     * How long the circuit breaker stays open before allowing trial calls through.
+     */
+    @NotNull
+    Duration circuitBreakerOpenDuration = Duration.ofSeconds(30);
+  }
 }
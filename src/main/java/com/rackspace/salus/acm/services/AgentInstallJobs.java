@@ -0,0 +1,229 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
+import com.rackspace.salus.acm.web.model.AgentInstallJobDTO;
+import com.rackspace.salus.acm.web.model.AgentInstallJobStatus;
+import java.time.Duration;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tracks the progress of agent installs that are bound to resources in the background and
+ * runs them on a dedicated, bounded pool of threads.
+ * <p>
+ *   The jobs table is the durable queue of work: a job that is rejected because the pool's queue
+ *   is full, or that was left pending or running by an instance that stopped, is resumed by
+ *   {@link AgentInstallService#resumeInstallJobs()} on any instance. Jobs are claimed before
+ *   they run, so a job submitted more than once only runs once at a time.
+ * </p>
+ */
+@Component
+@Slf4j
+public class AgentInstallJobs {
+
+  private static final String INSERT_JOB =
+      "INSERT INTO agent_install_jobs (id, tenant_id, agent_install_id, status)"
+          + " VALUES (?, ?, ?, ?)";
+  private static final String UPDATE_CLAIMED =
+      "UPDATE agent_install_jobs SET status = ?, attempts = attempts + 1"
+          + " WHERE id = ? AND status = ?";
+  // updated_timestamp is set explicitly since MySQL leaves it alone when no value changes
+  private static final String UPDATE_PROGRESS =
+      "UPDATE agent_install_jobs"
+          + " SET resources_bound = resources_bound + ?, updated_timestamp = CURRENT_TIMESTAMP(3)"
+          + " WHERE id = ?";
+  private static final String UPDATE_STATUS =
+      "UPDATE agent_install_jobs SET status = ? WHERE id = ?";
+  private static final String UPDATE_FAILED =
+      "UPDATE agent_install_jobs SET status = ?, message = ? WHERE id = ?";
+  private static final String UPDATE_ABANDONED_FAILED =
+      "UPDATE agent_install_jobs SET status = ?, message = ?"
+          + " WHERE status = ? AND attempts >= ?"
+          + " AND updated_timestamp < CURRENT_TIMESTAMP(3) - INTERVAL ? SECOND";
+  // keeps updated_timestamp so that the released jobs are immediately found to be pending
+  private static final String UPDATE_ABANDONED_PENDING =
+      "UPDATE agent_install_jobs SET status = ?, updated_timestamp = updated_timestamp"
+          + " WHERE status = ?"
+          + " AND updated_timestamp < CURRENT_TIMESTAMP(3) - INTERVAL ? SECOND";
+  private static final String SELECT_PENDING =
+      "SELECT id, agent_install_id FROM agent_install_jobs"
+          + " WHERE status = ?"
+          + " AND updated_timestamp < CURRENT_TIMESTAMP(3) - INTERVAL ? SECOND"
+          + " ORDER BY updated_timestamp LIMIT ?";
+  private static final String SELECT_JOB =
+      "SELECT id, agent_install_id, status, resources_bound, message,"
+          + " created_timestamp, updated_timestamp"
+          + " FROM agent_install_jobs WHERE id = ? AND tenant_id = ?";
+
+  private static final int MAX_MESSAGE_LENGTH = 1024;
+
+  private static final RowMapper<AgentInstallJobDTO> JOB_ROW_MAPPER = (resultSet, rowNum) ->
+      new AgentInstallJobDTO()
+          .setId(UUID.fromString(resultSet.getString("id")))
+          .setAgentInstallId(UUID.fromString(resultSet.getString("agent_install_id")))
+          .setStatus(AgentInstallJobStatus.valueOf(resultSet.getString("status")))
+          .setResourcesBound(resultSet.getInt("resources_bound"))
+          .setMessage(resultSet.getString("message"))
+          .setCreatedTimestamp(DateTimeFormatter.ISO_INSTANT.format(
+              resultSet.getTimestamp("created_timestamp").toInstant()))
+          .setUpdatedTimestamp(DateTimeFormatter.ISO_INSTANT.format(
+              resultSet.getTimestamp("updated_timestamp").toInstant()));
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ThreadPoolTaskExecutor executor;
+  private final Set<UUID> queuedJobIds = ConcurrentHashMap.newKeySet();
+
+  @Autowired
+  public AgentInstallJobs(JdbcTemplate jdbcTemplate, AgentCatalogProperties properties) {
+    this.jdbcTemplate = jdbcTemplate;
+
+    // not exposed as a bean so that it doesn't displace the application's task executor
+    executor = new ThreadPoolTaskExecutor();
+    executor.setThreadNamePrefix("agent-install-job-");
+    executor.setCorePoolSize(properties.getInstallJobThreads());
+    executor.setMaxPoolSize(properties.getInstallJobThreads());
+    executor.setQueueCapacity(properties.getInstallJobQueueCapacity());
+    executor.setWaitForTasksToCompleteOnShutdown(true);
+    executor.setAwaitTerminationSeconds(30);
+    executor.initialize();
+  }
+
+  @PreDestroy
+  public void stop() {
+    executor.shutdown();
+  }
+
+  /**
+   * Records a new job for the given install. Should be called within the transaction that
+   * saves the install.
+   */
+  public AgentInstallJobDTO create(String tenantId, UUID agentInstallId) {
+    final UUID jobId = UUID.randomUUID();
+    jdbcTemplate.update(INSERT_JOB, jobId.toString(), tenantId, agentInstallId.toString(),
+        AgentInstallJobStatus.PENDING.name());
+    return new AgentInstallJobDTO()
+        .setId(jobId)
+        .setAgentInstallId(agentInstallId)
+        .setStatus(AgentInstallJobStatus.PENDING);
+  }
+
+  /**
+   * Queues the given job to run on the pool unless it's already queued by this instance.
+   * @return false if the pool's queue is full, leaving the job pending until it is resumed
+   */
+  public boolean submit(UUID jobId, Runnable job) {
+    if (!queuedJobIds.add(jobId)) {
+      return true;
+    }
+    try {
+      executor.execute(() -> {
+        queuedJobIds.remove(jobId);
+        job.run();
+      });
+      return true;
+    } catch (TaskRejectedException e) {
+      queuedJobIds.remove(jobId);
+      return false;
+    }
+  }
+
+  /**
+   * @return the number of jobs that can currently be submitted without being rejected
+   */
+  int remainingCapacity() {
+    return executor.getThreadPoolExecutor().getQueue().remainingCapacity();
+  }
+
+  /**
+   * Returns running jobs that haven't recorded progress within <code>staleAfter</code>, and so
+   * were presumably abandoned by an instance that stopped, to pending. Those that have already
+   * been attempted <code>maxAttempts</code> times are failed instead.
+   * @return the number of jobs returned to pending
+   */
+  int releaseAbandoned(Duration staleAfter, int maxAttempts) {
+    final int failed = jdbcTemplate.update(UPDATE_ABANDONED_FAILED,
+        AgentInstallJobStatus.FAILED.name(), "Abandoned after " + maxAttempts + " attempts",
+        AgentInstallJobStatus.RUNNING.name(), maxAttempts, staleAfter.getSeconds());
+    if (failed > 0) {
+      log.warn("Failed abandoned install jobs={} after attempts={}", failed, maxAttempts);
+    }
+    return jdbcTemplate.update(UPDATE_ABANDONED_PENDING,
+        AgentInstallJobStatus.PENDING.name(), AgentInstallJobStatus.RUNNING.name(),
+        staleAfter.getSeconds());
+  }
+
+  /**
+   * @return the jobs, oldest first, that have been pending for longer than
+   * <code>pendingFor</code> and aren't already queued by this instance
+   */
+  List<AgentInstallJobDTO> findPending(Duration pendingFor, int limit) {
+    final List<AgentInstallJobDTO> pending = jdbcTemplate.query(SELECT_PENDING,
+        (resultSet, rowNum) -> new AgentInstallJobDTO()
+            .setId(UUID.fromString(resultSet.getString("id")))
+            .setAgentInstallId(UUID.fromString(resultSet.getString("agent_install_id")))
+            .setStatus(AgentInstallJobStatus.PENDING),
+        AgentInstallJobStatus.PENDING.name(), pendingFor.getSeconds(), limit);
+    pending.removeIf(job -> queuedJobIds.contains(job.getId()));
+    return pending;
+  }
+
+  public Optional<AgentInstallJobDTO> find(String tenantId, UUID jobId) {
+    return jdbcTemplate.query(SELECT_JOB, JOB_ROW_MAPPER, jobId.toString(), tenantId)
+        .stream()
+        .findFirst();
+  }
+
+  /**
+   * Moves the job from pending to running.
+   * @return false if the job isn't pending, such as when it is already run by another instance
+   */
+  boolean claim(UUID jobId) {
+    return jdbcTemplate.update(UPDATE_CLAIMED, AgentInstallJobStatus.RUNNING.name(),
+        jobId.toString(), AgentInstallJobStatus.PENDING.name()) > 0;
+  }
+
+  /**
+   * Adds to the number of resources bound by the job, which also marks it as still alive.
+   */
+  void recordProgress(UUID jobId, int resourcesBound) {
+    jdbcTemplate.update(UPDATE_PROGRESS, resourcesBound, jobId.toString());
+  }
+
+  void markCompleted(UUID jobId) {
+    jdbcTemplate.update(UPDATE_STATUS, AgentInstallJobStatus.COMPLETED.name(), jobId.toString());
+  }
+
+  void markFailed(UUID jobId, String message) {
+    jdbcTemplate.update(UPDATE_FAILED, AgentInstallJobStatus.FAILED.name(),
+        message != null && message.length() > MAX_MESSAGE_LENGTH ?
+            message.substring(0, MAX_MESSAGE_LENGTH) : message,
+        jobId.toString());
+  }
+}
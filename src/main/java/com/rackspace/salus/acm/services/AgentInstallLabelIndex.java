@@ -0,0 +1,268 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
+import com.rackspace.salus.telemetry.entities.AgentInstall;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import javax.persistence.EntityManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Maintains a per-tenant inverted index of agent install label selectors so that the installs
+ * matching a resource's labels can be resolved in memory.
+ * <p>
+ *   A tenant's installs are loaded on first use and re-loaded when a cheap fingerprint of the
+ *   tenant's <code>agent_installs</code> and <code>agent_install_label_selectors</code> rows no
+ *   longer matches, which covers installs created, updated or deleted by other instances of
+ *   this service. Local changes evict the tenant directly. Only the most recently used
+ *   <code>salus.agent-catalog.label-index-max-tenants</code> tenants are retained.
+ * </p>
+ * <p>
+ *   The index holds {@link MatchedInstall} summaries rather than entities, so that the results
+ *   can be shared by the resource event workers without leaking entities across transactions.
+ * </p>
+ */
+@Component
+@Slf4j
+public class AgentInstallLabelIndex {
+
+  /**
+   * The install checksum includes the updated timestamp so that modified installs are also
+   * detected, and the selector checksum catches selector changes that don't touch the install.
+   */
+  private static final String FINGERPRINT_QUERY =
+      "SELECT COUNT(*),"
+          + " COALESCE(BIT_XOR(CRC32(CONCAT_WS(',', ai.id, ai.label_selector_method,"
+          + " ai.updated_timestamp))), 0),"
+          + " (SELECT COALESCE(BIT_XOR(CRC32(CONCAT_WS(',', ails.agent_install_id,"
+          + " ails.label_selector_key, ails.label_selector))), 0)"
+          + " FROM agent_install_label_selectors ails"
+          + " JOIN agent_installs sai ON sai.id = ails.agent_install_id"
+          + " WHERE sai.tenant_id = ?)"
+          + " FROM agent_installs ai WHERE ai.tenant_id = ?";
+
+  private final EntityManager em;
+  private final JdbcTemplate jdbcTemplate;
+  private final AgentCatalogProperties properties;
+
+  /**
+   * Tenants in least to most recently used order, guarded by its own monitor
+   */
+  private final Map<String, TenantInstalls> tenants;
+
+  @Autowired
+  public AgentInstallLabelIndex(EntityManager em, JdbcTemplate jdbcTemplate,
+                                AgentCatalogProperties properties) {
+    this.em = em;
+    this.jdbcTemplate = jdbcTemplate;
+    this.properties = properties;
+    final int maxTenants = properties.getLabelIndexMaxTenants();
+    this.tenants = Collections.synchronizedMap(
+        new LinkedHashMap<String, TenantInstalls>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Entry<String, TenantInstalls> eldest) {
+            return size() > maxTenants;
+          }
+        });
+  }
+
+  /**
+   * Locates the installs of the given tenant with label selectors satisfied by the given resource
+   * labels, taking into account the {@link LabelSelectorMethod} of each install. Installs with
+   * an empty label selector always match.
+   */
+  public List<MatchedInstall> findMatchingInstalls(String tenantId,
+                                                 Map<String, String> resourceLabels) {
+    return resolve(tenantId).match(resourceLabels);
+  }
+
+  /**
+   * Drops the indexed installs of the given tenant. When called within a transaction, the
+   * tenant is evicted again after commit so that a concurrent reload can't retain
+   * uncommitted state.
+   */
+  public void evictTenant(String tenantId) {
+    tenants.remove(tenantId);
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          tenants.remove(tenantId);
+        }
+      });
+    }
+  }
+
+  private TenantInstalls resolve(String tenantId) {
+    final TenantInstalls existing = tenants.get(tenantId);
+    final long now = System.currentTimeMillis();
+
+    if (existing != null &&
+        now - existing.verifiedAt < properties.getLabelIndexRevalidateAfter().toMillis()) {
+      return existing;
+    }
+
+    final Fingerprint fingerprint = queryFingerprint(tenantId);
+    if (existing != null && existing.fingerprint.equals(fingerprint)) {
+      existing.verifiedAt = now;
+      return existing;
+    }
+
+    final TenantInstalls loaded = new TenantInstalls(fingerprint, loadInstalls(tenantId), now);
+    log.debug("Indexed installs={} of tenant={}", loaded.installCount, tenantId);
+    tenants.put(tenantId, loaded);
+    return loaded;
+  }
+
+  private Fingerprint queryFingerprint(String tenantId) {
+    return jdbcTemplate.queryForObject(FINGERPRINT_QUERY,
+        (resultSet, rowNum) -> new Fingerprint(
+            resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3)),
+        tenantId, tenantId
+    );
+  }
+
+  private List<MatchedInstall> loadInstalls(String tenantId) {
+    // fetch the release and selectors along with the installs since all three are summarized
+    final List<AgentInstall> installs = em.createQuery(
+        "select distinct ai from AgentInstall ai"
+            + " join fetch ai.agentRelease"
+            + " left join fetch ai.labelSelector"
+            + " where ai.tenantId = :tenantId",
+        AgentInstall.class)
+        .setParameter("tenantId", tenantId)
+        .getResultList();
+
+    final List<MatchedInstall> summaries = new ArrayList<>(installs.size());
+    for (AgentInstall install : installs) {
+      summaries.add(MatchedInstall.of(install));
+      em.detach(install);
+    }
+    return summaries;
+  }
+
+  private static class Fingerprint {
+    final long count;
+    final long checksum;
+    final long selectorChecksum;
+
+    Fingerprint(long count, long checksum, long selectorChecksum) {
+      this.count = count;
+      this.checksum = checksum;
+      this.selectorChecksum = selectorChecksum;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Fingerprint)) {
+        return false;
+      }
+      final Fingerprint that = (Fingerprint) o;
+      return count == that.count && checksum == that.checksum
+          && selectorChecksum == that.selectorChecksum;
+    }
+
+    @Override
+    public int hashCode() {
+      return (Long.hashCode(count) * 31 + Long.hashCode(checksum)) * 31
+          + Long.hashCode(selectorChecksum);
+    }
+  }
+
+  /**
+   * Immutable view of one tenant's installs, other than the verification timestamp.
+   */
+  private static class TenantInstalls {
+    final Fingerprint fingerprint;
+    final int installCount;
+    volatile long verifiedAt;
+
+    /**
+     * Installs with an empty label selector, which match any resource
+     */
+    final List<MatchedInstall> unconditional = new ArrayList<>();
+    /**
+     * Label key to label value to installs that include that label in their selector
+     */
+    final Map<String, Map<String, List<MatchedInstall>>> postings = new HashMap<>();
+
+    TenantInstalls(Fingerprint fingerprint, List<MatchedInstall> installs, long verifiedAt) {
+      this.fingerprint = fingerprint;
+      this.installCount = installs.size();
+      this.verifiedAt = verifiedAt;
+
+      for (MatchedInstall install : installs) {
+        final Map<String, String> selector = install.getLabelSelector();
+        if (selector.isEmpty()) {
+          unconditional.add(install);
+        } else {
+          for (Entry<String, String> label : selector.entrySet()) {
+            postings
+                .computeIfAbsent(label.getKey(), key -> new HashMap<>())
+                .computeIfAbsent(label.getValue(), value -> new ArrayList<>())
+                .add(install);
+          }
+        }
+      }
+    }
+
+    List<MatchedInstall> match(Map<String, String> resourceLabels) {
+      final List<MatchedInstall> results = new ArrayList<>(unconditional);
+      if (resourceLabels == null || resourceLabels.isEmpty()) {
+        return results;
+      }
+
+      // count how many of each install's selector labels are satisfied by the resource
+      final Map<MatchedInstall, Integer> hits = new IdentityHashMap<>();
+      for (Entry<String, String> label : resourceLabels.entrySet()) {
+        final List<MatchedInstall> withLabel = postings
+            .getOrDefault(label.getKey(), Collections.emptyMap())
+            .get(label.getValue());
+        if (withLabel != null) {
+          for (MatchedInstall install : withLabel) {
+            hits.merge(install, 1, Integer::sum);
+          }
+        }
+      }
+
+      for (Entry<MatchedInstall, Integer> entry : hits.entrySet()) {
+        final MatchedInstall install = entry.getKey();
+        if (install.getLabelSelectorMethod() == LabelSelectorMethod.OR ||
+            entry.getValue() >= install.getLabelSelector().size()) {
+          results.add(install);
+        }
+      }
+
+      return results;
+    }
+  }
+}
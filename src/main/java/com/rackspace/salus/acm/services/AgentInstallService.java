@@ -17,12 +17,18 @@
 
 package com.rackspace.salus.acm.services;
 
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
+import com.rackspace.salus.acm.config.CacheConfig;
 import com.rackspace.salus.acm.web.model.AgentInstallCreate;
+import com.rackspace.salus.acm.web.model.AgentInstallDTO;
+import com.rackspace.salus.acm.web.model.AgentInstallJobDTO;
+import com.rackspace.salus.acm.web.model.BoundAgentInstallDTO;
+import com.rackspace.salus.acm.web.model.BoundAgentInstallLookup;
+import com.rackspace.salus.acm.web.model.CursorPage;
 import com.rackspace.salus.common.config.MetricNames;
 import com.rackspace.salus.common.config.MetricTags;
 import com.rackspace.salus.common.config.MetricTagValues;
 import com.rackspace.salus.common.util.SpringResourceUtils;
-import com.rackspace.salus.resource_management.web.client.ResourceApi;
 import com.rackspace.salus.resource_management.web.model.ResourceDTO;
 import com.rackspace.salus.telemetry.entities.AgentInstall;
 import com.rackspace.salus.telemetry.entities.AgentRelease;
@@ -37,25 +43,45 @@ import com.rackspace.salus.telemetry.repositories.AgentReleaseRepository;
 import com.rackspace.salus.telemetry.repositories.BoundAgentInstallRepository;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
-import com.rackspace.salus.telemetry.repositories.ResourceRepository;
 import java.io.IOException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
 import javax.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.maven.artifact.versioning.ComparableVersion;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.query.QueryUtils;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
-import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.LinkedMultiValueMap;
 
@@ -63,16 +89,33 @@ import org.springframework.util.LinkedMultiValueMap;
 @Slf4j
 public class AgentInstallService {
 
+  /**
+   * The smallest number of label predicates rendered into a label match query
+   */
+  private static final int MIN_LABEL_MATCH_BUCKET = 4;
+  /**
+   * The maximum number of resource IDs bound to an IN clause of a bindings query.
+   */
+  private static final int BINDING_QUERY_CHUNK_SIZE = 1000;
+
   private final JdbcTemplate jdbcTemplate;
   private final EntityManager em;
   private final AgentReleaseRepository agentReleaseRepository;
   private final AgentInstallRepository agentInstallRepository;
   private final BoundAgentInstallRepository boundAgentInstallRepository;
-  private final ResourceApi resourceApi;
+  private final ResourceSelector resourceSelector;
   private final BoundEventSender boundEventSender;
   private final String labelMatchQuery;
-  private final String labelMatchORQuery;
-  private final ResourceRepository resourceRepository;
+  private final ConcurrentMap<Integer, String> labelMatchQueries = new ConcurrentHashMap<>();
+  private final ResourceLookupCache resourceLookupCache;
+  private final AgentInstallLabelIndex agentInstallLabelIndex;
+  private final AgentVersionCache agentVersionCache;
+  private final BoundAgentInstallCache boundAgentInstallCache;
+  private final BoundAgentInstallKeys boundAgentInstallKeys;
+  private final AgentInstallJobs agentInstallJobs;
+  private final AgentCatalogProperties properties;
+  private final TransactionTemplate transaction;
+  private final TransactionTemplate readOnlyTransaction;
 
   MeterRegistry meterRegistry;
 
@@ -85,19 +128,34 @@ public class AgentInstallService {
                              AgentReleaseRepository agentReleaseRepository,
                              AgentInstallRepository agentInstallRepository,
                              BoundAgentInstallRepository boundAgentInstallRepository,
-                             ResourceApi resourceApi, MeterRegistry meterRegistry,
+                             ResourceSelector resourceSelector, MeterRegistry meterRegistry,
                              BoundEventSender boundEventSender,
-                             ResourceRepository resourceRepository) throws IOException {
+                             ResourceLookupCache resourceLookupCache,
+                             AgentInstallLabelIndex agentInstallLabelIndex,
+                             AgentVersionCache agentVersionCache,
+                             BoundAgentInstallCache boundAgentInstallCache,
+                             BoundAgentInstallKeys boundAgentInstallKeys,
+                             AgentInstallJobs agentInstallJobs,
+                             AgentCatalogProperties properties,
+                             PlatformTransactionManager transactionManager) throws IOException {
     this.jdbcTemplate = jdbcTemplate;
     this.em = entityManager;
     this.agentReleaseRepository = agentReleaseRepository;
     this.agentInstallRepository = agentInstallRepository;
     this.boundAgentInstallRepository = boundAgentInstallRepository;
-    this.resourceApi = resourceApi;
+    this.resourceSelector = resourceSelector;
     this.boundEventSender = boundEventSender;
-    this.resourceRepository = resourceRepository;
-    labelMatchQuery = SpringResourceUtils.readContent("sql-queries/agent_installs_label_matching_query.sql");
-    labelMatchORQuery = SpringResourceUtils.readContent("sql-queries/agent_installs_label_matching_OR_query.sql");
+    this.resourceLookupCache = resourceLookupCache;
+    this.agentInstallLabelIndex = agentInstallLabelIndex;
+    this.agentVersionCache = agentVersionCache;
+    this.boundAgentInstallCache = boundAgentInstallCache;
+    this.boundAgentInstallKeys = boundAgentInstallKeys;
+    this.agentInstallJobs = agentInstallJobs;
+    this.properties = properties;
+    this.transaction = new TransactionTemplate(transactionManager);
+    this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+    this.readOnlyTransaction.setReadOnly(true);
+    labelMatchQuery = SpringResourceUtils.readContent("sql-queries/agent_installs_label_matching_query.jpql");
 
     this.meterRegistry = meterRegistry;
     agentInstallSuccess = Counter.builder(MetricNames.SERVICE_OPERATION_SUCCEEDED)
@@ -106,6 +164,125 @@ public class AgentInstallService {
 
   @Transactional
   public AgentInstall install(String tenantId, AgentInstallCreate in) {
+    final AgentInstall saved = saveInstall(tenantId, in);
+
+    bindInstallToResources(saved);
+
+    log.info("Created agentInstall={}", saved);
+    agentInstallSuccess
+        .tags(MetricTags.OPERATION_METRIC_TAG,"install",MetricTags.OBJECT_TYPE_METRIC_TAG,"agent")
+        .register(meterRegistry).increment();
+    return saved;
+  }
+
+  /**
+   * Saves the install and then binds it to the resources matching its label selector in the
+   * background, in chunks of resources that are each bound in their own transaction.
+   * @return the job that tracks the binding of the install
+   */
+  public AgentInstallJobDTO installAsync(String tenantId, AgentInstallCreate in) {
+    final AgentInstallJobDTO job = transaction.execute(status -> {
+      final AgentInstall saved = saveInstall(tenantId, in);
+      return agentInstallJobs.create(tenantId, saved.getId());
+    });
+
+    log.info("Created agentInstall={} to be bound by job={}", job.getAgentInstallId(), job.getId());
+    if (!submitInstallJob(job)) {
+      log.warn("Install jobs are at capacity, job={} remains pending until resumed", job.getId());
+    }
+
+    agentInstallSuccess
+        .tags(MetricTags.OPERATION_METRIC_TAG,"installAsync",MetricTags.OBJECT_TYPE_METRIC_TAG,"agent")
+        .register(meterRegistry).increment();
+    return job;
+  }
+
+  /**
+   * Resumes install jobs that were rejected while the job pool was at capacity or that were
+   * abandoned by an instance that stopped. Each instance resumes only as many as it has room
+   * to queue.
+   */
+  @Scheduled(fixedDelayString = "#{@agentCatalogProperties.installJobSweepInterval.toMillis()}")
+  public void resumeInstallJobs() {
+    final int released = agentInstallJobs.releaseAbandoned(
+        properties.getInstallJobStaleAfter(), properties.getInstallJobMaxAttempts());
+    if (released > 0) {
+      log.info("Released abandoned install jobs={}", released);
+    }
+
+    final int capacity = agentInstallJobs.remainingCapacity();
+    if (capacity <= 0) {
+      return;
+    }
+    for (AgentInstallJobDTO job : agentInstallJobs.findPending(
+        properties.getInstallJobSweepInterval(), capacity)) {
+      if (!submitInstallJob(job)) {
+        break;
+      }
+      log.info("Resumed agentInstall={} job={}", job.getAgentInstallId(), job.getId());
+    }
+  }
+
+  private boolean submitInstallJob(AgentInstallJobDTO job) {
+    return agentInstallJobs.submit(job.getId(),
+        () -> runInstallJob(job.getId(), job.getAgentInstallId()));
+  }
+
+  void runInstallJob(UUID jobId, UUID agentInstallId) {
+    if (!agentInstallJobs.claim(jobId)) {
+      log.debug("Skipping job={} that is no longer pending", jobId);
+      return;
+    }
+    try {
+
+      final AgentInstall agentInstall = readOnlyTransaction.execute(status ->
+          em.createQuery(
+              "select ai from AgentInstall ai"
+                  + " join fetch ai.agentRelease"
+                  + " left join fetch ai.labelSelector"
+                  + " where ai.id = :id",
+              AgentInstall.class)
+              .setParameter("id", agentInstallId)
+              .getResultList()
+              .stream()
+              .findFirst()
+              .orElseThrow(() -> new IllegalStateException("The agent install was deleted")));
+      final AgentType agentType = agentInstall.getAgentRelease().getType();
+
+      final AtomicInteger resourcesBound = new AtomicInteger();
+      resourceSelector.forEachMatchingChunk(agentInstall, properties.getBindingChunkSize(),
+          chunk -> {
+            final Integer chunkBound = transaction.execute(status -> {
+              final AgentInstall managed = em.find(AgentInstall.class, agentInstallId);
+              if (managed == null) {
+                throw new IllegalStateException("The agent install was deleted");
+              }
+              final List<TenantResource> affected = saveNewBindings(managed, chunk);
+              if (!affected.isEmpty()) {
+                boundEventSender.sendTo(OperationType.UPSERT, agentType, affected);
+              }
+              return affected.size();
+            });
+
+            final int bound = chunkBound != null ? chunkBound : 0;
+            resourcesBound.addAndGet(bound);
+            agentInstallJobs.recordProgress(jobId, bound);
+          });
+
+      agentInstallJobs.markCompleted(jobId);
+      log.info("Bound agentInstall={} to resources={} by job={}",
+          agentInstallId, resourcesBound.get(), jobId);
+    } catch (RuntimeException e) {
+      log.warn("Failed to bind agentInstall={} by job={}", agentInstallId, jobId, e);
+      agentInstallJobs.markFailed(jobId, e.getMessage());
+    }
+  }
+
+  public Optional<AgentInstallJobDTO> getInstallJob(String tenantId, UUID jobId) {
+    return agentInstallJobs.find(tenantId, jobId);
+  }
+
+  private AgentInstall saveInstall(String tenantId, AgentInstallCreate in) {
     Assert.notNull(tenantId, "tenantId is required");
 
     log.debug("Creating install={} for tenant={}", in, tenantId);
@@ -128,69 +305,184 @@ public class AgentInstallService {
         .setLabelSelectorMethod(in.getLabelSelectorMethod());
 
     final AgentInstall saved = agentInstallRepository.save(agentInstall);
-
-    bindInstallToResources(saved);
-
-    log.info("Created agentInstall={}", saved);
-    agentInstallSuccess
-        .tags(MetricTags.OPERATION_METRIC_TAG,"install",MetricTags.OBJECT_TYPE_METRIC_TAG,"agent")
-        .register(meterRegistry).increment();
+    agentInstallLabelIndex.evictTenant(tenantId);
     return saved;
   }
 
+  /**
+   * Deletes the given install and its bindings.
+   * <p>
+   *   The bindings are deleted in chunks of at most
+   *   {@link AgentCatalogProperties#getDeleteChunkSize()}, each with set-based statements in its
+   *   own transaction along with the events for its resources, so that no one transaction holds
+   *   locks on all of an install's bindings. The install itself is deleted in a final
+   *   transaction that also removes any bindings made to it in the meantime.
+   * </p>
+   */
   public void delete(String tenantId, UUID agentInstallId) {
     final AgentInstall agentInstall = agentInstallRepository.findByIdAndTenantId(agentInstallId, tenantId)
         .orElseThrow(() ->
             new NotFoundException(
                 String.format("No install found for %s on tenant %s", agentInstallId, tenantId)));
-
-    final List<BoundAgentInstall> bound = boundAgentInstallRepository
-        .findAllByAgentInstall_Id(agentInstallId);
-
-    final List<TenantResource> affectedResourceIds = bound.stream()
-        .map(BoundAgentInstall::getResourceId)
-        .distinct()
-        .map(resourceId -> new TenantResource(tenantId,resourceId))
-        .collect(Collectors.toList());
-
-    boundAgentInstallRepository.deleteAll(bound);
-    agentInstallRepository.delete(agentInstall);
+    final AgentType agentType = agentInstall.getAgentRelease().getType();
+
+    int deleted;
+    do {
+      deleted = transaction.execute(status ->
+          deleteBindingsOfInstall(tenantId, agentInstallId, agentType, properties.getDeleteChunkSize()));
+    } while (deleted >= properties.getDeleteChunkSize());
+
+    transaction.execute(status -> {
+      deleteBindingsOfInstall(tenantId, agentInstallId, agentType, Integer.MAX_VALUE);
+      boundAgentInstallKeys.deleteAllOfInstall(agentInstallId);
+      // removed as an entity so that its label selector goes along with it
+      agentInstallRepository.findById(agentInstallId)
+          .ifPresent(agentInstallRepository::delete);
+      agentInstallLabelIndex.evictTenant(tenantId);
+      return null;
+    });
 
     log.info("Deleted agentInstall={}", agentInstall);
 
-    if (!affectedResourceIds.isEmpty()) {
-      boundEventSender.sendTo(
-          OperationType.DELETE, agentInstall.getAgentRelease().getType(), affectedResourceIds);
-    }
     agentInstallSuccess
         .tags(MetricTags.OPERATION_METRIC_TAG, MetricTagValues.REMOVE_OPERATION,MetricTags.OBJECT_TYPE_METRIC_TAG,"agent")
         .register(meterRegistry).increment();
   }
 
-  @Transactional
+  /**
+   * Deletes all installs of the given tenant and their bindings, in chunks of resources as
+   * described for {@link #delete(String, UUID)}.
+   */
   public void deleteAllAgentInstallsForTenant(String tenantId) {
-    final List<BoundAgentInstall> bound = boundAgentInstallRepository
-        .findAllByTenant(tenantId);
+    int deleted;
+    do {
+      deleted = transaction.execute(status ->
+          deleteBindingsOfTenant(tenantId, properties.getDeleteChunkSize()));
+    } while (deleted >= properties.getDeleteChunkSize());
+
+    transaction.execute(status -> {
+      deleteBindingsOfTenant(tenantId, Integer.MAX_VALUE);
+      boundAgentInstallKeys.deleteAllOfTenant(tenantId);
+      agentInstallRepository.deleteAllByTenantId(tenantId);
+      agentInstallLabelIndex.evictTenant(tenantId);
+      return null;
+    });
 
-    final List<TenantResource> affectedResourceIds = bound.stream()
-        .map(BoundAgentInstall::getResourceId)
-        .distinct()
-        .map(resourceId -> new TenantResource(tenantId,resourceId))
-        .collect(Collectors.toList());
-
-    boundAgentInstallRepository.deleteAll(bound);
-    agentInstallRepository.deleteAllByTenantId(tenantId);
-
-    if (!affectedResourceIds.isEmpty()) {
-      boundEventSender.sendTo(
-          OperationType.DELETE, null, affectedResourceIds);
-    }
     agentInstallSuccess
         .tags(MetricTags.OPERATION_METRIC_TAG,"deleteAll",MetricTags.OBJECT_TYPE_METRIC_TAG,"agent")
         .register(meterRegistry).increment();
   }
 
+  /**
+   * Deletes up to the given number of the install's bindings and publishes a delete event
+   * for each of their resources. Must be called within a transaction.
+   * @return the number of bindings deleted
+   */
+  private int deleteBindingsOfInstall(String tenantId, UUID agentInstallId, AgentType agentType,
+                                      int limit) {
+    final List<String> resourceIds = em.createQuery(
+        "select b.resourceId from BoundAgentInstall b where b.agentInstall.id = :agentInstallId",
+        String.class)
+        .setParameter("agentInstallId", agentInstallId)
+        .setMaxResults(limit)
+        .getResultList();
+    if (resourceIds.isEmpty()) {
+      return 0;
+    }
+
+    final List<TenantResource> affected = new ArrayList<>(resourceIds.size());
+    for (int start = 0; start < resourceIds.size(); start += BINDING_QUERY_CHUNK_SIZE) {
+      final List<String> chunk = resourceIds.subList(
+          start, Math.min(start + BINDING_QUERY_CHUNK_SIZE, resourceIds.size()));
+      em.createQuery(
+          "delete from BoundAgentInstall b"
+              + " where b.agentInstall.id = :agentInstallId and b.resourceId in :resourceIds")
+          .setParameter("agentInstallId", agentInstallId)
+          .setParameter("resourceIds", chunk)
+          .executeUpdate();
+      boundAgentInstallKeys.deleteAllOfInstall(agentInstallId, chunk);
+      chunk.forEach(resourceId -> affected.add(new TenantResource(tenantId, resourceId)));
+    }
+    resourceIds.forEach(resourceId ->
+        boundAgentInstallCache.evict(tenantId, resourceId, agentType));
+
+    boundEventSender.sendTo(OperationType.DELETE, agentType, affected);
+    return resourceIds.size();
+  }
+
+  /**
+   * Deletes the bindings of up to the given number of the tenant's bound resources and
+   * publishes a delete event for each of those resources. Must be called within a transaction.
+   * @return the number of resources unbound
+   */
+  private int deleteBindingsOfTenant(String tenantId, int limit) {
+    final List<String> resourceIds = em.createQuery(
+        "select distinct b.resourceId from BoundAgentInstall b"
+            + " join b.agentInstall ai"
+            + " where ai.tenantId = :tenantId",
+        String.class)
+        .setParameter("tenantId", tenantId)
+        .setMaxResults(limit)
+        .getResultList();
+    if (resourceIds.isEmpty()) {
+      return 0;
+    }
+
+    final List<TenantResource> affected = new ArrayList<>(resourceIds.size());
+    for (int start = 0; start < resourceIds.size(); start += BINDING_QUERY_CHUNK_SIZE) {
+      final List<String> chunk = resourceIds.subList(
+          start, Math.min(start + BINDING_QUERY_CHUNK_SIZE, resourceIds.size()));
+      em.createQuery(
+          "delete from BoundAgentInstall b"
+              + " where b.resourceId in :resourceIds"
+              + " and b.agentInstall.id in"
+              + " (select ai.id from AgentInstall ai where ai.tenantId = :tenantId)")
+          .setParameter("tenantId", tenantId)
+          .setParameter("resourceIds", chunk)
+          .executeUpdate();
+      boundAgentInstallKeys.deleteAllOfResources(tenantId, chunk);
+      chunk.forEach(resourceId -> affected.add(new TenantResource(tenantId, resourceId)));
+    }
+    resourceIds.forEach(resourceId ->
+        boundAgentInstallCache.evictAllTypes(tenantId, resourceId));
+
+    boundEventSender.sendTo(OperationType.DELETE, null, affected);
+    return resourceIds.size();
+  }
+
+  /**
+   * Handles a batch of resource events, which are expected to have been coalesced to at most
+   * one relevant event per resource. The resources and bound agent types needed by the events of
+   * each tenant are retrieved with one query apiece rather than per event.
+   * <p>
+   *   Each event is handled in its own transaction so that its binding changes and the
+   *   resulting outbox events are committed together.
+   * </p>
+   */
+  public void handleResourceEvents(List<ResourceEvent> resourceEvents) {
+    final Map<String, List<ResourceEvent>> byTenant = resourceEvents.stream()
+        .collect(Collectors.groupingBy(
+            ResourceEvent::getTenantId, LinkedHashMap::new, Collectors.toList()));
+
+    byTenant.forEach((tenantId, tenantEvents) -> {
+      final EventLookups lookups = prefetchLookups(tenantId, tenantEvents);
+      for (ResourceEvent resourceEvent : tenantEvents) {
+        transaction.execute(status -> {
+          handleResourceEvent(resourceEvent, lookups);
+          return null;
+        });
+      }
+    });
+  }
+
   void handleResourceEvent(ResourceEvent resourceEvent) {
+    transaction.execute(status -> {
+      handleResourceEvent(resourceEvent, new EventLookups());
+      return null;
+    });
+  }
+
+  private void handleResourceEvent(ResourceEvent resourceEvent, EventLookups lookups) {
     log.debug("Handling resourceEvent={}", resourceEvent);
 
     final boolean reattached = resourceEvent.getReattachedEnvoyId() != null;
@@ -199,11 +491,11 @@ public class AgentInstallService {
     if (resourceEvent.isDeleted()) {
       unbindDeletedResource(resourceEvent.getTenantId(), resourceEvent.getResourceId());
     } else if (!resourceEvent.isLabelsChanged() && reattached) {
-      handleReattachedEnvoy(resourceEvent.getTenantId(), resourceEvent.getResourceId());
+      handleReattachedEnvoy(resourceEvent.getTenantId(), resourceEvent.getResourceId(), lookups);
     } else {
       // ...further evaluate actions that require resource lookup
 
-      final ResourceDTO resource = findResourceByTenantIdAndResourceId(resourceEvent.getTenantId(),
+      final ResourceDTO resource = lookups.resource(resourceEvent.getTenantId(),
           resourceEvent.getResourceId());
 
       if (resource == null) {
@@ -211,7 +503,7 @@ public class AgentInstallService {
       } else if (!resource.isAssociatedWithEnvoy()) {
         log.debug("Ignoring event={} since resource is not associated with envoy", resourceEvent);
       } else if (resourceEvent.isLabelsChanged()) {
-        updateBindingToChangedResource(resource, reattached);
+        updateBindingToChangedResource(resource, reattached, lookups);
       }
       else {
         log.debug("Ignoring event={} due to non-relevant change", resourceEvent);
@@ -219,167 +511,325 @@ public class AgentInstallService {
     }
   }
 
-  List<AgentInstall> getInstallsFromResourceLabels(String tenantId, Map<String, String> resourceLabels)
+  private EventLookups prefetchLookups(String tenantId, List<ResourceEvent> resourceEvents) {
+    final Set<String> resourceIds = resourceEvents.stream()
+        .filter(resourceEvent -> !resourceEvent.isDeleted())
+        .map(ResourceEvent::getResourceId)
+        .collect(Collectors.toSet());
+
+    final EventLookups lookups = new EventLookups();
+    if (!resourceIds.isEmpty()) {
+      lookups.resources.putAll(findResourcesByTenantIdAndResourceIds(tenantId, resourceIds));
+      lookups.boundAgentTypes.putAll(findBoundAgentTypesByResources(tenantId, resourceIds));
+    }
+    return lookups;
+  }
+
+  List<MatchedInstall> getInstallsFromResourceLabels(String tenantId,
+                                                     Map<String, String> resourceLabels)
       throws IllegalArgumentException {
+    if (properties.isLabelIndexEnabled()) {
+      return agentInstallLabelIndex.findMatchingInstalls(tenantId, resourceLabels);
+    }
+    return queryInstallsFromResourceLabels(tenantId, resourceLabels).stream()
+        .map(MatchedInstall::of)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Evaluates the label selectors of the tenant's installs against the given resource labels
+   * using the database rather than {@link AgentInstallLabelIndex}.
+   */
+  List<AgentInstall> queryInstallsFromResourceLabels(String tenantId,
+                                                     Map<String, String> resourceLabels) {
     if(resourceLabels == null || resourceLabels.isEmpty()) {
       return agentInstallRepository.findByTenantIdAndLabelSelectorIsNull(tenantId);
     }
 
-    MapSqlParameterSource paramSource = new MapSqlParameterSource();
-    paramSource.addValue("tenantId", tenantId);
-    StringBuilder builder = new StringBuilder();
+    // Evaluate AND and OR selectors in one statement that also fetches each install's
+    // release and selector, which is everything updateBindingToChangedResource needs.
+    // The label count is rounded up to a bucket, padding with the last label, so that only
+    // a handful of statement shapes are ever produced and their plans stay cached.
+    final int bucket = labelMatchBucket(resourceLabels.size());
+
+    final TypedQuery<AgentInstall> query = em
+        .createQuery(
+            labelMatchQueries.computeIfAbsent(bucket, this::buildLabelMatchQuery),
+            AgentInstall.class)
+        .setParameter("tenantId", tenantId);
+
     int i = 0;
+    Map.Entry<String, String> last = null;
     for (Map.Entry<String, String> entry : resourceLabels.entrySet()) {
-      if (i > 0) {
-        builder.append(" OR ");
-      }
-      //noinspection StringConcatenationInsideStringBufferAppend
-      builder
-          .append("(label_selector = :label" + i + " AND label_selector_key = :labelKey" + i + ")");
-      paramSource.addValue("label" + i, entry.getValue());
-      paramSource.addValue("labelKey" + i, entry.getKey());
+      query.setParameter("labelKey" + i, entry.getKey());
+      query.setParameter("label" + i, entry.getValue());
+      last = entry;
       i++;
     }
+    for (; i < bucket; i++) {
+      query.setParameter("labelKey" + i, last.getKey());
+      query.setParameter("label" + i, last.getValue());
+    }
 
-    paramSource.addValue("i", i);
-
-    @SuppressWarnings("ConstantConditions")
-    NamedParameterJdbcTemplate namedParameterTemplate = new NamedParameterJdbcTemplate(
-        jdbcTemplate.getDataSource());
-    final List<UUID> monitorIds = namedParameterTemplate.query(String.format(labelMatchQuery, builder.toString()), paramSource,
-        (resultSet, rowIndex) -> UUID.fromString(resultSet.getString(1))
-    );
-
-    final List<UUID> monitorOrIds = namedParameterTemplate.query(String.format(labelMatchORQuery, builder.toString()), paramSource,
-        (resultSet, rowIndex) -> UUID.fromString(resultSet.getString(1))
-    );
-
-    monitorIds.addAll(monitorOrIds);
+    return query.getResultList();
+  }
 
-    // use JPA to retrieve and resolve the entities and then convert Iterable result to list
-    final ArrayList<AgentInstall> results = new ArrayList<>();
-    for (AgentInstall agentInstall : agentInstallRepository.findAllById(monitorIds)) {
-      results.add(agentInstall);
+  static int labelMatchBucket(int labelCount) {
+    int bucket = MIN_LABEL_MATCH_BUCKET;
+    while (bucket < labelCount) {
+      bucket <<= 1;
     }
+    return bucket;
+  }
 
-    return results;
+  private String buildLabelMatchQuery(int bucket) {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < bucket; i++) {
+      if (i > 0) {
+        builder.append(" OR ");
+      }
+      //noinspection StringConcatenationInsideStringBufferAppend
+      builder
+          .append("(KEY(l) = :labelKey" + i + " AND VALUE(l) = :label" + i + ")");
+    }
+    return String.format(labelMatchQuery, builder.toString());
   }
 
+  /**
+   * Binds the given install to the resources matching its label selector a chunk of resources at
+   * a time, publishing each chunk's bindings before the next chunk is retrieved.
+   */
   private void bindInstallToResources(AgentInstall agentInstall) {
-    final List<ResourceDTO> resources = resourceApi
-        .getResourcesWithLabels(agentInstall.getTenantId(), agentInstall.getLabelSelector(), agentInstall.getLabelSelectorMethod());
-
-    log.debug("Found resources={} matching selector of agentInstall={}", resources, agentInstall);
-
-    final List<BoundAgentInstall> newBindings = resources.stream()
-        .map(resourceDTO -> new BoundAgentInstall()
-            .setAgentInstall(agentInstall)
-            .setResourceId(resourceDTO.getResourceId())
-        )
-        .collect(Collectors.toList());
+    final AgentType agentType = agentInstall.getAgentRelease().getType();
 
-    final List<TenantResource> affectedResources = saveNewBindings(newBindings);
+    resourceSelector.forEachMatchingChunk(agentInstall, properties.getBindingChunkSize(),
+        chunk -> {
+          final List<TenantResource> affectedResources = saveNewBindings(agentInstall, chunk);
 
-    if (!affectedResources.isEmpty()) {
-      boundEventSender.sendTo(
-          OperationType.UPSERT, agentInstall.getAgentRelease().getType(), affectedResources);
-    }
+          if (!affectedResources.isEmpty()) {
+            boundEventSender.sendTo(OperationType.UPSERT, agentType, affectedResources);
+          }
+        });
   }
 
-  private List<TenantResource> saveNewBindings(List<BoundAgentInstall> newBindings) {
-    final List<BoundAgentInstall> bindingsToSave = new ArrayList<>(newBindings.size());
-
-    for (BoundAgentInstall newBinding : newBindings) {
-      if (reconcileBinding(newBinding)) {
-        bindingsToSave.add(newBinding);
+  /**
+   * Binds the given install to each of the given resources unless a resource is already bound
+   * to a same-or-newer install of the same agent type. Older bindings that are superseded are
+   * deleted.
+   * <p>
+   *   Each resource's binding is first claimed with an upsert of its
+   *   {@link BoundAgentInstallKeys key}, which only replaces an older version and holds the
+   *   key's row lock until commit. The existing bindings of all the resources are then retrieved
+   *   together and the resulting deletes and inserts are issued in bulk. The bindings rather than
+   *   the keys decide which install is kept, since a binding may not have a key yet, such as
+   *   one saved by an earlier release of this service, and any key that disagrees is corrected.
+   * </p>
+   * @return the tenant resources that were newly bound
+   */
+  private List<TenantResource> saveNewBindings(AgentInstall agentInstall,
+                                               List<String> resourceIds) {
+    final String tenantId = agentInstall.getTenantId();
+
+    final Set<String> claimed = boundAgentInstallKeys.claim(agentInstall, resourceIds);
+
+    final Map<String, List<BoundAgentInstall>> existingByResource = findBindingsOfResources(
+        tenantId, agentInstall.getAgentRelease().getType(), resourceIds);
+
+    final List<String> resourcesToBind = new ArrayList<>(resourceIds.size());
+    final List<String> staleKeys = new ArrayList<>();
+    final List<BoundAgentInstall> bindingsToDelete = new ArrayList<>();
+    final List<BoundAgentInstall> keysToRestore = new ArrayList<>();
+
+    for (String resourceId : resourceIds) {
+      final List<BoundAgentInstall> others = existingByResource.get(resourceId);
+      final boolean keepOurs = others == null || others.isEmpty() ||
+          reconcileBinding(agentInstall, claimed.contains(resourceId), others,
+              bindingsToDelete, keysToRestore);
+      if (keepOurs) {
+        if (!claimed.contains(resourceId)) {
+          // the key outlived its binding, such as one removed by an earlier release of this service
+          staleKeys.add(resourceId);
+        }
+        resourcesToBind.add(resourceId);
       }
     }
 
-    log.debug("Reconciled newBindings={} into={}", newBindings, bindingsToSave);
+    log.debug("Reconciled bindings of agentInstall={} to resources={} into={}, deleting={}",
+        agentInstall, resourceIds.size(), resourcesToBind.size(), bindingsToDelete.size());
+
+    boundAgentInstallKeys.assign(agentInstall, staleKeys);
+    restoreKeys(keysToRestore);
+    deleteBindings(bindingsToDelete);
+
+    final List<BoundAgentInstall> newBindings = new ArrayList<>(resourcesToBind.size());
+    for (String resourceId : resourcesToBind) {
+      final BoundAgentInstall binding = new BoundAgentInstall()
+          .setAgentInstall(agentInstall)
+          .setResourceId(resourceId);
+      // persist directly since the entity's identifier is assigned, which would otherwise
+      // cause a select per binding, and let hibernate batch the inserts
+      em.persist(binding);
+      newBindings.add(binding);
+    }
+    em.flush();
+
+    // keep the persistence context from growing with each chunk bound in the same transaction
+    newBindings.forEach(em::detach);
+    existingByResource.values().forEach(bindings -> bindings.forEach(em::detach));
 
-    boundAgentInstallRepository.saveAll(bindingsToSave);
+    final AgentType agentType = agentInstall.getAgentRelease().getType();
+    resourcesToBind.forEach(resourceId ->
+        boundAgentInstallCache.evict(tenantId, resourceId, agentType));
+    bindingsToDelete.forEach(binding ->
+        boundAgentInstallCache.evict(tenantId, binding.getResourceId(), agentType));
 
-    return bindingsToSave.stream()
-        .map(boundAgentInstall ->
-            new TenantResource(
-                boundAgentInstall.getAgentInstall().getTenantId(),
-                boundAgentInstall.getResourceId()
-            ))
+    return resourcesToBind.stream()
+        .map(resourceId -> new TenantResource(tenantId, resourceId))
         .collect(Collectors.toList());
   }
 
   /**
-   * Given a not-yet-saved binding, locates any existing bindings for the same
-   * tenant-resource-agentType and determines if the given one is newest and should
+   * Given a not-yet-saved binding and the existing bindings for the same
+   * tenant-resource-agentType, determines if the given one is newest and should
    * be saved (and existing unbound) or given is not newest and shouldn't be saved.
+   * The given one is only newest when it is newer than every existing binding, so that
+   * overlapping bindings never cause a resource to be bound to an older version.
+   * @param claimed whether the given install claimed the binding's key, which is the case
+   * when it is newer than the install the key refers to, is that install, or there was no key
+   * @param bindingsToDelete accumulates the existing bindings that should be deleted
+   * @param keysToRestore accumulates the existing bindings whose key was claimed by the given
+   * install even though they're newer, which happens when they had no key
    * @return true if the given binding should be saved and older bindings were deleted;
    * false if this binding should be ignored
    */
-  private boolean reconcileBinding(BoundAgentInstall binding) {
-
-    final List<BoundAgentInstall> others = boundAgentInstallRepository
-        .findAllByTenantResourceAgentType(
-            binding.getAgentInstall().getTenantId(),
-            binding.getResourceId(),
-            binding.getAgentInstall().getAgentRelease().getType()
-        );
-
-    if (others.isEmpty()) {
-      return true;
-    }
-
-    log.debug("Reconciling binding={} against existing={}", binding, others);
-
-    final ComparableVersion ourVersion = versionOf(binding);
-
+  private boolean reconcileBinding(AgentInstall ours, boolean claimed,
+                                   List<BoundAgentInstall> others,
+                                   List<BoundAgentInstall> bindingsToDelete,
+                                   List<BoundAgentInstall> keysToRestore) {
     final List<BoundAgentInstall> othersSorted = new ArrayList<>(others);
-    othersSorted.sort(Comparator.comparing(AgentInstallService::versionOf));
+    othersSorted.sort(Comparator.comparing(this::versionOf));
+    final BoundAgentInstall newest = othersSorted.get(othersSorted.size() - 1);
 
-    // test if our version is greater than the existing/other version
-    final boolean keepOurs = ourVersion.compareTo(versionOf(othersSorted.get(0))) > 0;
+    final boolean alreadyBound = others.stream()
+        .anyMatch(other -> other.getAgentInstall().getId().equals(ours.getId()));
+    final boolean keepOurs = !alreadyBound &&
+        agentVersionCache.versionOf(ours.getAgentRelease()).compareTo(versionOf(newest)) > 0;
 
     if (keepOurs) {
       // delete all of the others since they're all older
-      boundAgentInstallRepository.deleteAll(others);
+      bindingsToDelete.addAll(others);
     }
-    else if (othersSorted.size() > 1) {
+    else {
       // in case there were overlaps present,
       // delete all but the newest version which is last due to sorting above
-      boundAgentInstallRepository.deleteAll(
-          othersSorted.subList(0, othersSorted.size()-1)
-      );
+      bindingsToDelete.addAll(othersSorted.subList(0, othersSorted.size()-1));
+
+      if (claimed && !newest.getAgentInstall().getId().equals(ours.getId())) {
+        keysToRestore.add(newest);
+      }
     }
 
     return keepOurs;
   }
 
-  private void updateBindingToChangedResource(ResourceDTO resource, boolean reattached) {
+  /**
+   * Assigns the keys of the given bindings back to their installs.
+   */
+  private void restoreKeys(List<BoundAgentInstall> bindings) {
+    bindings.stream()
+        .collect(Collectors.groupingBy(binding -> binding.getAgentInstall().getId()))
+        .values()
+        .forEach(installBindings -> boundAgentInstallKeys.assign(
+            installBindings.get(0).getAgentInstall(),
+            installBindings.stream()
+                .map(BoundAgentInstall::getResourceId)
+                .collect(Collectors.toList())));
+  }
+
+  /**
+   * @return the existing bindings of the given agent type to each of the given resources,
+   * grouped by resource ID
+   */
+  private Map<String, List<BoundAgentInstall>> findBindingsOfResources(
+      String tenantId, AgentType agentType, List<String> resourceIds) {
+    final Map<String, List<BoundAgentInstall>> byResource = new HashMap<>();
+
+    for (int start = 0; start < resourceIds.size(); start += BINDING_QUERY_CHUNK_SIZE) {
+      final List<String> chunk = resourceIds.subList(
+          start, Math.min(start + BINDING_QUERY_CHUNK_SIZE, resourceIds.size()));
+
+      em.createQuery(
+          "select b from BoundAgentInstall b"
+              + " join fetch b.agentInstall ai"
+              + " join fetch ai.agentRelease ar"
+              + " where ai.tenantId = :tenantId"
+              + " and ar.type = :agentType"
+              + " and b.resourceId in :resourceIds",
+          BoundAgentInstall.class)
+          .setParameter("tenantId", tenantId)
+          .setParameter("agentType", agentType)
+          .setParameter("resourceIds", chunk)
+          .getResultList()
+          .forEach(binding ->
+              byResource.computeIfAbsent(binding.getResourceId(), key -> new ArrayList<>())
+                  .add(binding));
+    }
+
+    return byResource;
+  }
+
+  /**
+   * Deletes the given bindings with one statement per install and chunk of resources.
+   */
+  private void deleteBindings(List<BoundAgentInstall> bindings) {
+    final Map<UUID, List<BoundAgentInstall>> byInstall = bindings.stream()
+        .collect(Collectors.groupingBy(binding -> binding.getAgentInstall().getId()));
+
+    for (List<BoundAgentInstall> installBindings : byInstall.values()) {
+      final AgentInstall agentInstall = installBindings.get(0).getAgentInstall();
+      final List<String> resourceIds = installBindings.stream()
+          .map(BoundAgentInstall::getResourceId)
+          .collect(Collectors.toList());
+
+      for (int start = 0; start < resourceIds.size(); start += BINDING_QUERY_CHUNK_SIZE) {
+        em.createQuery(
+            "delete from BoundAgentInstall b"
+                + " where b.agentInstall = :agentInstall and b.resourceId in :resourceIds")
+            .setParameter("agentInstall", agentInstall)
+            .setParameter("resourceIds", resourceIds.subList(
+                start, Math.min(start + BINDING_QUERY_CHUNK_SIZE, resourceIds.size())))
+            .executeUpdate();
+      }
+    }
+
+    // the deleted bindings are otherwise still managed
+    bindings.forEach(em::detach);
+  }
+
+  private void updateBindingToChangedResource(ResourceDTO resource, boolean reattached,
+                                              EventLookups lookups) {
     log.debug("Updating bindings to changed resource={} with reattached={}",
         resource, reattached);
 
-    // When querying DB we'll get a potential mixture of agent types and older/current installs
-    // ...so group them first by agent type
-    final LinkedMultiValueMap<AgentType, AgentInstall> grouped = new LinkedMultiValueMap<>();
-    for (AgentInstall agentInstall :
-        getInstallsFromResourceLabels(resource.getTenantId(), resource.getLabels())) {
-      grouped.add(agentInstall.getAgentRelease().getType(), agentInstall);
+    Map<AgentType, MatchedInstall> newestInstalls = findNewestInstalls(resource);
+
+    // The label index can briefly retain installs deleted via another instance, which would
+    // then fail to be bound, so those are matched again with the tenant freshly indexed
+    final Set<UUID> missingInstallIds = findMissingInstallIds(newestInstalls.values());
+    if (!missingInstallIds.isEmpty()) {
+      log.debug("Matching resource={} again since installs={} no longer exist",
+          resource, missingInstallIds);
+      agentInstallLabelIndex.evictTenant(resource.getTenantId());
+      newestInstalls = findNewestInstalls(resource);
+      // ...and any deleted meanwhile are left to the events of their own deletion
+      final Set<UUID> stillMissingInstallIds = findMissingInstallIds(newestInstalls.values());
+      newestInstalls.values().removeIf(
+          matchedInstall -> stillMissingInstallIds.contains(matchedInstall.getId()));
     }
 
-    final Map<AgentType, AgentInstall> newestInstalls =
-        grouped.entrySet().stream()
-            .filter(entry -> !entry.getValue().isEmpty())
-            .collect(
-                Collectors.toMap(
-                    Entry::getKey,
-                    entry ->
-                        entry.getValue().stream()
-                            .max(Comparator.comparing(AgentInstallService::versionOf))
-                            .get()
-                ));
-
     // Before upserting new bindings, remove any bindings that no longer apply to this resource
     // and a specific agent release type
-    final List<AgentType> allBoundTypes = findBoundAgentTypesByResource(
+    final List<AgentType> allBoundTypes = lookups.boundAgentTypes(
         resource.getTenantId(), resource.getResourceId());
 
     for (AgentType priorBoundAgentType : allBoundTypes) {
@@ -389,11 +839,50 @@ public class AgentInstallService {
     }
 
     // Upsert new bindings
-    for (Entry<AgentType, AgentInstall> entry : newestInstalls.entrySet()) {
+    for (Entry<AgentType, MatchedInstall> entry : newestInstalls.entrySet()) {
       upsertBindingToResource(resource, entry.getKey(), entry.getValue(), reattached);
     }
   }
 
+  private Map<AgentType, MatchedInstall> findNewestInstalls(ResourceDTO resource) {
+    // When querying DB we'll get a potential mixture of agent types and older/current installs
+    // ...so group them first by agent type
+    final LinkedMultiValueMap<AgentType, MatchedInstall> grouped = new LinkedMultiValueMap<>();
+    for (MatchedInstall matchedInstall :
+        getInstallsFromResourceLabels(resource.getTenantId(), resource.getLabels())) {
+      grouped.add(matchedInstall.getAgentType(), matchedInstall);
+    }
+
+    return grouped.entrySet().stream()
+        .filter(entry -> !entry.getValue().isEmpty())
+        .collect(
+            Collectors.toMap(
+                Entry::getKey,
+                entry ->
+                    entry.getValue().stream()
+                        .max(Comparator.comparing(this::versionOf))
+                        .get()
+            ));
+  }
+
+  /**
+   * @return the ids of the given installs that no longer exist
+   */
+  private Set<UUID> findMissingInstallIds(Collection<MatchedInstall> matchedInstalls) {
+    if (matchedInstalls.isEmpty()) {
+      return Collections.emptySet();
+    }
+
+    final Set<UUID> missing = matchedInstalls.stream()
+        .map(MatchedInstall::getId)
+        .collect(Collectors.toSet());
+    missing.removeAll(
+        em.createQuery("select ai.id from AgentInstall ai where ai.id in :ids", UUID.class)
+            .setParameter("ids", missing)
+            .getResultList());
+    return missing;
+  }
+
   private void unbindByAgentType(ResourceDTO resource, AgentType agentType) {
     log.debug("Unbinding installs of agentType={} from resource={}", agentType, resource);
 
@@ -404,6 +893,8 @@ public class AgentInstallService {
         .findAllByTenantResourceAgentType(tenantId, resourceId, agentType);
 
     boundAgentInstallRepository.deleteAll(bindings);
+    boundAgentInstallKeys.delete(tenantId, resourceId, agentType);
+    boundAgentInstallCache.evict(tenantId, resourceId, agentType);
 
     boundEventSender.sendTo(OperationType.DELETE, agentType, Collections.singletonList(
         new TenantResource(tenantId, resourceId)
@@ -420,33 +911,42 @@ public class AgentInstallService {
   }
 
   private void upsertBindingToResource(ResourceDTO resource, AgentType agentType,
-                                       AgentInstall newestAgentInstall, boolean reattached) {
+                                       MatchedInstall newestAgentInstall, boolean reattached) {
     log.debug("Upserting binding of install={} to resource={}", newestAgentInstall, resource);
 
     final String tenantId = resource.getTenantId();
     final String resourceId = resource.getResourceId();
 
+    // the newest matching install is bound even if older than the one bound now, since that
+    // one no longer matches. The upsert also serializes concurrent changes to this binding.
+    boundAgentInstallKeys.assign(newestAgentInstall, Collections.singletonList(resourceId));
+
     final List<BoundAgentInstall> priorBindings = boundAgentInstallRepository
         .findAllByTenantResourceAgentType(tenantId, resourceId, agentType);
 
     boolean alreadyBound = false;
+    final List<BoundAgentInstall> staleBindings = new ArrayList<>();
     for (BoundAgentInstall priorBinding : priorBindings) {
       if (priorBinding.getAgentInstall().getId().equals(newestAgentInstall.getId())) {
         alreadyBound = true;
       }
       else {
         // just to be sure, clean up an older binding
-        boundAgentInstallRepository.delete(priorBinding);
+        staleBindings.add(priorBinding);
       }
     }
+    deleteBindings(staleBindings);
 
     if (!alreadyBound) {
       boundAgentInstallRepository.save(
           new BoundAgentInstall()
-          .setAgentInstall(newestAgentInstall)
+          .setAgentInstall(em.getReference(AgentInstall.class, newestAgentInstall.getId()))
           .setResourceId(resourceId)
       );
     }
+    if (!alreadyBound || priorBindings.size() > 1) {
+      boundAgentInstallCache.evict(tenantId, resourceId, agentType);
+    }
 
     // send an event if new binding
     // ...or a reattached envoy needs to be notified of existing binding
@@ -464,6 +964,8 @@ public class AgentInstallService {
         );
 
     boundAgentInstallRepository.deleteAll(bindings);
+    boundAgentInstallKeys.deleteAllOfResource(tenantId, resourceId);
+    boundAgentInstallCache.evictAllTypes(tenantId, resourceId);
 
     // pick out the agent types of the bindings and send an event for each
     bindings.stream()
@@ -477,14 +979,13 @@ public class AgentInstallService {
             ));
   }
 
-  private void handleReattachedEnvoy(String tenantId, String resourceId) {
+  private void handleReattachedEnvoy(String tenantId, String resourceId, EventLookups lookups) {
     log.debug("Handling reattachedEnvoy with tenantId={} resourceId={}", tenantId, resourceId);
 
     // Leverage existing bindings to just re-send an event per agent type for the re-attached
     // envoy resource
 
-    final List<AgentType> boundAgentTypes = findBoundAgentTypesByResource(
-        tenantId, resourceId);
+    final List<AgentType> boundAgentTypes = lookups.boundAgentTypes(tenantId, resourceId);
 
     for (AgentType boundAgentType : boundAgentTypes) {
       boundEventSender.sendTo(OperationType.UPSERT, boundAgentType, Collections.singletonList(
@@ -493,17 +994,327 @@ public class AgentInstallService {
     }
   }
 
-  private static ComparableVersion versionOf(BoundAgentInstall boundInstall) {
-    return new ComparableVersion(boundInstall.getAgentInstall().getAgentRelease().getVersion());
+  private ComparableVersion versionOf(BoundAgentInstall boundInstall) {
+    return agentVersionCache.versionOf(boundInstall.getAgentInstall().getAgentRelease());
+  }
+
+  private ComparableVersion versionOf(MatchedInstall install) {
+    return agentVersionCache.parse(install.getAgentVersion());
+  }
+
+  /**
+   * Looks up the install bound to the given tenant resource for the given agent type. The
+   * rendered binding is cached until a change to the resource's bindings of that type evicts it.
+   * @throws NotFoundException if there is no such binding
+   */
+  @Cacheable(cacheNames = CacheConfig.BOUND_AGENT_INSTALLS,
+      key = "T(com.rackspace.salus.acm.services.BoundAgentInstallCache).key(#tenantId, #resourceId, #agentType)")
+  public BoundAgentInstallDTO getBindingForResourceAndAgentType(String tenantId,
+                                                                String resourceId,
+                                                                AgentType agentType) {
+    // fetch everything the DTO needs in one query and render it within the transaction
+    return readOnlyTransaction.execute(status ->
+        em.createQuery(
+            "select distinct b from BoundAgentInstall b"
+                + " join fetch b.agentInstall ai"
+                + " join fetch ai.agentRelease ar"
+                + " left join fetch ar.labels"
+                + " left join fetch ai.labelSelector"
+                + " where ai.tenantId = :tenantId"
+                + " and b.resourceId = :resourceId"
+                + " and ar.type = :agentType",
+            BoundAgentInstall.class)
+            .setParameter("tenantId", tenantId)
+            .setParameter("resourceId", resourceId)
+            .setParameter("agentType", agentType)
+            // not limited since that can't be applied in SQL along with collection fetches
+            .getResultList()
+            .stream()
+            .findFirst()
+            .map(BoundAgentInstallDTO::new)
+            .orElseThrow(() -> new NotFoundException(
+                "Could find find agent install for given resource and agent type"))
+    );
+  }
+
+  /**
+   * Locates the bindings identified by the given lookups, passing each rendered binding to the
+   * given consumer as it is retrieved. Lookups without a binding are skipped.
+   * <p>
+   *   The lookups are resolved in chunks, each with one query that fetches the bindings
+   *   along with their installs and releases, so that only a chunk's bindings are held at a time.
+   * </p>
+   */
+  public void findBindings(List<BoundAgentInstallLookup> lookups,
+                           Consumer<BoundAgentInstallDTO> consumer) {
+    for (int start = 0; start < lookups.size(); start += BINDING_QUERY_CHUNK_SIZE) {
+      final List<BoundAgentInstallLookup> chunk = lookups.subList(
+          start, Math.min(start + BINDING_QUERY_CHUNK_SIZE, lookups.size()));
+
+      final Set<String> requested = chunk.stream()
+          .map(lookup -> BoundAgentInstallCache.key(
+              lookup.getTenantId(), lookup.getResourceId(), lookup.getAgentType()))
+          .collect(Collectors.toSet());
+
+      final List<BoundAgentInstallDTO> found = readOnlyTransaction.execute(status ->
+          em.createQuery(
+              "select distinct b from BoundAgentInstall b"
+                  + " join fetch b.agentInstall ai"
+                  + " join fetch ai.agentRelease ar"
+                  + " left join fetch ar.labels"
+                  + " left join fetch ai.labelSelector"
+                  + " where ai.tenantId in :tenantIds"
+                  + " and b.resourceId in :resourceIds"
+                  + " and ar.type in :agentTypes",
+              BoundAgentInstall.class)
+              .setParameter("tenantIds", chunk.stream()
+                  .map(BoundAgentInstallLookup::getTenantId).collect(Collectors.toSet()))
+              .setParameter("resourceIds", chunk.stream()
+                  .map(BoundAgentInstallLookup::getResourceId).collect(Collectors.toSet()))
+              .setParameter("agentTypes", chunk.stream()
+                  .map(BoundAgentInstallLookup::getAgentType).collect(Collectors.toSet()))
+              .getResultList()
+              .stream()
+              // the IN predicates are a superset of the requested combinations
+              .filter(binding -> requested.contains(BoundAgentInstallCache.key(
+                  binding.getAgentInstall().getTenantId(),
+                  binding.getResourceId(),
+                  binding.getAgentInstall().getAgentRelease().getType())))
+              .map(BoundAgentInstallDTO::new)
+              .collect(Collectors.toList())
+      );
+
+      if (found != null) {
+        found.forEach(consumer);
+      }
+    }
+  }
+
+  /**
+   * Passes every install of the given tenant and then every binding of those installs to the
+   * given consumers.
+   * <p>
+   *   The bindings are read through a forward-only, streaming result set of just their resource
+   *   and install IDs. Each binding is rendered from its already rendered install, so memory use
+   *   depends on the tenant's number of installs, not on its number of bindings.
+   * </p>
+   * <p>
+   *   The read-only transaction, and with it a connection and the result set, stay open until
+   *   the consumers have taken every binding. Callers writing to a client are expected to bound
+   *   that time, as the export endpoint does with its request timeout, after which a failing
+   *   consumer rolls back the transaction and closes the result set.
+   * </p>
+   */
+  public void exportInstalls(String tenantId,
+                             Consumer<AgentInstallDTO> installConsumer,
+                             Consumer<BoundAgentInstallDTO> bindingConsumer) {
+    readOnlyTransaction.execute(status -> {
+      final Map<UUID, AgentInstallDTO> installs = new HashMap<>();
+      em.createQuery(
+          "select distinct ai from AgentInstall ai"
+              + " join fetch ai.agentRelease ar"
+              + " left join fetch ar.labels"
+              + " left join fetch ai.labelSelector"
+              + " where ai.tenantId = :tenantId"
+              + " order by ai.createdTimestamp",
+          AgentInstall.class)
+          .setParameter("tenantId", tenantId)
+          .getResultList()
+          .forEach(agentInstall -> {
+            final AgentInstallDTO dto = new AgentInstallDTO(agentInstall);
+            installs.put(dto.getId(), dto);
+            installConsumer.accept(dto);
+          });
+
+      if (installs.isEmpty()) {
+        return null;
+      }
+      // the installs are no longer needed as entities
+      em.clear();
+
+      final Session session = em.unwrap(Session.class);
+      try (ScrollableResults rows = session.createQuery(
+          "select b.resourceId, ai.id from BoundAgentInstall b"
+              + " join b.agentInstall ai"
+              + " where ai.tenantId = :tenantId")
+          .setParameter("tenantId", tenantId)
+          // has the MySQL driver stream rows rather than read the whole result
+          .setFetchSize(Integer.MIN_VALUE)
+          .setReadOnly(true)
+          .scroll(ScrollMode.FORWARD_ONLY)) {
+
+        while (rows.next()) {
+          final Object[] row = rows.get();
+          bindingConsumer.accept(new BoundAgentInstallDTO()
+              .setResourceId((String) row[0])
+              .setAgentInstall(installs.get((UUID) row[1])));
+        }
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Retrieves a page of the installs of the given tenant.
+   * <p>
+   *   The page's install IDs are selected first and then the installs are fetched along with
+   *   their releases and label maps, so a page takes the same three statements, including the
+   *   count, regardless of its size.
+   * </p>
+   */
+  public Page<AgentInstallDTO> getAgentInstalls(String tenantId, Pageable pageable) {
+    return readOnlyTransaction.execute(status -> {
+      final Long total = em.createQuery(
+          "select count(ai) from AgentInstall ai where ai.tenantId = :tenantId", Long.class)
+          .setParameter("tenantId", tenantId)
+          .getSingleResult();
+
+      final List<UUID> ids = em.createQuery(
+          QueryUtils.applySorting(
+              "select ai.id from AgentInstall ai where ai.tenantId = :tenantId",
+              pageable.getSort(), "ai"),
+          UUID.class)
+          .setParameter("tenantId", tenantId)
+          .setFirstResult((int) pageable.getOffset())
+          .setMaxResults(pageable.getPageSize())
+          .getResultList();
+
+      return new PageImpl<>(renderInstalls(ids), pageable, total);
+    });
+  }
+
+  /**
+   * Retrieves the installs of the given tenant ordered by creation, starting after the given
+   * cursor. The position is located by a keyset predicate, so neither the page depth nor the
+   * tenant's total number of installs affects the cost of retrieving a page.
+   *
+   * @param cursor an encoded cursor from a previous page or null to start at the beginning
+   * @param size the maximum number of installs to retrieve
+   * @throws InvalidCursorException if the given cursor is malformed
+   */
+  public CursorPage<AgentInstallDTO> getAgentInstallsAfter(String tenantId, String cursor,
+                                                           int size) {
+    final KeysetCursor after = KeysetCursor.decode(cursor);
+
+    return readOnlyTransaction.execute(status -> {
+      final TypedQuery<Object[]> query = em.createQuery(
+          "select ai.id, ai.createdTimestamp from AgentInstall ai"
+              + " where ai.tenantId = :tenantId"
+              + (after != null ?
+              " and (ai.createdTimestamp > :createdTimestamp"
+                  + " or (ai.createdTimestamp = :createdTimestamp and ai.id > :id))" : "")
+              + " order by ai.createdTimestamp, ai.id",
+          Object[].class)
+          .setParameter("tenantId", tenantId)
+          // one extra row indicates there is a next page without having to count
+          .setMaxResults(size + 1);
+      if (after != null) {
+        query.setParameter("createdTimestamp", after.timestampKey())
+            .setParameter("id", after.getId());
+      }
+      final List<Object[]> rows = query.getResultList();
+
+      final List<Object[]> pageRows = rows.subList(0, Math.min(size, rows.size()));
+      final List<UUID> ids = pageRows.stream()
+          .map(row -> (UUID) row[0])
+          .collect(Collectors.toList());
+
+      final CursorPage<AgentInstallDTO> page = new CursorPage<AgentInstallDTO>()
+          .setContent(renderInstalls(ids));
+      if (rows.size() > size) {
+        final Object[] last = pageRows.get(pageRows.size() - 1);
+        page.setNext(KeysetCursor.of((Instant) last[1], (UUID) last[0]).encode());
+      }
+      return page;
+    });
   }
 
-  private static ComparableVersion versionOf(AgentInstall install) {
-    return new ComparableVersion(install.getAgentRelease().getVersion());
+  /**
+   * Fetches the given installs, along with everything their DTOs reference, in one query.
+   * Must be called within a transaction.
+   *
+   * @return the rendered installs in the same order as the given IDs
+   */
+  private List<AgentInstallDTO> renderInstalls(List<UUID> ids) {
+    if (ids.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    final Map<UUID, AgentInstallDTO> installs = new HashMap<>();
+    em.createQuery(
+        "select distinct ai from AgentInstall ai"
+            + " join fetch ai.agentRelease ar"
+            + " left join fetch ar.labels"
+            + " left join fetch ai.labelSelector"
+            + " where ai.id in :ids",
+        AgentInstall.class)
+        .setParameter("ids", ids)
+        .getResultList()
+        .forEach(agentInstall ->
+            installs.put(agentInstall.getId(), new AgentInstallDTO(agentInstall)));
+
+    return ids.stream()
+        .map(installs::get)
+        .filter(Objects::nonNull)
+        .collect(Collectors.toList());
   }
 
   public ResourceDTO findResourceByTenantIdAndResourceId(String tenantId, String resourceId) {
-    return resourceRepository.findByTenantIdAndResourceId(tenantId, resourceId)
-        .map(resource -> new ResourceDTO(resource, null))
-        .orElse(null);
+    return resourceLookupCache.get(tenantId, resourceId);
+  }
+
+  /**
+   * @return the given resource IDs mapped to their resource or null when the resource
+   * does not exist
+   */
+  Map<String, ResourceDTO> findResourcesByTenantIdAndResourceIds(String tenantId,
+                                                                 Collection<String> resourceIds) {
+    return resourceLookupCache.getAll(tenantId, resourceIds);
+  }
+
+  /**
+   * @return the given resource IDs mapped to the distinct agent types currently bound to each
+   */
+  Map<String, List<AgentType>> findBoundAgentTypesByResources(String tenantId,
+                                                              Collection<String> resourceIds) {
+    final Map<String, List<AgentType>> bound = new HashMap<>();
+    resourceIds.forEach(resourceId -> bound.put(resourceId, new ArrayList<>()));
+
+    em.createQuery(
+        "select distinct b.resourceId, ai.agentRelease.type from BoundAgentInstall b"
+            + " join b.agentInstall ai"
+            + " where ai.tenantId = :tenantId and b.resourceId in :resourceIds",
+        Object[].class)
+        .setParameter("tenantId", tenantId)
+        .setParameter("resourceIds", resourceIds)
+        .getResultList()
+        .forEach(row -> bound.get((String) row[0]).add((AgentType) row[1]));
+
+    return bound;
+  }
+
+  /**
+   * Holds resources and bound agent types pre-fetched for a batch of resource events. Each entry
+   * is handed out only once since handling an event can change what a later event for the
+   * same resource would see; anything not pre-fetched is queried individually.
+   */
+  private class EventLookups {
+    final Map<String, ResourceDTO> resources = new HashMap<>();
+    final Map<String, List<AgentType>> boundAgentTypes = new HashMap<>();
+
+    ResourceDTO resource(String tenantId, String resourceId) {
+      if (resources.containsKey(resourceId)) {
+        return resources.remove(resourceId);
+      }
+      return findResourceByTenantIdAndResourceId(tenantId, resourceId);
+    }
+
+    List<AgentType> boundAgentTypes(String tenantId, String resourceId) {
+      final List<AgentType> prefetched = boundAgentTypes.remove(resourceId);
+      if (prefetched != null) {
+        return prefetched;
+      }
+      return findBoundAgentTypesByResource(tenantId, resourceId);
+    }
   }
 }
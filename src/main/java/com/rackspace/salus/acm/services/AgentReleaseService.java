@@ -21,21 +21,85 @@ import com.rackspace.salus.common.config.MetricTags;
 import com.rackspace.salus.common.config.MetricTagValues;
 import com.rackspace.salus.telemetry.entities.AgentRelease;
 import com.rackspace.salus.telemetry.repositories.AgentReleaseRepository;
+import com.rackspace.salus.acm.config.CacheConfig;
 import com.rackspace.salus.acm.web.model.AgentReleaseCreate;
+import com.rackspace.salus.acm.web.model.AgentReleaseDTO;
+import com.rackspace.salus.acm.web.model.CursorPage;
 import com.rackspace.salus.telemetry.errors.AlreadyExistsException;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
+import com.rackspace.salus.telemetry.model.AgentType;
+import com.rackspace.salus.telemetry.model.NotFoundException;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.annotation.Caching;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.query.QueryUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 
 @Service
 @Slf4j
 public class AgentReleaseService {
 
+  private static final String INSERT_SORT_KEY =
+      "INSERT INTO agent_release_sort_keys (agent_release_id, type, sort_key) VALUES (?, ?, ?)";
+  private static final String DELETE_SORT_KEY =
+      "DELETE FROM agent_release_sort_keys WHERE agent_release_id = ?";
+  private static final String COUNT_BY_TYPE =
+      "SELECT COUNT(*) FROM agent_releases WHERE type = ?";
+  // driven from the releases so that any release still missing its sort key, such as one
+  // created by another instance mid-upgrade, is listed last rather than left out
+  private static final String SELECT_IDS_BY_TYPE_NEWEST_FIRST =
+      "SELECT r.id FROM agent_releases r"
+          + " LEFT JOIN agent_release_sort_keys k ON k.agent_release_id = r.id"
+          + " WHERE r.type = ?"
+          + " ORDER BY COALESCE(k.sort_key, '') DESC, r.id"
+          + " LIMIT ? OFFSET ?";
+  // releases after a cursor when ordered by descending sort key and then ascending ID
+  private static final String SELECT_IDS_BY_TYPE_NEWEST_FIRST_AFTER =
+      "SELECT r.id, COALESCE(k.sort_key, '') FROM agent_releases r"
+          + " LEFT JOIN agent_release_sort_keys k ON k.agent_release_id = r.id"
+          + " WHERE r.type = ?"
+          + " AND (COALESCE(k.sort_key, '') < ?"
+          + " OR (COALESCE(k.sort_key, '') = ? AND r.id > ?))"
+          + " ORDER BY COALESCE(k.sort_key, '') DESC, r.id"
+          + " LIMIT ?";
+  private static final String SELECT_IDS_BY_TYPE_NEWEST_FIRST_FROM_START =
+      "SELECT r.id, COALESCE(k.sort_key, '') FROM agent_releases r"
+          + " LEFT JOIN agent_release_sort_keys k ON k.agent_release_id = r.id"
+          + " WHERE r.type = ?"
+          + " ORDER BY COALESCE(k.sort_key, '') DESC, r.id"
+          + " LIMIT ?";
+  private static final String SELECT_RELEASES_MISSING_SORT_KEYS =
+      "SELECT r.id FROM agent_releases r"
+          + " LEFT JOIN agent_release_sort_keys k ON k.agent_release_id = r.id"
+          + " WHERE k.agent_release_id IS NULL";
+  private static final String DELETE_ORPHANED_SORT_KEYS =
+      "DELETE k FROM agent_release_sort_keys k"
+          + " LEFT JOIN agent_releases r ON r.id = k.agent_release_id"
+          + " WHERE r.id IS NULL";
+
   private final AgentReleaseRepository repository;
+  private final JdbcTemplate jdbcTemplate;
+  private final EntityManager em;
 
   MeterRegistry meterRegistry;
 
@@ -43,15 +107,19 @@ public class AgentReleaseService {
   private final Counter.Builder agentReleaseSuccess;
 
   @Autowired
-  public AgentReleaseService(AgentReleaseRepository repository, MeterRegistry meterRegistry) {
+  public AgentReleaseService(AgentReleaseRepository repository, JdbcTemplate jdbcTemplate,
+                             EntityManager em, MeterRegistry meterRegistry) {
     this.repository = repository;
+    this.jdbcTemplate = jdbcTemplate;
+    this.em = em;
     this.meterRegistry = meterRegistry;
     this.agentReleaseSuccess = Counter.builder(MetricNames.SERVICE_OPERATION_SUCCEEDED)
         .tag(MetricTags.SERVICE_METRIC_TAG,"AgentRelease");
   }
 
+  @Transactional
+  @CacheEvict(cacheNames = CacheConfig.AGENT_RELEASES_BY_TYPE, allEntries = true)
   public AgentRelease create(AgentReleaseCreate in) {
-
     final List<AgentRelease> existing = repository
         .findAllByTypeAndVersion(in.getType(), in.getVersion());
     for (AgentRelease agentRelease : existing) {
@@ -70,6 +138,7 @@ public class AgentReleaseService {
 
     final AgentRelease saved = repository
         .save(agentRelease);
+    saveSortKey(saved);
 
     log.info("Created agentRelease={}", saved);
     agentReleaseSuccess
@@ -78,11 +147,199 @@ public class AgentReleaseService {
     return saved;
   }
 
+  @Caching(evict = {
+      @CacheEvict(cacheNames = CacheConfig.AGENT_RELEASES_BY_ID, key = "#agentReleaseId"),
+      @CacheEvict(cacheNames = CacheConfig.AGENT_RELEASES_BY_TYPE, allEntries = true)
+  })
   public void delete(UUID agentReleaseId) {
     log.info("Deleting agentReleaseId={}", agentReleaseId);
     repository.deleteById(agentReleaseId);
+    jdbcTemplate.update(DELETE_SORT_KEY, agentReleaseId.toString());
     agentReleaseSuccess
         .tags(MetricTags.OPERATION_METRIC_TAG, MetricTagValues.REMOVE_OPERATION,MetricTags.OBJECT_TYPE_METRIC_TAG,"agentRelease")
         .register(meterRegistry).increment();
   }
+
+  @Cacheable(cacheNames = CacheConfig.AGENT_RELEASES_BY_ID, key = "#agentReleaseId")
+  public AgentReleaseDTO getAgentRelease(UUID agentReleaseId) {
+    return repository.findById(agentReleaseId)
+        .map(AgentReleaseDTO::new)
+        .orElseThrow(() -> new NotFoundException("Unable to find agent release"));
+  }
+
+  /**
+   * Retrieves a page of all releases. The page's release IDs are selected first and then the
+   * releases are fetched along with their labels, so a page takes the same three statements,
+   * including the count, regardless of its size.
+   */
+  public Page<AgentReleaseDTO> getAgentReleases(Pageable pageable) {
+    final Long total = em.createQuery("select count(ar) from AgentRelease ar", Long.class)
+        .getSingleResult();
+
+    final List<UUID> ids = em.createQuery(
+        QueryUtils.applySorting("select ar.id from AgentRelease ar", pageable.getSort(), "ar"),
+        UUID.class)
+        .setFirstResult((int) pageable.getOffset())
+        .setMaxResults(pageable.getPageSize())
+        .getResultList();
+
+    return new PageImpl<>(
+        findAllByIdInOrder(ids).stream()
+            .map(AgentReleaseDTO::new)
+            .collect(Collectors.toList()),
+        pageable, total);
+  }
+
+  /**
+   * Provides the same page as {@link #findAllByTypeNewestFirst(AgentType, Pageable)}, but
+   * converted and cached.
+   */
+  @Cacheable(cacheNames = CacheConfig.AGENT_RELEASES_BY_TYPE,
+      key = "#agentType.name() + ':' + #pageable.pageNumber + ':' + #pageable.pageSize")
+  public Page<AgentReleaseDTO> getAgentReleasesForType(AgentType agentType, Pageable pageable) {
+    return findAllByTypeNewestFirst(agentType, pageable)
+        .map(AgentReleaseDTO::new);
+  }
+
+  /**
+   * Retrieves a page of the releases of the given type ordered from newest to oldest version.
+   * The ordering and paging is performed by the database using the sort keys maintained
+   * alongside the releases. Releases without a sort key yet are last, ordered by ID.
+   */
+  public Page<AgentRelease> findAllByTypeNewestFirst(AgentType agentType, Pageable pageable) {
+    final Long total = jdbcTemplate.queryForObject(COUNT_BY_TYPE, Long.class, agentType.name());
+
+    final List<UUID> ids = jdbcTemplate.queryForList(SELECT_IDS_BY_TYPE_NEWEST_FIRST,
+        String.class, agentType.name(), pageable.getPageSize(), pageable.getOffset())
+        .stream()
+        .map(UUID::fromString)
+        .collect(Collectors.toList());
+
+    return new PageImpl<>(findAllByIdInOrder(ids), pageable, total != null ? total : 0);
+  }
+
+  /**
+   * Retrieves the releases of the given type ordered from newest to oldest version, starting
+   * after the given cursor. Unlike {@link #findAllByTypeNewestFirst(AgentType, Pageable)}, the
+   * position is located by a keyset predicate on the sort key and no total is counted.
+   *
+   * @param cursor an encoded cursor from a previous page or null to start at the beginning
+   * @param size the maximum number of releases to retrieve
+   * @throws InvalidCursorException if the given cursor is malformed
+   */
+  public CursorPage<AgentReleaseDTO> getAgentReleasesForTypeAfter(AgentType agentType,
+                                                                  String cursor, int size) {
+    final KeysetCursor after = KeysetCursor.decode(cursor);
+
+    // one extra row indicates there is a next page without having to count
+    final List<KeysetCursor> rows = after != null ?
+        jdbcTemplate.query(SELECT_IDS_BY_TYPE_NEWEST_FIRST_AFTER,
+            (resultSet, rowNum) -> new KeysetCursor(
+                resultSet.getString(2), UUID.fromString(resultSet.getString(1))),
+            agentType.name(), after.getKey(), after.getKey(), after.getId().toString(), size + 1) :
+        jdbcTemplate.query(SELECT_IDS_BY_TYPE_NEWEST_FIRST_FROM_START,
+            (resultSet, rowNum) -> new KeysetCursor(
+                resultSet.getString(2), UUID.fromString(resultSet.getString(1))),
+            agentType.name(), size + 1);
+
+    return toCursorPage(rows, size);
+  }
+
+  /**
+   * Retrieves all releases ordered by creation, starting after the given cursor, without
+   * counting the total number of releases.
+   *
+   * @param cursor an encoded cursor from a previous page or null to start at the beginning
+   * @param size the maximum number of releases to retrieve
+   * @throws InvalidCursorException if the given cursor is malformed
+   */
+  public CursorPage<AgentReleaseDTO> getAgentReleasesAfter(String cursor, int size) {
+    final KeysetCursor after = KeysetCursor.decode(cursor);
+
+    final TypedQuery<Object[]> query = em.createQuery(
+        "select ar.id, ar.createdTimestamp from AgentRelease ar"
+            + (after != null ?
+            " where ar.createdTimestamp > :createdTimestamp"
+                + " or (ar.createdTimestamp = :createdTimestamp and ar.id > :id)" : "")
+            + " order by ar.createdTimestamp, ar.id",
+        Object[].class)
+        .setMaxResults(size + 1);
+    if (after != null) {
+      query.setParameter("createdTimestamp", after.timestampKey())
+          .setParameter("id", after.getId());
+    }
+
+    final List<KeysetCursor> rows = query.getResultList().stream()
+        .map(row -> KeysetCursor.of((Instant) row[1], (UUID) row[0]))
+        .collect(Collectors.toList());
+
+    return toCursorPage(rows, size);
+  }
+
+  /**
+   * @param rows the positions of up to one more release than the page size
+   */
+  private CursorPage<AgentReleaseDTO> toCursorPage(List<KeysetCursor> rows, int size) {
+    final List<KeysetCursor> pageRows = rows.subList(0, Math.min(size, rows.size()));
+
+    final CursorPage<AgentReleaseDTO> page = new CursorPage<AgentReleaseDTO>()
+        .setContent(findAllByIdInOrder(pageRows.stream()
+            .map(KeysetCursor::getId)
+            .collect(Collectors.toList()))
+            .stream()
+            .map(AgentReleaseDTO::new)
+            .collect(Collectors.toList()));
+    if (rows.size() > size) {
+      page.setNext(pageRows.get(pageRows.size() - 1).encode());
+    }
+    return page;
+  }
+
+  private List<AgentRelease> findAllByIdInOrder(List<UUID> ids) {
+    if (ids.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    // fetch the labels along with the releases rather than one by one while rendering, and
+    // retain the ordering of the given IDs
+    final Map<UUID, AgentRelease> releases = em.createQuery(
+        "select distinct ar from AgentRelease ar left join fetch ar.labels where ar.id in :ids",
+        AgentRelease.class)
+        .setParameter("ids", ids)
+        .getResultList()
+        .stream()
+        .collect(Collectors.toMap(AgentRelease::getId, Function.identity()));
+
+    return ids.stream()
+        .map(releases::get)
+        .filter(Objects::nonNull)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Computes sort keys for releases that don't have one, such as those created before sort keys
+   * were maintained, and removes the keys of releases that no longer exist.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void backfillSortKeys() {
+    final List<UUID> ids = jdbcTemplate
+        .queryForList(SELECT_RELEASES_MISSING_SORT_KEYS, String.class)
+        .stream()
+        .map(UUID::fromString)
+        .collect(Collectors.toList());
+
+    if (!ids.isEmpty()) {
+      repository.findAllById(ids).forEach(this::saveSortKey);
+      log.info("Backfilled sort keys of count={} agent releases", ids.size());
+    }
+
+    jdbcTemplate.update(DELETE_ORPHANED_SORT_KEYS);
+  }
+
+  private void saveSortKey(AgentRelease agentRelease) {
+    jdbcTemplate.update(INSERT_SORT_KEY,
+        agentRelease.getId().toString(),
+        agentRelease.getType().name(),
+        AgentVersionSortKey.of(agentRelease.getVersion()));
+  }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
+import com.rackspace.salus.telemetry.entities.AgentRelease;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.maven.artifact.versioning.ComparableVersion;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the parsed form of agent release versions so that sorting and reconciling releases
+ * doesn't re-parse the same version strings on every comparison.
+ * <p>
+ *   The cache is bounded by <code>salus.agent-catalog.version-cache-size</code>; versions seen
+ *   once it is full are parsed without being retained.
+ * </p>
+ */
+@Component
+public class AgentVersionCache {
+
+  private final ConcurrentMap<String, ComparableVersion> versions = new ConcurrentHashMap<>();
+  private final int maxSize;
+  private final Counter hits;
+  private final Counter misses;
+
+  @Autowired
+  public AgentVersionCache(AgentCatalogProperties properties, MeterRegistry meterRegistry) {
+    this.maxSize = properties.getVersionCacheSize();
+    this.hits = meterRegistry.counter("agentVersionCache", "result", "hit");
+    this.misses = meterRegistry.counter("agentVersionCache", "result", "miss");
+    meterRegistry.gaugeMapSize("agentVersionCacheSize", Tags.empty(), versions);
+  }
+
+  public ComparableVersion parse(String version) {
+    final ComparableVersion cached = versions.get(version);
+    if (cached != null) {
+      hits.increment();
+      return cached;
+    }
+
+    misses.increment();
+    final ComparableVersion parsed = new ComparableVersion(version);
+    if (versions.size() < maxSize) {
+      versions.putIfAbsent(version, parsed);
+    }
+    return parsed;
+  }
+
+  public ComparableVersion versionOf(AgentRelease agentRelease) {
+    return parse(agentRelease.getVersion());
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Computes a string form of an agent release version that sorts lexically, such as in an
+ * <code>ORDER BY</code>, the same way {@link org.apache.maven.artifact.versioning.ComparableVersion}
+ * orders the versions.
+ * <p>
+ *   The ordering of <code>ComparableVersion</code> is reproduced exactly for versions of the
+ *   form <code>N(.N)*</code> with an optional <code>-qualifier</code>, where the qualifier is
+ *   one of alpha, beta, milestone, rc, cr or sp, optionally followed directly by a number, or
+ *   one of snapshot, ga, final or release, and for common variations such as
+ *   <code>1.13.3-1</code>, <code>v1.0</code> or <code>2.0.0-beta.1</code>. Every other version
+ *   still has a key, computed from the same items <code>ComparableVersion</code> parses but
+ *   without all of the nesting of its sub-lists, so unusual versions may sort as equal or in a
+ *   different order, which <code>ComparableVersion</code> doesn't order transitively anyway.
+ *   Callers that need the exact order of two versions, such as binding reconciliation, compare
+ *   the versions themselves.
+ * </p>
+ * Each item of a version is encoded with a leading marker:
+ * <ul>
+ *   <li><code>a</code> followed by a rank for pre-release qualifiers, alpha through snapshot</li>
+ *   <li><code>b</code> at the end of the version</li>
+ *   <li><code>c</code> for sp, which sorts after a release, and <code>cz</code> followed by
+ *   the hex encoded characters and a <code>!</code> for any other qualifier, which sort after
+ *   sp and by their characters</li>
+ *   <li><code>c~</code> ahead of a sub-list of numbers that follows a number, such as the
+ *   <code>-1</code> of <code>1.13.3-1</code>, which sorts after qualifiers and before numbers</li>
+ *   <li><code>d</code> followed by a two digit length for numbers, so that longer numbers sort
+ *   after shorter ones</li>
+ * </ul>
+ * As with <code>ComparableVersion</code>, trailing zeros and release qualifiers are
+ * insignificant, so "1.0.0" and "1.0-final" have the same key as "1". Keys are truncated to
+ * {@link #MAX_LENGTH} and numbers to {@link #MAX_NUMBER_LENGTH} digits, so versions that only
+ * differ beyond those sort as equal.
+ */
+public final class AgentVersionSortKey {
+
+  /**
+   * The maximum length of a sort key, which matches the column holding them.
+   */
+  static final int MAX_LENGTH = 255;
+
+  static final int MAX_NUMBER_LENGTH = 99;
+
+  private static final char PRE_RELEASE = 'a';
+  private static final char END = 'b';
+  private static final char POST_RELEASE = 'c';
+  private static final char NUMBER = 'd';
+  private static final String OTHER_QUALIFIER = "cz";
+  private static final char OTHER_QUALIFIER_END = '!';
+  private static final String NUMBER_LIST = "c~";
+  private static final String ZERO = NUMBER + "00";
+
+  private AgentVersionSortKey() {
+  }
+
+  public static String of(String version) {
+    final StringBuilder key = new StringBuilder();
+    String lastItem = "";
+    for (String segment : segments(version.toLowerCase(Locale.ENGLISH))) {
+      final List<String> items = encodeItems(segment);
+      while (!items.isEmpty() && isRelease(items.get(items.size() - 1))) {
+        items.remove(items.size() - 1);
+      }
+      if (items.isEmpty()) {
+        continue;
+      }
+      // a sub-list of numbers following a number sorts before a number in its place
+      if (isNumber(items.get(0)) && isNumber(lastItem)) {
+        key.append(NUMBER_LIST);
+      }
+      items.forEach(key::append);
+      lastItem = items.get(items.size() - 1);
+    }
+    key.append(END);
+
+    return key.length() > MAX_LENGTH ? key.substring(0, MAX_LENGTH) : key.toString();
+  }
+
+  /**
+   * Splits the version where <code>ComparableVersion</code> starts a sub-list, which is at each
+   * dash and where a number is followed by something other than a dot. The trailing zeros of
+   * each sub-list are insignificant.
+   */
+  private static List<String> segments(String version) {
+    final List<String> segments = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < version.length(); i++) {
+      final char c = version.charAt(i);
+      if (c == '-') {
+        segments.add(version.substring(start, i));
+        start = i + 1;
+      } else if (i > start && c != '.' && !Character.isDigit(c)
+          && Character.isDigit(version.charAt(i - 1))) {
+        segments.add(version.substring(start, i));
+        start = i;
+      }
+    }
+    segments.add(version.substring(start));
+    return segments;
+  }
+
+  private static boolean isNumber(String item) {
+    return !item.isEmpty() && item.charAt(0) == NUMBER;
+  }
+
+  /**
+   * @return whether the encoded item is equivalent to a release and so insignificant when
+   * trailing
+   */
+  private static boolean isRelease(String item) {
+    return item.isEmpty() || item.equals(ZERO);
+  }
+
+  /**
+   * Splits the segment into items at dots and where other characters are followed by a number.
+   * @return the encoded items, where a release qualifier is encoded as an empty string
+   */
+  private static List<String> encodeItems(String segment) {
+    final List<String> tokens = new ArrayList<>();
+    for (String part : segment.split("\\.", -1)) {
+      if (part.isEmpty()) {
+        tokens.add("0");
+        continue;
+      }
+      int start = 0;
+      for (int i = 1; i <= part.length(); i++) {
+        if (i == part.length() ||
+            Character.isDigit(part.charAt(i)) != Character.isDigit(part.charAt(start))) {
+          tokens.add(part.substring(start, i));
+          start = i;
+        }
+      }
+    }
+
+    final List<String> items = new ArrayList<>(tokens.size());
+    for (int i = 0; i < tokens.size(); i++) {
+      final String token = tokens.get(i);
+      if (Character.isDigit(token.charAt(0))) {
+        items.add(encodeNumber(token));
+      } else {
+        final boolean followedByNumber = i + 1 < tokens.size() &&
+            Character.isDigit(tokens.get(i + 1).charAt(0));
+        items.add(encodeQualifier(token, followedByNumber));
+      }
+    }
+    return items;
+  }
+
+  private static String encodeNumber(String digits) {
+    int start = 0;
+    while (start < digits.length() && digits.charAt(start) == '0') {
+      start++;
+    }
+    if (start == digits.length()) {
+      return ZERO;
+    }
+    final String number = digits.substring(start,
+        Math.min(digits.length(), start + MAX_NUMBER_LENGTH));
+    return NUMBER + String.format("%02d", number.length()) + number;
+  }
+
+  private static String encodeQualifier(String qualifier, boolean followedByNumber) {
+    final int rank = preReleaseRank(qualifier, followedByNumber);
+    if (rank > 0) {
+      return String.valueOf(PRE_RELEASE) + rank;
+    }
+    switch (qualifier) {
+      case "ga":
+      case "final":
+      case "release":
+        return "";
+      case "sp":
+        return String.valueOf(POST_RELEASE);
+      default:
+        final StringBuilder encoded = new StringBuilder(OTHER_QUALIFIER);
+        for (int i = 0; i < qualifier.length(); i++) {
+          encoded.append(String.format("%04x", (int) qualifier.charAt(i)));
+        }
+        return encoded.append(OTHER_QUALIFIER_END).toString();
+    }
+  }
+
+  /**
+   * @param followedByNumber whether the qualifier is directly followed by a number, which
+   * is when single letter aliases, such as the <code>a</code> of <code>1.0a1</code>, apply
+   * @return the order of the given pre-release qualifier or zero if it is not one
+   */
+  private static int preReleaseRank(String qualifier, boolean followedByNumber) {
+    switch (qualifier) {
+      case "alpha":
+        return 1;
+      case "beta":
+        return 2;
+      case "milestone":
+        return 3;
+      case "rc":
+      case "cr":
+        return 4;
+      case "snapshot":
+        return 5;
+      case "a":
+        return followedByNumber ? 1 : 0;
+      case "b":
+        return followedByNumber ? 2 : 0;
+      case "m":
+        return followedByNumber ? 3 : 0;
+      default:
+        return 0;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.acm.config.CacheConfig;
+import com.rackspace.salus.common.messaging.KafkaTopicProperties;
+import com.rackspace.salus.telemetry.messaging.AgentInstallChangeEvent;
+import com.rackspace.salus.telemetry.model.AgentType;
+import java.util.List;
+import java.util.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Evicts the cached bound agent install lookups made by
+ * {@link AgentInstallService#getBindingForResourceAndAgentType(String, String, AgentType)}.
+ * <p>
+ *   Bindings changed by this instance are evicted directly. Every instance also consumes all of
+ *   the agent install change events, each with its own consumer group, so that bindings changed
+ *   by other instances are evicted too.
+ * </p>
+ * <p>
+ *   Since each consumer group is new and starts at the latest offset, the events sent while an
+ *   instance is starting, before its consumer is assigned partitions, are never seen by that
+ *   instance. Lookups it caches during that window can miss the eviction of a change made by
+ *   another instance and are then only refreshed once
+ *   <code>salus.agent-catalog.bound-install-cache-ttl</code> expires them.
+ * </p>
+ */
+@Component
+@Slf4j
+public class BoundAgentInstallCache {
+
+  private final KafkaTopicProperties kafkaTopicProperties;
+  private final CacheManager cacheManager;
+  private final String groupId;
+
+  @Autowired
+  public BoundAgentInstallCache(KafkaTopicProperties kafkaTopicProperties,
+                                CacheManager cacheManager,
+                                @Value("${spring.application.name}") String appName) {
+    this.kafkaTopicProperties = kafkaTopicProperties;
+    this.cacheManager = cacheManager;
+    this.groupId = String.join("-", appName, "bound-installs", UUID.randomUUID().toString());
+  }
+
+  public String getTopic() {
+    return kafkaTopicProperties.getInstalls();
+  }
+
+  public String getGroupId() {
+    return groupId;
+  }
+
+  public static String key(String tenantId, String resourceId, AgentType agentType) {
+    return String.join(":", tenantId, resourceId, agentType.name());
+  }
+
+  /**
+   * Evicts the binding lookup of the given tenant resource and agent type. When called within a
+   * transaction, it is evicted again after completion so that a concurrent lookup can't retain
+   * uncommitted state.
+   */
+  public void evict(String tenantId, String resourceId, AgentType agentType) {
+    final String key = key(tenantId, resourceId, agentType);
+    final Cache cache = cache();
+    cache.evict(key);
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          cache.evict(key);
+        }
+      });
+    }
+  }
+
+  /**
+   * Evicts the binding lookups of the given tenant resource across all agent types.
+   */
+  public void evictAllTypes(String tenantId, String resourceId) {
+    for (AgentType agentType : AgentType.values()) {
+      evict(tenantId, resourceId, agentType);
+    }
+  }
+
+  @KafkaListener(topics = "#{__listener.topic}", groupId = "#{__listener.groupId}")
+  public void consumeInstallChangeEvents(List<AgentInstallChangeEvent> events) {
+    log.trace("Evicting bindings of installChangeEvents={}", events.size());
+    for (AgentInstallChangeEvent event : events) {
+      if (event.getAgentType() != null) {
+        evict(event.getTenantId(), event.getResourceId(), event.getAgentType());
+      } else {
+        evictAllTypes(event.getTenantId(), event.getResourceId());
+      }
+    }
+  }
+
+  private Cache cache() {
+    return cacheManager.getCache(CacheConfig.BOUND_AGENT_INSTALLS);
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.telemetry.entities.AgentInstall;
+import com.rackspace.salus.telemetry.model.AgentType;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Maintains the <code>bound_agent_install_keys</code> table, which holds the one install bound
+ * to each tenant resource and agent type.
+ * <p>
+ *   The table's primary key is what enforces a single binding per tenant resource and agent
+ *   type. Each change to a key is a single upsert, which also locks the key's row until the
+ *   surrounding transaction completes, so concurrent changes to the bindings of the same tenant
+ *   resource and agent type are applied one after the other. The bindings themselves are
+ *   still held by the shared <code>BoundAgentInstall</code> entities.
+ * </p>
+ */
+@Component
+@Slf4j
+public class BoundAgentInstallKeys {
+
+  /**
+   * Only replaces the bound install when the given one is of a strictly newer version. The
+   * install ID is assigned first, since it compares against the prior version sort key.
+   */
+  private static final String CLAIM =
+      "INSERT INTO bound_agent_install_keys"
+          + " (tenant_id, resource_id, agent_type, agent_install_id, version_sort_key)"
+          + " VALUES (?, ?, ?, ?, ?)"
+          + " ON DUPLICATE KEY UPDATE"
+          + " agent_install_id = IF(VALUES(version_sort_key) > version_sort_key,"
+          + " VALUES(agent_install_id), agent_install_id),"
+          + " version_sort_key = IF(VALUES(version_sort_key) > version_sort_key,"
+          + " VALUES(version_sort_key), version_sort_key)";
+  private static final String ASSIGN =
+      "INSERT INTO bound_agent_install_keys"
+          + " (tenant_id, resource_id, agent_type, agent_install_id, version_sort_key)"
+          + " VALUES (?, ?, ?, ?, ?)"
+          + " ON DUPLICATE KEY UPDATE"
+          + " agent_install_id = VALUES(agent_install_id),"
+          + " version_sort_key = VALUES(version_sort_key)";
+  private static final String INSERT_IGNORE =
+      "INSERT IGNORE INTO bound_agent_install_keys"
+          + " (tenant_id, resource_id, agent_type, agent_install_id, version_sort_key)"
+          + " VALUES (?, ?, ?, ?, ?)";
+  private static final String SELECT_HELD_BY_INSTALL =
+      "SELECT resource_id FROM bound_agent_install_keys"
+          + " WHERE tenant_id = :tenantId AND agent_type = :agentType"
+          + " AND agent_install_id = :agentInstallId AND resource_id IN (:resourceIds)";
+  private static final String DELETE_KEY =
+      "DELETE FROM bound_agent_install_keys"
+          + " WHERE tenant_id = ? AND resource_id = ? AND agent_type = ?";
+  private static final String DELETE_BY_RESOURCE =
+      "DELETE FROM bound_agent_install_keys WHERE tenant_id = ? AND resource_id = ?";
+  private static final String DELETE_BY_INSTALL =
+      "DELETE FROM bound_agent_install_keys WHERE agent_install_id = ?";
+  private static final String DELETE_BY_RESOURCES =
+      "DELETE FROM bound_agent_install_keys"
+          + " WHERE tenant_id = :tenantId AND resource_id IN (:resourceIds)";
+  private static final String DELETE_BY_INSTALL_AND_RESOURCES =
+      "DELETE FROM bound_agent_install_keys"
+          + " WHERE agent_install_id = :agentInstallId AND resource_id IN (:resourceIds)";
+  private static final String DELETE_BY_TENANT =
+      "DELETE FROM bound_agent_install_keys WHERE tenant_id = ?";
+  private static final String COUNT_KEYS =
+      "SELECT COUNT(*) FROM bound_agent_install_keys";
+
+  private static final int QUERY_CHUNK_SIZE = 1000;
+
+  private final JdbcTemplate jdbcTemplate;
+  private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+  private final EntityManager em;
+
+  @Autowired
+  public BoundAgentInstallKeys(JdbcTemplate jdbcTemplate, EntityManager em) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    this.em = em;
+  }
+
+  /**
+   * Binds the given install to each of the given resources unless a resource is already bound
+   * to a same-or-newer version. Must be called within a transaction.
+   *
+   * @return the resources that are bound to the given install after the claim, which includes
+   * those that were already bound to it
+   */
+  public Set<String> claim(AgentInstall agentInstall, List<String> resourceIds) {
+    final Set<String> held = new HashSet<>();
+    if (resourceIds.isEmpty()) {
+      return held;
+    }
+
+    final String tenantId = agentInstall.getTenantId();
+    final AgentType agentType = agentInstall.getAgentRelease().getType();
+    final String sortKey = AgentVersionSortKey.of(agentInstall.getAgentRelease().getVersion());
+
+    jdbcTemplate.batchUpdate(CLAIM, resourceIds, QUERY_CHUNK_SIZE,
+        (ps, resourceId) -> {
+          ps.setString(1, tenantId);
+          ps.setString(2, resourceId);
+          ps.setString(3, agentType.name());
+          ps.setString(4, agentInstall.getId().toString());
+          ps.setString(5, sortKey);
+        });
+
+    final Map<String, Object> params = new HashMap<>();
+    params.put("tenantId", tenantId);
+    params.put("agentType", agentType.name());
+    params.put("agentInstallId", agentInstall.getId().toString());
+    for (int start = 0; start < resourceIds.size(); start += QUERY_CHUNK_SIZE) {
+      params.put("resourceIds",
+          resourceIds.subList(start, Math.min(start + QUERY_CHUNK_SIZE, resourceIds.size())));
+      held.addAll(namedParameterJdbcTemplate.queryForList(
+          SELECT_HELD_BY_INSTALL, params, String.class));
+    }
+    return held;
+  }
+
+  /**
+   * Binds the given install to each of the given resources regardless of what is currently
+   * bound. Must be called within a transaction.
+   */
+  public void assign(AgentInstall agentInstall, List<String> resourceIds) {
+    assign(agentInstall.getTenantId(), agentInstall.getAgentRelease().getType(),
+        agentInstall.getId(), agentInstall.getAgentRelease().getVersion(), resourceIds);
+  }
+
+  /**
+   * Same as {@link #assign(AgentInstall, List)} but given the summary of a matched install.
+   */
+  public void assign(MatchedInstall matchedInstall, List<String> resourceIds) {
+    assign(matchedInstall.getTenantId(), matchedInstall.getAgentType(),
+        matchedInstall.getId(), matchedInstall.getAgentVersion(), resourceIds);
+  }
+
+  private void assign(String tenantId, AgentType agentType, UUID agentInstallId,
+                      String version, List<String> resourceIds) {
+    if (resourceIds.isEmpty()) {
+      return;
+    }
+
+    final String sortKey = AgentVersionSortKey.of(version);
+    jdbcTemplate.batchUpdate(ASSIGN, resourceIds, QUERY_CHUNK_SIZE,
+        (ps, resourceId) -> {
+          ps.setString(1, tenantId);
+          ps.setString(2, resourceId);
+          ps.setString(3, agentType.name());
+          ps.setString(4, agentInstallId.toString());
+          ps.setString(5, sortKey);
+        });
+  }
+
+  public void delete(String tenantId, String resourceId, AgentType agentType) {
+    jdbcTemplate.update(DELETE_KEY, tenantId, resourceId, agentType.name());
+  }
+
+  public void deleteAllOfResource(String tenantId, String resourceId) {
+    jdbcTemplate.update(DELETE_BY_RESOURCE, tenantId, resourceId);
+  }
+
+  public void deleteAllOfInstall(UUID agentInstallId) {
+    jdbcTemplate.update(DELETE_BY_INSTALL, agentInstallId.toString());
+  }
+
+  public void deleteAllOfResources(String tenantId, List<String> resourceIds) {
+    final Map<String, Object> params = new HashMap<>();
+    params.put("tenantId", tenantId);
+    params.put("resourceIds", resourceIds);
+    namedParameterJdbcTemplate.update(DELETE_BY_RESOURCES, params);
+  }
+
+  public void deleteAllOfInstall(UUID agentInstallId, List<String> resourceIds) {
+    final Map<String, Object> params = new HashMap<>();
+    params.put("agentInstallId", agentInstallId.toString());
+    params.put("resourceIds", resourceIds);
+    namedParameterJdbcTemplate.update(DELETE_BY_INSTALL_AND_RESOURCES, params);
+  }
+
+  public void deleteAllOfTenant(String tenantId) {
+    jdbcTemplate.update(DELETE_BY_TENANT, tenantId);
+  }
+
+  /**
+   * Populates the keys from the existing bindings when there are none yet, such as when this
+   * table is first introduced. Should bindings overlap, the first one of each tenant resource
+   * and agent type is kept and the rest are reconciled as their resources next change.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void backfillKeys() {
+    final Long existing = jdbcTemplate.queryForObject(COUNT_KEYS, Long.class);
+    if (existing != null && existing > 0) {
+      return;
+    }
+
+    final List<Object[]> installs = em.createQuery(
+        "select ai.id, ai.tenantId, ar.type, ar.version from AgentInstall ai"
+            + " join ai.agentRelease ar",
+        Object[].class)
+        .getResultList();
+
+    int backfilled = 0;
+    for (Object[] install : installs) {
+      final String agentInstallId = install[0].toString();
+      final String tenantId = (String) install[1];
+      final String agentType = ((AgentType) install[2]).name();
+      final String sortKey = AgentVersionSortKey.of((String) install[3]);
+
+      final List<String> resourceIds = em.createQuery(
+          "select b.resourceId from BoundAgentInstall b where b.agentInstall.id = :id",
+          String.class)
+          .setParameter("id", install[0])
+          .getResultList();
+
+      jdbcTemplate.batchUpdate(INSERT_IGNORE, resourceIds, QUERY_CHUNK_SIZE,
+          (ps, resourceId) -> {
+            ps.setString(1, tenantId);
+            ps.setString(2, resourceId);
+            ps.setString(3, agentType);
+            ps.setString(4, agentInstallId);
+            ps.setString(5, sortKey);
+          });
+      backfilled += resourceIds.size();
+    }
+
+    if (backfilled > 0) {
+      log.info("Backfilled keys of count={} bound agent installs", backfilled);
+    }
+  }
+}
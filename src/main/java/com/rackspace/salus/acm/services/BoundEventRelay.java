@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
+import com.rackspace.salus.telemetry.messaging.AgentInstallChangeEvent;
+import com.rackspace.salus.telemetry.messaging.OperationType;
+import com.rackspace.salus.telemetry.model.AgentType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Drains the outbox written by {@link BoundEventSender}, publishing the events in the order
+ * they were recorded and removing them once the broker has acknowledged them.
+ * <p>
+ *   Instances relay one batch at a time between them by holding a lease on the relay, which
+ *   is taken and renewed in short transactions of its own. The batch is then read and
+ *   published outside of any transaction, so that no locks are held on the outbox while
+ *   waiting on the broker and the writers of new events are never blocked by the relay.
+ *   An instance failing mid-batch, or outliving its lease, leaves the batch to be published
+ *   again, which consumers already tolerate since these events are upserts and deletes of
+ *   bindings.
+ * </p>
+ */
+@Component
+@Slf4j
+public class BoundEventRelay {
+
+  private static final String UPDATE_LEASE =
+      "UPDATE agent_install_event_relay_lease"
+          + " SET holder = ?, expires_timestamp = CURRENT_TIMESTAMP(3) + INTERVAL ? SECOND"
+          + " WHERE id = 1 AND (holder = ? OR expires_timestamp < CURRENT_TIMESTAMP(3))";
+  private static final String SELECT_OUTBOX_EVENTS =
+      "SELECT id, tenant_id, resource_id, agent_type, op FROM agent_install_event_outbox"
+          + " ORDER BY id LIMIT ?";
+  private static final String DELETE_OUTBOX_EVENTS =
+      "DELETE FROM agent_install_event_outbox WHERE id IN (:ids)";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+  private final BoundEventSender boundEventSender;
+  private final AgentCatalogProperties properties;
+  private final String holder = UUID.randomUUID().toString();
+
+  @Autowired
+  public BoundEventRelay(JdbcTemplate jdbcTemplate,
+                         BoundEventSender boundEventSender,
+                         AgentCatalogProperties properties) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    this.boundEventSender = boundEventSender;
+    this.properties = properties;
+  }
+
+  @Scheduled(fixedDelayString = "#{@agentCatalogProperties.outboxRelayInterval.toMillis()}")
+  public void relayPendingEvents() {
+    int relayed;
+    do {
+      relayed = relayBatch();
+    } while (relayed >= properties.getOutboxRelayBatchSize());
+  }
+
+  /**
+   * Publishes and removes the oldest batch of outbox events, provided this instance holds the
+   * relay lease.
+   * @return the number of events relayed
+   */
+  int relayBatch() {
+    if (!renewLease()) {
+      log.trace("Relay lease is held by another instance");
+      return 0;
+    }
+
+    final List<Long> ids = new ArrayList<>();
+    final List<AgentInstallChangeEvent> events = jdbcTemplate.query(SELECT_OUTBOX_EVENTS,
+        (resultSet, rowNum) -> {
+          ids.add(resultSet.getLong("id"));
+          final String agentType = resultSet.getString("agent_type");
+          return new AgentInstallChangeEvent()
+              .setTenantId(resultSet.getString("tenant_id"))
+              .setResourceId(resultSet.getString("resource_id"))
+              .setAgentType(agentType != null ? AgentType.valueOf(agentType) : null)
+              .setOp(OperationType.valueOf(resultSet.getString("op")));
+        },
+        properties.getOutboxRelayBatchSize()
+    );
+
+    if (events.isEmpty()) {
+      return 0;
+    }
+
+    boundEventSender.publish(events);
+    namedParameterJdbcTemplate.update(DELETE_OUTBOX_EVENTS,
+        Collections.singletonMap("ids", ids));
+
+    log.debug("Relayed count={} outbox events", events.size());
+    return events.size();
+  }
+
+  /**
+   * Takes the relay lease when it is free or expired, or extends it when already held by this
+   * instance.
+   * @return true if this instance holds the lease
+   */
+  private boolean renewLease() {
+    return jdbcTemplate.update(UPDATE_LEASE,
+        holder, properties.getOutboxRelayLease().getSeconds(), holder) > 0;
+  }
+}
@@ -16,32 +16,56 @@
 
 package com.rackspace.salus.acm.services;
 
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
 import com.rackspace.salus.common.errors.RuntimeKafkaException;
 import com.rackspace.salus.telemetry.messaging.KafkaMessageKeyBuilder;
 import com.rackspace.salus.common.messaging.KafkaTopicProperties;
 import com.rackspace.salus.telemetry.messaging.AgentInstallChangeEvent;
 import com.rackspace.salus.telemetry.messaging.OperationType;
 import com.rackspace.salus.telemetry.model.AgentType;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
 
+/**
+ * Publishes {@link AgentInstallChangeEvent}s by way of a transactional outbox: events are
+ * written to the outbox table within the caller's transaction and later published to Kafka
+ * in batches by {@link BoundEventRelay}.
+ */
 @Service
 @Slf4j
 public class BoundEventSender {
 
+  private static final String INSERT_OUTBOX_EVENT =
+      "INSERT INTO agent_install_event_outbox (tenant_id, resource_id, agent_type, op)"
+          + " VALUES (?, ?, ?, ?)";
+
   private final KafkaTemplate<String, Object> kafkaTemplate;
   private final KafkaTopicProperties kafkaTopicProperties;
+  private final JdbcTemplate jdbcTemplate;
+  private final int sendWindow;
 
   @Autowired
-  public BoundEventSender(KafkaTemplate<String,Object> kafkaTemplate, KafkaTopicProperties kafkaTopicProperties) {
+  public BoundEventSender(KafkaTemplate<String,Object> kafkaTemplate,
+                          KafkaTopicProperties kafkaTopicProperties,
+                          JdbcTemplate jdbcTemplate,
+                          AgentCatalogProperties properties) {
     this.kafkaTemplate = kafkaTemplate;
     this.kafkaTopicProperties = kafkaTopicProperties;
+    this.jdbcTemplate = jdbcTemplate;
+    this.sendWindow = properties.getEventSendWindow();
   }
   /**
+   * Records an event for each of the given resources in the outbox. When called within a
+   * transaction, the events are only published if and once that transaction commits.
    *  @param op {@link OperationType#UPSERT} or {@link OperationType#DELETE} where update is more
    * like an upsert and might indicate the first install for the resource
    * @param agentType
@@ -50,23 +74,49 @@ public class BoundEventSender {
   public void sendTo(OperationType op,
                      AgentType agentType,
                      List<TenantResource> affectedResources) {
+    log.debug("Queueing events with op={} agentType={} for resources={}",
+        op, agentType, affectedResources);
 
-    final String topic = kafkaTopicProperties.getInstalls();
+    jdbcTemplate.batchUpdate(INSERT_OUTBOX_EVENT, affectedResources, affectedResources.size(),
+        (ps, affectedResource) -> {
+          ps.setString(1, affectedResource.getTenantId());
+          ps.setString(2, affectedResource.getResourceId());
+          ps.setString(3, agentType != null ? agentType.name() : null);
+          ps.setString(4, op.name());
+        });
+  }
 
-    for (TenantResource affectedResource : affectedResources) {
-      final AgentInstallChangeEvent event = new AgentInstallChangeEvent()
-          .setTenantId(affectedResource.getTenantId())
-          .setResourceId(affectedResource.getResourceId())
-          .setOp(op)
-          .setAgentType(agentType);
+  /**
+   * Sends the given events without waiting on each send individually.
+   * At most a window of sends are outstanding at a time and this method returns once all of
+   * them have been acknowledged.
+   * @throws RuntimeKafkaException if any of the sends failed
+   */
+  void publish(List<AgentInstallChangeEvent> events) {
 
+    final String topic = kafkaTopicProperties.getInstalls();
+    final Deque<ListenableFuture<SendResult<String, Object>>> inFlight = new ArrayDeque<>();
+
+    for (AgentInstallChangeEvent event : events) {
       log.debug("Sending event={} on topic={}", event, topic);
       final String key = KafkaMessageKeyBuilder.buildMessageKey(event);
-      try {
-        kafkaTemplate.send(topic, key, event).get();
-      } catch (InterruptedException|ExecutionException e) {
-        throw new RuntimeKafkaException(e);
+      if (inFlight.size() >= sendWindow) {
+        awaitSend(inFlight.removeFirst());
       }
+      // the producer keeps per-partition, and therefore per-key, ordering of these sends
+      inFlight.addLast(kafkaTemplate.send(topic, key, event));
+    }
+
+    while (!inFlight.isEmpty()) {
+      awaitSend(inFlight.removeFirst());
+    }
+  }
+
+  private static void awaitSend(ListenableFuture<SendResult<String, Object>> send) {
+    try {
+      send.get();
+    } catch (InterruptedException|ExecutionException e) {
+      throw new RuntimeKafkaException(e);
     }
   }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.UUID;
+import lombok.Data;
+
+/**
+ * Position after the last entity of a page, by an ordered key and then ID, which is encoded
+ * as an opaque string for API clients.
+ */
+@Data
+public class KeysetCursor {
+
+  private static final String SEPARATOR = "|";
+
+  final String key;
+  final UUID id;
+
+  public static KeysetCursor of(Instant createdTimestamp, UUID id) {
+    return new KeysetCursor(createdTimestamp.toString(), id);
+  }
+
+  /**
+   * @return the key of this cursor as a timestamp
+   * @throws InvalidCursorException if the key is not a timestamp
+   */
+  public Instant timestampKey() {
+    try {
+      return Instant.parse(key);
+    } catch (DateTimeParseException e) {
+      throw new InvalidCursorException("The given cursor is not valid", e);
+    }
+  }
+
+  public String encode() {
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString((key + SEPARATOR + id).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param encoded an encoded cursor or null or empty to start at the beginning
+   * @return the decoded cursor or null for the beginning
+   * @throws InvalidCursorException if the given cursor is malformed
+   */
+  public static KeysetCursor decode(String encoded) {
+    if (encoded == null || encoded.isEmpty()) {
+      return null;
+    }
+
+    try {
+      final String decoded = new String(Base64.getUrlDecoder().decode(encoded),
+          StandardCharsets.UTF_8);
+      // the ID is last since keys may contain the separator
+      final int separator = decoded.lastIndexOf(SEPARATOR);
+      return new KeysetCursor(
+          decoded.substring(0, separator),
+          UUID.fromString(decoded.substring(separator + 1))
+      );
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new InvalidCursorException("The given cursor is not valid", e);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.telemetry.entities.AgentInstall;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Selects resources by querying the resources table of the shared database directly, which
+ * avoids a round trip to resource management.
+ * <p>
+ *   Only resource IDs are selected and they're retrieved a chunk at a time, ordered by resource
+ *   ID and then row ID so that each chunk picks up after the last resource of the previous one.
+ *   The row ID breaks ties between resource IDs that the column's case-insensitive collation
+ *   considers equal, which would otherwise be skipped or repeated across chunks.
+ * </p>
+ */
+@Component
+@ConditionalOnProperty(
+    name = "salus.agent-catalog.resource-selection", havingValue = "LOCAL", matchIfMissing = true)
+@Slf4j
+public class LocalResourceSelector implements ResourceSelector {
+
+  private final EntityManager em;
+
+  /**
+   * Queries keyed by label selector method and label count
+   */
+  private final ConcurrentMap<String, String> queries = new ConcurrentHashMap<>();
+
+  @Autowired
+  public LocalResourceSelector(EntityManager em) {
+    this.em = em;
+  }
+
+  @Override
+  public void forEachMatchingChunk(AgentInstall agentInstall, int chunkSize,
+                                   Consumer<List<String>> chunkConsumer) {
+    final Map<String, String> labelSelector = agentInstall.getLabelSelector();
+    final List<Entry<String, String>> labels = labelSelector != null ?
+        new ArrayList<>(labelSelector.entrySet()) : new ArrayList<>();
+    final String queryString = queries.computeIfAbsent(
+        agentInstall.getLabelSelectorMethod() + ":" + labels.size(),
+        key -> buildQuery(agentInstall.getLabelSelectorMethod(), labels.size()));
+
+    int total = 0;
+    String after = "";
+    long afterId = 0;
+    while (true) {
+      final TypedQuery<Object[]> query = em.createQuery(queryString, Object[].class)
+          .setParameter("tenantId", agentInstall.getTenantId())
+          .setParameter("after", after)
+          .setParameter("afterId", afterId)
+          .setMaxResults(chunkSize);
+      for (int i = 0; i < labels.size(); i++) {
+        query.setParameter("labelKey" + i, labels.get(i).getKey());
+        query.setParameter("label" + i, labels.get(i).getValue());
+      }
+
+      final List<Object[]> rows = query.getResultList();
+      if (rows.isEmpty()) {
+        break;
+      }
+      final List<String> chunk = new ArrayList<>(rows.size());
+      rows.forEach(row -> chunk.add((String) row[0]));
+      total += chunk.size();
+      final Object[] last = rows.get(rows.size() - 1);
+      after = (String) last[0];
+      afterId = ((Number) last[1]).longValue();
+
+      chunkConsumer.accept(chunk);
+
+      if (chunk.size() < chunkSize) {
+        break;
+      }
+    }
+
+    log.debug("Selected resources={} matching selector of agentInstall={}", total, agentInstall);
+  }
+
+  private static String buildQuery(LabelSelectorMethod labelSelectorMethod, int labelCount) {
+    final StringBuilder builder = new StringBuilder(
+        "select r.resourceId, r.id from Resource r"
+            + " where r.tenantId = :tenantId"
+            + " and (r.resourceId > :after or (r.resourceId = :after and r.id > :afterId))");
+
+    if (labelCount > 0) {
+      if (labelSelectorMethod == LabelSelectorMethod.OR) {
+        // any one of the selector's labels is present
+        builder.append(" and exists (select orResource.resourceId from Resource orResource"
+            + " join orResource.labels l"
+            + " where orResource = r and (");
+        for (int i = 0; i < labelCount; i++) {
+          if (i > 0) {
+            builder.append(" or ");
+          }
+          builder.append(labelCondition(i));
+        }
+        builder.append("))");
+      } else {
+        // every one of the selector's labels is present
+        for (int i = 0; i < labelCount; i++) {
+          builder.append(String.format(
+              " and exists (select andResource%1$d.resourceId from Resource andResource%1$d"
+                  + " join andResource%1$d.labels l where andResource%1$d = r and %2$s)",
+              i, labelCondition(i)));
+        }
+      }
+    }
+
+    return builder.append(" order by r.resourceId, r.id").toString();
+  }
+
+  private static String labelCondition(int i) {
+    return "(KEY(l) = :labelKey" + i + " and VALUE(l) = :label" + i + ")";
+  }
+}
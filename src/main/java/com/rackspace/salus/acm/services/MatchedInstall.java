@@ -0,0 +1,54 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.telemetry.entities.AgentInstall;
+import com.rackspace.salus.telemetry.model.AgentType;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import lombok.Value;
+
+/**
+ * Immutable summary of an agent install whose label selector matched a resource. Unlike the
+ * {@link AgentInstall} entity, it can be shared across threads and transactions.
+ */
+@Value
+public class MatchedInstall {
+
+  UUID id;
+  String tenantId;
+  AgentType agentType;
+  String agentVersion;
+  LabelSelectorMethod labelSelectorMethod;
+  Map<String, String> labelSelector;
+
+  public static MatchedInstall of(AgentInstall agentInstall) {
+    return new MatchedInstall(
+        agentInstall.getId(),
+        agentInstall.getTenantId(),
+        agentInstall.getAgentRelease().getType(),
+        agentInstall.getAgentRelease().getVersion(),
+        agentInstall.getLabelSelectorMethod(),
+        agentInstall.getLabelSelector() != null ?
+            Collections.unmodifiableMap(new HashMap<>(agentInstall.getLabelSelector())) :
+            Collections.emptyMap()
+    );
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.resource_management.web.client.ResourceApi;
+import com.rackspace.salus.resource_management.web.model.ResourceDTO;
+import com.rackspace.salus.telemetry.entities.AgentInstall;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Selects resources by querying resource management.
+ * <p>
+ *   The resource management client returns all of the matching resources at once, so the
+ *   response is reduced to resource IDs up front to let the rest of it be garbage collected
+ *   while the chunks are consumed.
+ * </p>
+ */
+@Component
+@ConditionalOnProperty(name = "salus.agent-catalog.resource-selection", havingValue = "REMOTE")
+@Slf4j
+public class RemoteResourceSelector implements ResourceSelector {
+
+  private final ResourceApi resourceApi;
+
+  @Autowired
+  public RemoteResourceSelector(ResourceApi resourceApi) {
+    this.resourceApi = resourceApi;
+  }
+
+  @Override
+  public void forEachMatchingChunk(AgentInstall agentInstall, int chunkSize,
+                                   Consumer<List<String>> chunkConsumer) {
+    final List<String> resourceIds = findMatchingResourceIds(agentInstall);
+
+    log.debug("Found resources={} matching selector of agentInstall={}",
+        resourceIds.size(), agentInstall);
+
+    for (int start = 0; start < resourceIds.size(); start += chunkSize) {
+      chunkConsumer.accept(
+          resourceIds.subList(start, Math.min(start + chunkSize, resourceIds.size())));
+    }
+  }
+
+  private List<String> findMatchingResourceIds(AgentInstall agentInstall) {
+    final List<ResourceDTO> resources = resourceApi.getResourcesWithLabels(
+        agentInstall.getTenantId(), agentInstall.getLabelSelector(),
+        agentInstall.getLabelSelectorMethod());
+
+    return resources.stream()
+        .map(ResourceDTO::getResourceId)
+        .distinct()
+        .collect(Collectors.toList());
+  }
+}
@@ -16,31 +16,235 @@
 
 package com.rackspace.salus.acm.services;
 
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
+import com.rackspace.salus.acm.config.KafkaConfig;
 import com.rackspace.salus.common.messaging.KafkaTopicProperties;
 import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.listener.ConsumerSeekAware;
+import org.springframework.kafka.support.KafkaUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 
 @Component
-public class ResourceEventListener {
+@Slf4j
+public class ResourceEventListener implements ConsumerSeekAware {
 
   private final KafkaTopicProperties kafkaTopicProperties;
   private final AgentInstallService agentInstallService;
+  private final int workerCount;
+  private final ExecutorService workers;
+  private final ResourceLabelIndex resourceLabelIndex;
+  private final ResourceLookupCache resourceLookupCache;
+  private final String indexGroupId = "resource-label-index-" + UUID.randomUUID();
 
   @Autowired
   public ResourceEventListener(KafkaTopicProperties kafkaTopicProperties,
-                               AgentInstallService agentInstallService) {
+                               AgentInstallService agentInstallService,
+                               AgentCatalogProperties properties,
+                               ObjectProvider<ResourceLabelIndex> resourceLabelIndex,
+                               ResourceLookupCache resourceLookupCache) {
     this.kafkaTopicProperties = kafkaTopicProperties;
     this.agentInstallService = agentInstallService;
+    this.resourceLabelIndex = resourceLabelIndex.getIfAvailable();
+    this.resourceLookupCache = resourceLookupCache;
+    this.workerCount = properties.getResourceEventWorkers();
+    this.workers = Executors.newFixedThreadPool(
+        workerCount, new CustomizableThreadFactory("resource-events-"));
+  }
+
+  @PreDestroy
+  public void stop() {
+    workers.shutdown();
   }
 
   public String getTopic() {
     return kafkaTopicProperties.getResources();
   }
 
-  @KafkaListener(topics = "#{__listener.topic}")
-  public void consumeResourceEvent(ResourceEvent event) {
-    agentInstallService.handleResourceEvent(event);
+  public String getIndexGroupId() {
+    return indexGroupId;
+  }
+
+  public boolean isIndexEnabled() {
+    return resourceLabelIndex != null;
+  }
+
+  /**
+   * Consumes all of the resource events of a poll, which is enabled by the
+   * {@link KafkaConfig#BATCH_LISTENER_CONTAINER_FACTORY}.
+   * <p>
+   *   The events are spread across the workers by tenant resource, so each resource's events
+   *   are still handled in order while unrelated resources are handled in parallel. This
+   *   method only returns, allowing the poll's offsets to be committed, once every event
+   *   has been handled.
+   * </p>
+   * <p>
+   *   Changed resources are evicted from {@link ResourceLookupCache} before the events are
+   *   handled and again once every lane has committed, since a lookup racing the handling may
+   *   re-cache what a transaction older than the change read.
+   * </p>
+   */
+  @KafkaListener(topics = "#{__listener.topic}",
+      containerFactory = KafkaConfig.BATCH_LISTENER_CONTAINER_FACTORY)
+  public void consumeResourceEvents(List<ResourceEvent> events) throws InterruptedException {
+    final List<ResourceEvent> coalesced = coalesce(events);
+    log.debug("Coalesced batch of resourceEvents={} into count={}", events.size(), coalesced.size());
+    evictChangedResources(coalesced);
+    try {
+      handleInLanes(coalesced);
+    } finally {
+      evictChangedResources(coalesced);
+    }
+  }
+
+  private void handleInLanes(List<ResourceEvent> coalesced) throws InterruptedException {
+    final List<List<ResourceEvent>> lanes = partition(coalesced, workerCount);
+    if (lanes.size() == 1) {
+      agentInstallService.handleResourceEvents(lanes.get(0));
+      return;
+    }
+
+    final List<Future<?>> results = new ArrayList<>(lanes.size());
+    for (List<ResourceEvent> lane : lanes) {
+      results.add(workers.submit(() -> agentInstallService.handleResourceEvents(lane)));
+    }
+
+    // wait for all lanes before surfacing any failure so nothing is still running on return
+    RuntimeException failure = null;
+    for (Future<?> result : results) {
+      try {
+        result.get();
+      } catch (ExecutionException e) {
+        log.warn("Failed to handle resourceEvents", e.getCause());
+        if (failure == null) {
+          failure = e.getCause() instanceof RuntimeException ?
+              (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Consumes the resource events that maintain the {@link ResourceLabelIndex}, which is only
+   * started when the index is in use. Every instance holds its own index, so the events are
+   * consumed with a consumer group of this instance alone rather than the group shared by
+   * {@link #consumeResourceEvents(List)}.
+   */
+  @KafkaListener(topics = "#{__listener.topic}", groupId = "#{__listener.indexGroupId}",
+      autoStartup = "#{__listener.indexEnabled}",
+      containerFactory = KafkaConfig.BATCH_LISTENER_CONTAINER_FACTORY)
+  public void consumeResourceEventsForIndex(List<ResourceEvent> events) {
+    final List<ResourceEvent> coalesced = coalesce(events);
+    evictChangedResources(coalesced);
+    try {
+      resourceLabelIndex.handleResourceEvents(coalesced);
+    } finally {
+      evictChangedResources(coalesced);
+    }
+  }
+
+  /**
+   * Starts the bootstrap of the {@link ResourceLabelIndex} once its consumer has been assigned
+   * partitions and rewinds them to before the bootstrap started. The consumer group is new, so
+   * it would otherwise only see events published after its first poll and miss the changes
+   * committed between the bootstrap reading a resource and that poll.
+   */
+  @Override
+  public void onPartitionsAssigned(Map<TopicPartition, Long> assignments,
+                                   ConsumerSeekCallback callback) {
+    if (resourceLabelIndex == null || !indexGroupId.equals(KafkaUtils.getConsumerGroupId())
+        || resourceLabelIndex.isReady()) {
+      return;
+    }
+    final long replayFrom = resourceLabelIndex.startBootstrap();
+    log.info("Replaying resource events for the label index of partitions={} from timestamp={}",
+        assignments.keySet(), replayFrom);
+    callback.seekToTimestamp(assignments.keySet(), replayFrom);
+  }
+
+  /**
+   * Evicts the cached lookups of the resources that were deleted or had their labels or envoy
+   * changed. The lookups of resources with other changes are left cached since binding doesn't
+   * depend on anything else of a resource.
+   */
+  void evictChangedResources(List<ResourceEvent> events) {
+    for (ResourceEvent event : events) {
+      if (event.isDeleted() || event.isLabelsChanged() || event.getReattachedEnvoyId() != null) {
+        resourceLookupCache.evict(event.getTenantId(), event.getResourceId());
+      }
+    }
+  }
+
+  /**
+   * @return non-empty lanes of events where all events of a tenant resource land in the same
+   * lane in their original order
+   */
+  static List<List<ResourceEvent>> partition(List<ResourceEvent> events, int laneCount) {
+    final List<List<ResourceEvent>> lanes = new ArrayList<>(laneCount);
+    for (int i = 0; i < laneCount; i++) {
+      lanes.add(new ArrayList<>());
+    }
+
+    for (ResourceEvent event : events) {
+      final int hash = new TenantResource(event.getTenantId(), event.getResourceId()).hashCode();
+      lanes.get(Math.floorMod(hash, laneCount)).add(event);
+    }
+
+    lanes.removeIf(List::isEmpty);
+    return lanes;
+  }
+
+  /**
+   * Collapses the events of each tenant resource since the handling of an event always consults
+   * the current state of the resource. Successive non-delete events merge into the latest one,
+   * retaining any label change or envoy re-attachment of the earlier ones. A delete supersedes
+   * everything before it, but is kept ahead of any later event for a re-created resource.
+   * @return the coalesced events with the relative order of each resource's events retained
+   */
+  static List<ResourceEvent> coalesce(List<ResourceEvent> events) {
+    final Map<TenantResource, List<ResourceEvent>> byResource = new LinkedHashMap<>();
+
+    for (ResourceEvent event : events) {
+      final List<ResourceEvent> pending = byResource.computeIfAbsent(
+          new TenantResource(event.getTenantId(), event.getResourceId()),
+          key -> new ArrayList<>(2)
+      );
+
+      if (event.isDeleted()) {
+        pending.clear();
+        pending.add(event);
+      } else if (pending.isEmpty() || pending.get(pending.size() - 1).isDeleted()) {
+        pending.add(event);
+      } else {
+        final ResourceEvent earlier = pending.get(pending.size() - 1);
+        event.setLabelsChanged(event.isLabelsChanged() || earlier.isLabelsChanged());
+        if (event.getReattachedEnvoyId() == null) {
+          event.setReattachedEnvoyId(earlier.getReattachedEnvoyId());
+        }
+        pending.set(pending.size() - 1, event);
+      }
+    }
+
+    final List<ResourceEvent> coalesced = new ArrayList<>(byResource.size());
+    byResource.values().forEach(coalesced::addAll);
+    return coalesced;
   }
 }
@@ -0,0 +1,534 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.resource_management.web.model.ResourceDTO;
+import com.rackspace.salus.telemetry.entities.AgentInstall;
+import com.rackspace.salus.telemetry.entities.Resource;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Maintains a per-tenant inverted index from resource label to resource IDs so that the
+ * resources matching the label selector of a new install can be resolved in memory.
+ * <p>
+ *   The index is kept current by {@link ResourceEventListener}, which passes it every resource
+ *   event consumed by this instance. Once that consumer is assigned its partitions, it rewinds
+ *   them to shortly before the bootstrap is started and the index is bootstrapped from the
+ *   resources table in the background, so that every change committed after the bootstrap reads
+ *   a resource is also replayed as an event. Until the bootstrap completes, resources are
+ *   selected by querying the database instead. A failed bootstrap discards what it loaded and
+ *   is retried with backoff. Labels are matched exactly, as they are by
+ *   {@link AgentInstallLabelIndex}.
+ * </p>
+ */
+@Component
+@ConditionalOnProperty(name = "salus.agent-catalog.resource-selection", havingValue = "INDEX")
+@Slf4j
+public class ResourceLabelIndex implements ResourceSelector {
+
+  private static final int QUERY_CHUNK_SIZE = 1000;
+
+  /**
+   * Rough size in bytes of a map or set entry along with its object headers, which is used to
+   * estimate the footprint of the index
+   */
+  private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+  /**
+   * How far before the bootstrap starts events are replayed, which allows for the clocks of the
+   * instances that timestamp the events to be behind this one
+   */
+  private static final long REPLAY_MARGIN_MS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final long BOOTSTRAP_RETRY_MIN_MS = TimeUnit.SECONDS.toMillis(5);
+  private static final long BOOTSTRAP_RETRY_MAX_MS = TimeUnit.MINUTES.toMillis(5);
+
+  private final EntityManager em;
+  private final TransactionTemplate readOnlyTransaction;
+  private final LocalResourceSelector fallback;
+  private final ResourceLookupCache resourceLookupCache;
+
+  private final ConcurrentMap<String, TenantResources> tenants = new ConcurrentHashMap<>();
+  private final AtomicLong resourceCount = new AtomicLong();
+  private final AtomicLong estimatedBytes = new AtomicLong();
+  private final Counter refreshedResources;
+  private final AtomicBoolean bootstrapStarted = new AtomicBoolean();
+  private volatile long replayFrom;
+  private volatile boolean bootstrapping;
+  private volatile boolean ready;
+  private volatile long updatedAt = System.currentTimeMillis();
+
+  @Autowired
+  public ResourceLabelIndex(EntityManager em, PlatformTransactionManager transactionManager,
+                            ResourceLookupCache resourceLookupCache,
+                            MeterRegistry meterRegistry) {
+    this.em = em;
+    this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+    this.readOnlyTransaction.setReadOnly(true);
+    this.fallback = new LocalResourceSelector(em);
+    this.resourceLookupCache = resourceLookupCache;
+
+    refreshedResources = meterRegistry.counter("resourceLabelIndexRefreshed");
+    meterRegistry.gauge("resourceLabelIndexResources", Tags.empty(), resourceCount);
+    meterRegistry.gauge("resourceLabelIndexEstimatedBytes", Tags.empty(), estimatedBytes);
+    meterRegistry.gauge("resourceLabelIndexReady", Tags.empty(), this,
+        index -> index.ready ? 1 : 0);
+    TimeGauge.builder("resourceLabelIndexSinceUpdate", this, TimeUnit.MILLISECONDS,
+        index -> System.currentTimeMillis() - index.updatedAt)
+        .description("Time since resource events were last applied to the index")
+        .register(meterRegistry);
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Passes the matching resources from the index, ordered by resource ID, or delegates to
+   * {@link LocalResourceSelector} when the index hasn't been bootstrapped yet.
+   */
+  @Override
+  public void forEachMatchingChunk(AgentInstall agentInstall, int chunkSize,
+                                   Consumer<List<String>> chunkConsumer) {
+    if (!ready) {
+      fallback.forEachMatchingChunk(agentInstall, chunkSize, chunkConsumer);
+      return;
+    }
+
+    final List<String> resourceIds = findMatchingResources(agentInstall.getTenantId(),
+        agentInstall.getLabelSelector(), agentInstall.getLabelSelectorMethod());
+
+    log.debug("Indexed resources={} matching selector of agentInstall={}",
+        resourceIds.size(), agentInstall);
+
+    for (int start = 0; start < resourceIds.size(); start += chunkSize) {
+      chunkConsumer.accept(
+          resourceIds.subList(start, Math.min(start + chunkSize, resourceIds.size())));
+    }
+  }
+
+  /**
+   * @return the IDs of the given tenant's indexed resources that satisfy the given label
+   * selector, ordered by resource ID
+   */
+  public List<String> findMatchingResources(String tenantId, Map<String, String> labelSelector,
+                                            LabelSelectorMethod labelSelectorMethod) {
+    final TenantResources tenant = tenants.get(tenantId);
+    if (tenant == null) {
+      return Collections.emptyList();
+    }
+    final List<String> resourceIds = tenant.match(labelSelector, labelSelectorMethod);
+    resourceIds.sort(Comparator.naturalOrder());
+    return resourceIds;
+  }
+
+  /**
+   * Applies the given resource events, in order. Deleted resources are dropped from the index
+   * and the labels of any resource that changed labels or isn't indexed yet are looked up with
+   * {@link ResourceLookupCache}, so a burst of unrelated events doesn't cost any queries.
+   * <p>
+   *   Events are ignored while no bootstrap is running or has completed, since the changes they
+   *   carry were committed before the next bootstrap reads the resources anyway.
+   * </p>
+   */
+  public void handleResourceEvents(List<ResourceEvent> resourceEvents) {
+    if (!bootstrapping && !ready) {
+      return;
+    }
+
+    final Map<String, List<ResourceEvent>> byTenant = resourceEvents.stream()
+        .collect(Collectors.groupingBy(
+            ResourceEvent::getTenantId, LinkedHashMap::new, Collectors.toList()));
+
+    byTenant.forEach((tenantId, tenantEvents) -> {
+      final TenantResources tenant = tenant(tenantId);
+
+      final Set<String> toRefresh = new LinkedHashSet<>();
+      for (ResourceEvent event : tenantEvents) {
+        if (event.isDeleted()) {
+          toRefresh.remove(event.getResourceId());
+          applyRemove(tenant, event.getResourceId(), true);
+        } else if (event.isLabelsChanged() || !tenant.contains(event.getResourceId())) {
+          toRefresh.add(event.getResourceId());
+        }
+      }
+
+      if (!toRefresh.isEmpty()) {
+        final Map<String, ResourceDTO> found = resourceLookupCache.getAll(tenantId, toRefresh);
+        for (String resourceId : toRefresh) {
+          final ResourceDTO resource = found.get(resourceId);
+          if (resource != null) {
+            applyPut(tenant, resourceId,
+                resource.getLabels() != null ? resource.getLabels() : Collections.emptyMap(),
+                true);
+          } else {
+            // removed since the event was published
+            applyRemove(tenant, resourceId, true);
+          }
+        }
+        refreshedResources.increment(toRefresh.size());
+      }
+    });
+
+    updatedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Starts the bootstrap on its own thread unless it has already been started.
+   * @return the timestamp from which resource events must be replayed to cover every change the
+   * bootstrap may miss
+   */
+  public long startBootstrap() {
+    if (bootstrapStarted.compareAndSet(false, true)) {
+      replayFrom = System.currentTimeMillis() - REPLAY_MARGIN_MS;
+      final CustomizableThreadFactory threadFactory =
+          new CustomizableThreadFactory("resource-label-index-");
+      threadFactory.setDaemon(true);
+      threadFactory.newThread(this::bootstrapUntilReady).start();
+    }
+    return replayFrom;
+  }
+
+  private void bootstrapUntilReady() {
+    long backoffMs = BOOTSTRAP_RETRY_MIN_MS;
+    while (!bootstrap()) {
+      log.warn("Retrying bootstrap of the resource label index in delayMs={}", backoffMs);
+      try {
+        Thread.sleep(backoffMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      backoffMs = Math.min(backoffMs * 2, BOOTSTRAP_RETRY_MAX_MS);
+    }
+  }
+
+  /**
+   * Loads every resource into the index, a tenant and a chunk of resources at a time. Resources
+   * changed by events that arrive during the bootstrap are left as the events set them since
+   * those were read after the bootstrap may have read them. When it fails, everything loaded
+   * so far, and the changes tracked meanwhile, are discarded.
+   * @return true if the bootstrap completed
+   */
+  public boolean bootstrap() {
+    final long start = System.currentTimeMillis();
+    bootstrapping = true;
+    try {
+      final List<String> tenantIds = readOnlyTransaction.execute(status ->
+          em.createQuery("select distinct r.tenantId from Resource r", String.class)
+              .getResultList());
+
+      for (String tenantId : tenantIds) {
+        final TenantResources tenant = tenant(tenantId);
+
+        // paged by row ID as well since the resource ID column compares case-insensitively
+        String after = "";
+        long afterId = 0;
+        while (true) {
+          final String from = after;
+          final long fromId = afterId;
+          final List<Object[]> rows = readOnlyTransaction.execute(status ->
+              em.createQuery(
+                  "select r.resourceId, r.id from Resource r"
+                      + " where r.tenantId = :tenantId"
+                      + " and (r.resourceId > :after"
+                      + " or (r.resourceId = :after and r.id > :afterId))"
+                      + " order by r.resourceId, r.id",
+                  Object[].class)
+                  .setParameter("tenantId", tenantId)
+                  .setParameter("after", from)
+                  .setParameter("afterId", fromId)
+                  .setMaxResults(QUERY_CHUNK_SIZE)
+                  .getResultList());
+          if (rows.isEmpty()) {
+            break;
+          }
+          final List<String> resourceIds = new ArrayList<>(rows.size());
+          rows.forEach(row -> resourceIds.add((String) row[0]));
+
+          loadLabels(tenantId, resourceIds).forEach((resourceId, labels) ->
+              applyPut(tenant, resourceId, labels, false));
+
+          if (resourceIds.size() < QUERY_CHUNK_SIZE) {
+            break;
+          }
+          final Object[] last = rows.get(rows.size() - 1);
+          after = (String) last[0];
+          afterId = ((Number) last[1]).longValue();
+        }
+      }
+    } catch (RuntimeException e) {
+      log.warn("Failed to bootstrap the resource label index, resources will be queried", e);
+      if (!ready) {
+        discard();
+      }
+      bootstrapping = false;
+      return false;
+    }
+
+    // tenants created from here on don't track changes, so complete the ones that do afterwards
+    ready = true;
+    bootstrapping = false;
+    tenants.values().forEach(TenantResources::completeBootstrap);
+    updatedAt = System.currentTimeMillis();
+    log.info("Bootstrapped resource label index with resources={} in durationMs={}",
+        resourceCount.get(), System.currentTimeMillis() - start);
+    return true;
+  }
+
+  /**
+   * Drops every indexed tenant, which is only done while not ready so that nothing reads the
+   * index meanwhile.
+   */
+  private void discard() {
+    // stop tracking events before dropping the tenants they'd otherwise recreate
+    bootstrapping = false;
+    for (String tenantId : new ArrayList<>(tenants.keySet())) {
+      final TenantResources tenant = tenants.remove(tenantId);
+      if (tenant != null) {
+        final long[] delta = tenant.discard();
+        resourceCount.addAndGet(delta[0]);
+        estimatedBytes.addAndGet(delta[1]);
+      }
+    }
+  }
+
+  private TenantResources tenant(String tenantId) {
+    return tenants.computeIfAbsent(tenantId, key -> new TenantResources(!ready));
+  }
+
+  private void applyPut(TenantResources tenant, String resourceId, Map<String, String> labels,
+                        boolean fromEvent) {
+    final long[] delta = tenant.put(resourceId, labels, fromEvent);
+    resourceCount.addAndGet(delta[0]);
+    estimatedBytes.addAndGet(delta[1]);
+  }
+
+  private void applyRemove(TenantResources tenant, String resourceId, boolean fromEvent) {
+    final long[] delta = tenant.remove(resourceId, fromEvent);
+    resourceCount.addAndGet(delta[0]);
+    estimatedBytes.addAndGet(delta[1]);
+  }
+
+  /**
+   * Reads the labels directly rather than through {@link ResourceLookupCache} so that the
+   * bootstrap doesn't churn through the cache.
+   * @return the labels of the given resources that exist, keyed by resource ID
+   */
+  private Map<String, Map<String, String>> loadLabels(String tenantId,
+                                                      Collection<String> resourceIds) {
+    final List<String> ids = new ArrayList<>(resourceIds);
+    final Map<String, Map<String, String>> labelsByResource = new HashMap<>();
+
+    for (int start = 0; start < ids.size(); start += QUERY_CHUNK_SIZE) {
+      final List<String> chunk = ids.subList(start, Math.min(start + QUERY_CHUNK_SIZE, ids.size()));
+      // copy the labels within the transaction since they're lazily loaded
+      readOnlyTransaction.execute(status -> {
+        em.createQuery(
+            "select distinct r from Resource r left join fetch r.labels"
+                + " where r.tenantId = :tenantId and r.resourceId in :resourceIds",
+            Resource.class)
+            .setParameter("tenantId", tenantId)
+            .setParameter("resourceIds", chunk)
+            .getResultList()
+            .forEach(resource -> labelsByResource.put(resource.getResourceId(),
+                resource.getLabels() != null ?
+                    new HashMap<>(resource.getLabels()) : Collections.emptyMap()));
+        return null;
+      });
+    }
+
+    return labelsByResource;
+  }
+
+  private static long footprint(String resourceId, Map<String, String> labels) {
+    long bytes = ENTRY_OVERHEAD_BYTES + 2L * resourceId.length();
+    for (Entry<String, String> label : labels.entrySet()) {
+      // the label is held by the resource and its resource ID by the label's posting
+      bytes += 2 * ENTRY_OVERHEAD_BYTES
+          + 2L * (label.getKey().length() + label.getValue().length());
+    }
+    return bytes;
+  }
+
+  /**
+   * The indexed resources of one tenant, which are guarded by the instance's lock.
+   */
+  private static class TenantResources {
+
+    final Map<String, Map<String, String>> labelsByResource = new HashMap<>();
+    /**
+     * Label key to label value to the IDs of the resources with that label
+     */
+    final Map<String, Map<String, Set<String>>> postings = new HashMap<>();
+    /**
+     * Resources changed by events while the bootstrap is running, which the bootstrap leaves
+     * alone. Null once the bootstrap has completed.
+     */
+    Set<String> changedByEvents;
+    /**
+     * Estimated bytes of the indexed resources
+     */
+    long bytes;
+    /**
+     * Set once dropped from the index, after which changes still applied by a concurrent
+     * event handler are ignored
+     */
+    boolean discarded;
+
+    TenantResources(boolean bootstrapping) {
+      changedByEvents = bootstrapping ? new HashSet<>() : null;
+    }
+
+    synchronized boolean contains(String resourceId) {
+      return labelsByResource.containsKey(resourceId);
+    }
+
+    synchronized void completeBootstrap() {
+      changedByEvents = null;
+    }
+
+    /**
+     * @return the change in resource count and estimated bytes
+     */
+    synchronized long[] discard() {
+      final long[] delta = new long[]{-labelsByResource.size(), -bytes};
+      discarded = true;
+      labelsByResource.clear();
+      postings.clear();
+      changedByEvents = null;
+      bytes = 0;
+      return delta;
+    }
+
+    /**
+     * @return the change in resource count and estimated bytes
+     */
+    synchronized long[] put(String resourceId, Map<String, String> labels, boolean fromEvent) {
+      if (discarded
+          || !fromEvent && changedByEvents != null && changedByEvents.contains(resourceId)) {
+        return new long[]{0, 0};
+      }
+      final long[] removed = remove(resourceId, fromEvent);
+
+      labelsByResource.put(resourceId, labels);
+      for (Entry<String, String> label : labels.entrySet()) {
+        postings
+            .computeIfAbsent(label.getKey(), key -> new HashMap<>())
+            .computeIfAbsent(label.getValue(), value -> new HashSet<>())
+            .add(resourceId);
+      }
+      final long added = footprint(resourceId, labels);
+      bytes += added;
+      return new long[]{removed[0] + 1, removed[1] + added};
+    }
+
+    /**
+     * @return the change in resource count and estimated bytes
+     */
+    synchronized long[] remove(String resourceId, boolean fromEvent) {
+      if (discarded) {
+        return new long[]{0, 0};
+      }
+      if (fromEvent && changedByEvents != null) {
+        changedByEvents.add(resourceId);
+      }
+
+      final Map<String, String> labels = labelsByResource.remove(resourceId);
+      if (labels == null) {
+        return new long[]{0, 0};
+      }
+      for (Entry<String, String> label : labels.entrySet()) {
+        final Map<String, Set<String>> values = postings.get(label.getKey());
+        final Set<String> resourceIds = values.get(label.getValue());
+        resourceIds.remove(resourceId);
+        if (resourceIds.isEmpty()) {
+          values.remove(label.getValue());
+          if (values.isEmpty()) {
+            postings.remove(label.getKey());
+          }
+        }
+      }
+      final long removed = footprint(resourceId, labels);
+      bytes -= removed;
+      return new long[]{-1, -removed};
+    }
+
+    synchronized List<String> match(Map<String, String> labelSelector,
+                                    LabelSelectorMethod labelSelectorMethod) {
+      if (labelSelector == null || labelSelector.isEmpty()) {
+        return new ArrayList<>(labelsByResource.keySet());
+      }
+
+      final List<Set<String>> withLabels = new ArrayList<>(labelSelector.size());
+      for (Entry<String, String> label : labelSelector.entrySet()) {
+        final Set<String> withLabel = postings
+            .getOrDefault(label.getKey(), Collections.emptyMap())
+            .getOrDefault(label.getValue(), Collections.emptySet());
+        withLabels.add(withLabel);
+      }
+
+      if (labelSelectorMethod == LabelSelectorMethod.OR) {
+        final Set<String> union = new HashSet<>();
+        withLabels.forEach(union::addAll);
+        return new ArrayList<>(union);
+      }
+
+      // intersect starting from the rarest label
+      withLabels.sort(Comparator.comparingInt(Set::size));
+      final List<String> results = new ArrayList<>();
+      for (String resourceId : withLabels.get(0)) {
+        if (withLabels.stream().allMatch(withLabel -> withLabel.contains(resourceId))) {
+          results.add(resourceId);
+        }
+      }
+      return results;
+    }
+  }
+}
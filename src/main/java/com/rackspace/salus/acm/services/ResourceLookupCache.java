@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.acm.config.CacheConfig;
+import com.rackspace.salus.resource_management.web.model.ResourceDTO;
+import com.rackspace.salus.telemetry.entities.Resource;
+import com.rackspace.salus.telemetry.repositories.ResourceRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Caches the labels and envoy association of resources, which are all that binding needs of a
+ * resource, keyed by tenant and resource ID.
+ * <p>
+ *   {@link ResourceEventListener} evicts a resource when one of its events reports that its
+ *   labels or envoy changed or that it was deleted, so the resource is read once per such change
+ *   and any other event is served from the cache. Resources that don't exist aren't cached.
+ * </p>
+ */
+@Component
+public class ResourceLookupCache {
+
+  private final ResourceRepository resourceRepository;
+  private final EntityManager em;
+  private final CacheManager cacheManager;
+  private final TransactionTemplate readOnlyTransaction;
+  private final Counter evictions;
+
+  @Autowired
+  public ResourceLookupCache(ResourceRepository resourceRepository, EntityManager em,
+                             CacheManager cacheManager,
+                             PlatformTransactionManager transactionManager,
+                             MeterRegistry meterRegistry) {
+    this.resourceRepository = resourceRepository;
+    this.em = em;
+    this.cacheManager = cacheManager;
+    this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+    this.readOnlyTransaction.setReadOnly(true);
+    this.evictions = meterRegistry.counter("resourceLookupCacheEvictions");
+  }
+
+  public static String key(String tenantId, String resourceId) {
+    return String.join(":", tenantId, resourceId);
+  }
+
+  /**
+   * @return the resource or null when it does not exist
+   */
+  public ResourceDTO get(String tenantId, String resourceId) {
+    final Cache cache = cache();
+    final String key = key(tenantId, resourceId);
+
+    final CachedResource cached = cache.get(key, CachedResource.class);
+    if (cached != null) {
+      return cached.toDTO(tenantId, resourceId);
+    }
+
+    return resourceRepository.findByTenantIdAndResourceId(tenantId, resourceId)
+        .map(resource -> {
+          final CachedResource loaded = new CachedResource(resource);
+          cache.put(key, loaded);
+          return loaded.toDTO(tenantId, resourceId);
+        })
+        .orElse(null);
+  }
+
+  /**
+   * Retrieves the given resources, reading the ones that aren't cached with one query.
+   * @return the given resource IDs mapped to their resource or null when the resource
+   * does not exist
+   */
+  public Map<String, ResourceDTO> getAll(String tenantId, Collection<String> resourceIds) {
+    final Cache cache = cache();
+    final Map<String, ResourceDTO> found = new HashMap<>();
+    final List<String> misses = new ArrayList<>();
+
+    for (String resourceId : resourceIds) {
+      final CachedResource cached = cache.get(key(tenantId, resourceId), CachedResource.class);
+      if (cached != null) {
+        found.put(resourceId, cached.toDTO(tenantId, resourceId));
+      } else {
+        found.put(resourceId, null);
+        misses.add(resourceId);
+      }
+    }
+
+    if (!misses.isEmpty()) {
+      // convert within the transaction since the labels are lazily loaded
+      readOnlyTransaction.execute(status -> {
+        em.createQuery(
+            "select distinct r from Resource r left join fetch r.labels"
+                + " where r.tenantId = :tenantId and r.resourceId in :resourceIds",
+            Resource.class)
+            .setParameter("tenantId", tenantId)
+            .setParameter("resourceIds", misses)
+            .getResultList()
+            .forEach(resource -> {
+              final CachedResource loaded = new CachedResource(resource);
+              cache.put(key(tenantId, resource.getResourceId()), loaded);
+              found.put(resource.getResourceId(), loaded.toDTO(tenantId, resource.getResourceId()));
+            });
+        return null;
+      });
+    }
+
+    return found;
+  }
+
+  public void evict(String tenantId, String resourceId) {
+    cache().evict(key(tenantId, resourceId));
+    evictions.increment();
+  }
+
+  private Cache cache() {
+    return cacheManager.getCache(CacheConfig.RESOURCES);
+  }
+
+  /**
+   * Serializable since the cache may hold entries off-heap
+   */
+  static class CachedResource implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final HashMap<String, String> labels;
+    final boolean associatedWithEnvoy;
+
+    CachedResource(Resource resource) {
+      this.labels = resource.getLabels() != null ?
+          new HashMap<>(resource.getLabels()) : new HashMap<>();
+      this.associatedWithEnvoy = resource.isAssociatedWithEnvoy();
+    }
+
+    ResourceDTO toDTO(String tenantId, String resourceId) {
+      return new ResourceDTO()
+          .setTenantId(tenantId)
+          .setResourceId(resourceId)
+          .setLabels(new HashMap<>(labels))
+          .setAssociatedWithEnvoy(associatedWithEnvoy);
+    }
+  }
+}
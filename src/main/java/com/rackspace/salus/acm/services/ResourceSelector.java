@@ -0,0 +1,35 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import com.rackspace.salus.telemetry.entities.AgentInstall;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Enumerates the resources that match the label selector of an agent install.
+ */
+public interface ResourceSelector {
+
+  /**
+   * Passes the distinct IDs of the resources matching the label selector of the given install to
+   * the given consumer, at most <code>chunkSize</code> at a time. Each chunk is consumed before
+   * the next one is retrieved, so only one chunk needs to be held at a time.
+   */
+  void forEachMatchingChunk(AgentInstall agentInstall, int chunkSize,
+                            Consumer<List<String>> chunkConsumer);
+}
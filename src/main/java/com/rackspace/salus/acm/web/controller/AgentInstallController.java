@@ -17,31 +17,52 @@
 
 package com.rackspace.salus.acm.web.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
 import com.rackspace.salus.acm.services.AgentInstallService;
 import com.rackspace.salus.acm.web.model.AgentInstallCreate;
 import com.rackspace.salus.acm.web.model.AgentInstallDTO;
+import com.rackspace.salus.acm.web.model.AgentInstallJobDTO;
 import com.rackspace.salus.acm.web.model.BoundAgentInstallDTO;
+import com.rackspace.salus.acm.web.model.BoundAgentInstallLookupRequest;
+import com.rackspace.salus.acm.web.model.CursorPage;
+import com.rackspace.salus.common.web.View;
 import com.rackspace.salus.telemetry.model.AgentType;
 import com.rackspace.salus.telemetry.model.NotFoundException;
 import com.rackspace.salus.telemetry.model.PagedContent;
-import com.rackspace.salus.telemetry.repositories.AgentInstallRepository;
-import com.rackspace.salus.telemetry.repositories.BoundAgentInstallRepository;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.Authorization;
 import io.swagger.annotations.AuthorizationScope;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import javax.validation.Valid;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Pageable;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 @RestController
 @RequestMapping("/api")
@@ -55,17 +76,19 @@ import org.springframework.web.bind.annotation.RestController;
 })
 public class AgentInstallController {
 
-  private final AgentInstallRepository agentInstallRepository;
-  private final BoundAgentInstallRepository boundAgentInstallRepository;
+  private static final String NDJSON = "application/x-ndjson";
+
   private final AgentInstallService agentInstallService;
+  private final ObjectMapper objectMapper;
+  private final Duration exportTimeout;
 
   @Autowired
-  public AgentInstallController(AgentInstallRepository agentInstallRepository,
-                                BoundAgentInstallRepository boundAgentInstallRepository,
-                                AgentInstallService agentInstallService) {
-    this.agentInstallRepository = agentInstallRepository;
-    this.boundAgentInstallRepository = boundAgentInstallRepository;
+  public AgentInstallController(AgentInstallService agentInstallService,
+                                ObjectMapper objectMapper,
+                                AgentCatalogProperties properties) {
     this.agentInstallService = agentInstallService;
+    this.objectMapper = objectMapper;
+    this.exportTimeout = properties.getExportTimeout();
   }
 
   @GetMapping("/admin/bound-agent-installs/{tenantId}/{resourceId}/{agentType}")
@@ -73,10 +96,59 @@ public class AgentInstallController {
   public BoundAgentInstallDTO getBindingForResourceAndAgentType(
       @PathVariable String tenantId, @PathVariable String resourceId,
       @PathVariable AgentType agentType) {
-    return new BoundAgentInstallDTO(
-        boundAgentInstallRepository.findAllByTenantResourceAgentType(tenantId, resourceId, agentType)
-        .stream().findFirst()
-        .orElseThrow(() -> new NotFoundException("Could find find agent install for given resource and agent type")));
+    return agentInstallService.getBindingForResourceAndAgentType(tenantId, resourceId, agentType);
+  }
+
+  @PostMapping("/admin/bound-agent-installs")
+  @ApiOperation(value = "Gets the bound agent installations of many tenant resources and agent types")
+  public ResponseEntity<StreamingResponseBody> getBindings(
+      @RequestBody @Valid BoundAgentInstallLookupRequest in) {
+    final ObjectWriter writer = objectMapper.writerWithView(View.Admin.class);
+
+    // bindings are written as they are retrieved rather than buffering the whole response
+    final StreamingResponseBody body = outputStream -> {
+      try (JsonGenerator generator = writer.getFactory().createGenerator(outputStream)) {
+        generator.writeStartArray();
+        agentInstallService.findBindings(in.getBindings(), binding -> {
+          try {
+            writer.writeValue(generator, binding);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        generator.writeEndArray();
+      }
+    };
+
+    return ResponseEntity.ok()
+        .contentType(MediaType.APPLICATION_JSON)
+        .body(body);
+  }
+
+  @GetMapping(value = "/admin/tenant/{tenantId}/agent-installs/export", produces = NDJSON)
+  @ApiOperation(value = "Exports all agent installations and bindings of a tenant as newline-delimited JSON")
+  public ResponseEntity<StreamingResponseBody> exportAgentInstalls(@PathVariable String tenantId,
+                                                                   NativeWebRequest webRequest) {
+    final ObjectWriter writer = objectMapper.writerWithView(View.Admin.class);
+    // a large tenant takes far longer to export than the async timeout of other requests allows
+    setAsyncTimeout(webRequest, exportTimeout);
+
+    // each install and then each binding is written as a line as it is read
+    final StreamingResponseBody body = outputStream -> {
+      final Consumer<Object> lineWriter = value -> {
+        try {
+          outputStream.write(writer.writeValueAsBytes(value));
+          outputStream.write('\n');
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      };
+      agentInstallService.exportInstalls(tenantId, lineWriter::accept, lineWriter::accept);
+    };
+
+    return ResponseEntity.ok()
+        .contentType(MediaType.parseMediaType(NDJSON))
+        .body(body);
   }
 
   @GetMapping("/tenant/{tenantId}/agent-installs")
@@ -84,11 +156,24 @@ public class AgentInstallController {
   public PagedContent<AgentInstallDTO> getAgentInstalls(@PathVariable String tenantId,
                                                         Pageable pageable) {
     return PagedContent.fromPage(
-        agentInstallRepository.findAllByTenantId(tenantId, pageable)
-            .map(AgentInstallDTO::new)
+        agentInstallService.getAgentInstalls(tenantId, pageable)
     );
   }
 
+  /**
+   * Gets agent installations by cursor rather than page number, which avoids counting and
+   * keeps deep pages as cheap as the first one.
+   * @param cursor the next cursor of a previous page or empty to start at the beginning
+   * @param pageable only the page size is used
+   */
+  @GetMapping(value = "/tenant/{tenantId}/agent-installs", params = "cursor")
+  @ApiOperation(value = "Gets all agent installations, by cursor")
+  public CursorPage<AgentInstallDTO> getAgentInstallsByCursor(@PathVariable String tenantId,
+                                                              @RequestParam String cursor,
+                                                              Pageable pageable) {
+    return agentInstallService.getAgentInstallsAfter(tenantId, cursor, pageable.getPageSize());
+  }
+
   @PostMapping("/tenant/{tenantId}/agent-installs")
   @ResponseStatus(HttpStatus.CREATED)
   @ApiOperation(value = "Create a new agent installation")
@@ -97,6 +182,28 @@ public class AgentInstallController {
     return new AgentInstallDTO(agentInstallService.install(tenantId, in));
   }
 
+  @PostMapping(value = "/tenant/{tenantId}/agent-installs", params = "async=true")
+  @ApiOperation(value = "Create a new agent installation and bind it to resources in the background")
+  public ResponseEntity<AgentInstallJobDTO> createAsync(@PathVariable String tenantId,
+                                                        @RequestBody AgentInstallCreate in) {
+    final AgentInstallJobDTO job = agentInstallService.installAsync(tenantId, in);
+
+    return ResponseEntity.accepted()
+        .location(ServletUriComponentsBuilder.fromCurrentContextPath()
+            .path("/api/tenant/{tenantId}/agent-install-jobs/{jobId}")
+            .buildAndExpand(tenantId, job.getId())
+            .toUri())
+        .body(job);
+  }
+
+  @GetMapping("/tenant/{tenantId}/agent-install-jobs/{jobId}")
+  @ApiOperation(value = "Gets the progress of binding an agent installation created in the background")
+  public AgentInstallJobDTO getInstallJob(@PathVariable String tenantId,
+                                          @PathVariable UUID jobId) {
+    return agentInstallService.getInstallJob(tenantId, jobId)
+        .orElseThrow(() -> new NotFoundException("Could not find agent install job"));
+  }
+
   @DeleteMapping("/tenant/{tenantId}/agent-installs/{agentInstallId}")
   @ResponseStatus(HttpStatus.NO_CONTENT)
   @ApiOperation(value = "Delete an agent installation")
@@ -110,4 +217,19 @@ public class AgentInstallController {
   public void deleteAllForTenant(@PathVariable String tenantId) {
     agentInstallService.deleteAllAgentInstallsForTenant(tenantId);
   }
+
+  /**
+   * Overrides the async timeout of the given request alone. The timeout is applied as the
+   * streaming of the response body is started, which replaces the one set for every request.
+   */
+  private static void setAsyncTimeout(NativeWebRequest webRequest, Duration timeout) {
+    WebAsyncUtils.getAsyncManager(webRequest).registerCallableInterceptor(
+        AgentInstallController.class.getName() + ".asyncTimeout",
+        new CallableProcessingInterceptor() {
+          @Override
+          public <T> void beforeConcurrentHandling(NativeWebRequest request, Callable<T> task) {
+            ((AsyncWebRequest) request).setTimeout(timeout.toMillis());
+          }
+        });
+  }
 }
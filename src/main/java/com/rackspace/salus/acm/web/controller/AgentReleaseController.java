@@ -19,21 +19,15 @@ package com.rackspace.salus.acm.web.controller;
 import com.rackspace.salus.acm.services.AgentReleaseService;
 import com.rackspace.salus.acm.web.model.AgentReleaseCreate;
 import com.rackspace.salus.acm.web.model.AgentReleaseDTO;
-import com.rackspace.salus.telemetry.entities.AgentRelease;
+import com.rackspace.salus.acm.web.model.CursorPage;
 import com.rackspace.salus.telemetry.model.AgentType;
-import com.rackspace.salus.telemetry.model.NotFoundException;
 import com.rackspace.salus.telemetry.model.PagedContent;
-import com.rackspace.salus.telemetry.repositories.AgentReleaseRepository;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.Authorization;
 import io.swagger.annotations.AuthorizationScope;
-import java.util.Comparator;
-import java.util.List;
 import java.util.UUID;
-import java.util.stream.Collectors;
 import javax.validation.Valid;
-import org.apache.maven.artifact.versioning.ComparableVersion;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Pageable;
 import org.springframework.http.HttpStatus;
@@ -59,13 +53,10 @@ import org.springframework.web.bind.annotation.RestController;
 })
 public class AgentReleaseController {
 
-  private final AgentReleaseRepository agentReleaseRepository;
   private final AgentReleaseService agentReleaseService;
 
   @Autowired
-  public AgentReleaseController(AgentReleaseRepository agentReleaseRepository,
-                                AgentReleaseService agentReleaseService) {
-    this.agentReleaseRepository = agentReleaseRepository;
+  public AgentReleaseController(AgentReleaseService agentReleaseService) {
     this.agentReleaseService = agentReleaseService;
   }
 
@@ -89,38 +80,41 @@ public class AgentReleaseController {
       return getAgentReleasesForType(agentType, pageable);
     } else {
       return PagedContent.fromPage(
-          agentReleaseRepository.findAll(pageable)
-              .map(AgentReleaseDTO::new)
+          agentReleaseService.getAgentReleases(pageable)
       );
     }
   }
 
   private PagedContent<AgentReleaseDTO> getAgentReleasesForType(AgentType agentType,
                                                                 Pageable pageable) {
-    // retrieve the full list since sorting by version can't be done DB-side
-    final List<AgentRelease> all = agentReleaseRepository.findAllByType(agentType);
-
-    // sort and narrow to requested page
-    final List<AgentReleaseDTO> content = all.stream()
-        // ...type inference needs help here due to .reversed()
-        .sorted(Comparator.<AgentRelease, ComparableVersion>comparing(
-            agentRelease -> new ComparableVersion(agentRelease.getVersion())
-        ).reversed())
-        // ...offset uses page size and number
-        .skip(pageable.getOffset())
-        .limit(pageable.getPageSize())
-        .map(AgentReleaseDTO::new)
-        .collect(Collectors.toList());
-
-    final int totalPages = (int) Math.ceil((double) all.size() / pageable.getPageSize());
-
-    return new PagedContent<AgentReleaseDTO>()
-        .setContent(content)
-        .setNumber(pageable.getPageNumber())
-        .setTotalElements(all.size())
-        .setTotalPages(totalPages)
-        .setFirst(pageable.getPageNumber() == 0)
-        .setLast(pageable.getPageNumber() >= totalPages-1);
+    // sorted newest-version-first by the database using each release's version sort key
+    return PagedContent.fromPage(
+        agentReleaseService.getAgentReleasesForType(agentType, pageable)
+    );
+  }
+
+  /**
+   * Get available agent releases by cursor rather than page number, which avoids counting and
+   * keeps deep pages as cheap as the first one
+   * @param tenantId the authenticated tenant ID; however, the results of this operation do not vary by tenant
+   * @param agentType if provided, only releases of that agent type are returned and releases are
+   *  always sorted with newest-version-first; otherwise, releases are sorted by creation
+   * @param cursor the next cursor of a previous page or empty to start at the beginning
+   * @param pageable only the page size is used
+   * @return the requested agent releases
+   */
+  @GetMapping(value = "/tenant/{tenantId}/agent-releases", params = "cursor")
+  @ApiOperation(value = "Get available agent releases, by cursor")
+  public CursorPage<AgentReleaseDTO> getAgentReleasesForTenantByCursor(@PathVariable String tenantId,
+                                                                       @RequestParam(value = "type", required = false) AgentType agentType,
+                                                                       @RequestParam String cursor,
+                                                                       Pageable pageable) {
+    if (agentType != null) {
+      return agentReleaseService.getAgentReleasesForTypeAfter(
+          agentType, cursor, pageable.getPageSize());
+    } else {
+      return agentReleaseService.getAgentReleasesAfter(cursor, pageable.getPageSize());
+    }
   }
 
   @GetMapping("/tenant/{tenantId}/agent-releases/{agentReleaseId}")
@@ -131,9 +125,7 @@ public class AgentReleaseController {
     // tenantId isn't actually used, but it present to keep a consitent request path structure
     // across other APIs
 
-    return new AgentReleaseDTO(
-        agentReleaseRepository.findById(agentReleaseId)
-            .orElseThrow(() -> new NotFoundException("Unable to find agent release")));
+    return agentReleaseService.getAgentRelease(agentReleaseId);
   }
 
   @GetMapping("/admin/agent-releases")
@@ -141,19 +133,23 @@ public class AgentReleaseController {
   public PagedContent<AgentReleaseDTO> getAgentReleases(Pageable pageable) {
 
     return PagedContent.fromPage(
-        agentReleaseRepository.findAll(pageable)
-            .map(AgentReleaseDTO::new)
+        agentReleaseService.getAgentReleases(pageable)
     );
 
   }
 
+  @GetMapping(value = "/admin/agent-releases", params = "cursor")
+  @ApiOperation(value = "Get available agent releases, by cursor")
+  public CursorPage<AgentReleaseDTO> getAgentReleasesByCursor(@RequestParam String cursor,
+                                                              Pageable pageable) {
+    return agentReleaseService.getAgentReleasesAfter(cursor, pageable.getPageSize());
+  }
+
   @GetMapping("/admin/agent-releases/{agentReleaseId}")
   @ApiOperation(value = "Get a specific agent release")
   public AgentReleaseDTO getAgentRelease(@PathVariable UUID agentReleaseId) {
 
-    return new AgentReleaseDTO(
-        agentReleaseRepository.findById(agentReleaseId)
-            .orElseThrow(() -> new NotFoundException("Unable to find agent release")));
+    return agentReleaseService.getAgentRelease(agentReleaseId);
   }
 
   @PostMapping("/admin/agent-releases")
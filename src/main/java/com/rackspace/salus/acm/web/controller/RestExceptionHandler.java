@@ -16,11 +16,13 @@
 
 package com.rackspace.salus.acm.web.controller;
 
+import com.rackspace.salus.acm.services.InvalidCursorException;
 import com.rackspace.salus.common.config.MetricNames;
 import com.rackspace.salus.common.config.MetricTags;
 import com.rackspace.salus.common.errors.ResponseMessages;
 import com.rackspace.salus.telemetry.errors.AlreadyExistsException;
 import com.rackspace.salus.telemetry.model.NotFoundException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import javax.servlet.http.HttpServletRequest;
@@ -33,6 +35,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.servlet.HandlerMapping;
 
 @ControllerAdvice(basePackages = "com.rackspace.salus.acm.web")
@@ -74,6 +77,22 @@ public class RestExceptionHandler extends
     return respondWith(request, HttpStatus.UNPROCESSABLE_ENTITY);
   }
 
+  @ExceptionHandler({InvalidCursorException.class})
+  public ResponseEntity<?> handleInvalidCursor(
+      HttpServletRequest request, Exception e) {
+    agentCatalogErrorCounter.tags(MetricTags.URI_METRIC_TAG,request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE).toString(),
+        MetricTags.EXCEPTION_METRIC_TAG,e.getClass().getSimpleName()).register(meterRegistry).increment();
+    return respondWith(request, HttpStatus.BAD_REQUEST, e.getMessage());
+  }
+
+  @ExceptionHandler({CallNotPermittedException.class, ResourceAccessException.class})
+  public ResponseEntity<?> handleResourceManagementUnavailable(
+      HttpServletRequest request, Exception e) {
+    agentCatalogErrorCounter.tags(MetricTags.URI_METRIC_TAG,request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE).toString(),
+        MetricTags.EXCEPTION_METRIC_TAG,e.getClass().getSimpleName()).register(meterRegistry).increment();
+    return respondWith(request, HttpStatus.SERVICE_UNAVAILABLE, "Resource management is unavailable");
+  }
+
   @ExceptionHandler({JDBCException.class})
   public ResponseEntity<?> handleJDBCException(
       HttpServletRequest request, Exception e) {
@@ -20,7 +20,9 @@ import com.fasterxml.jackson.annotation.JsonView;
 import com.rackspace.salus.telemetry.entities.AgentInstall;
 import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
 import com.rackspace.salus.common.web.View;
+import java.io.Serializable;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import lombok.Data;
@@ -28,7 +30,7 @@ import lombok.NoArgsConstructor;
 
 @Data
 @NoArgsConstructor
-public class AgentInstallDTO {
+public class AgentInstallDTO implements Serializable {
   UUID id;
 
   @JsonView(View.Admin.class)
@@ -47,7 +49,9 @@ public class AgentInstallDTO {
     this.id = agentInstall.getId();
     this.agentRelease = new AgentReleaseDTO(agentInstall.getAgentRelease());
     this.tenantId = agentInstall.getTenantId();
-    this.labelSelector = agentInstall.getLabelSelector();
+    // copied since instances are cached beyond the persistence context
+    this.labelSelector = agentInstall.getLabelSelector() != null ?
+        new HashMap<>(agentInstall.getLabelSelector()) : null;
     this.createdTimestamp = DateTimeFormatter.ISO_INSTANT.format(agentInstall.getCreatedTimestamp());
     this.updatedTimestamp = DateTimeFormatter.ISO_INSTANT.format(agentInstall.getUpdatedTimestamp());
     this.labelSelectorMethod = agentInstall.getLabelSelectorMethod();
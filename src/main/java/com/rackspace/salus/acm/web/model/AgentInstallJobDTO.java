@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rackspace.salus.acm.web.model;
+
+import java.util.UUID;
+import lombok.Data;
+
+@Data
+public class AgentInstallJobDTO {
+  UUID id;
+
+  UUID agentInstallId;
+
+  AgentInstallJobStatus status;
+
+  /**
+   * The number of resources newly bound to the install so far
+   */
+  int resourcesBound;
+
+  /**
+   * Describes why the job failed
+   */
+  String message;
+
+  String createdTimestamp;
+  String updatedTimestamp;
+}
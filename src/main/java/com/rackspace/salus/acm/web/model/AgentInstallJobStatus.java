@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rackspace.salus.acm.web.model;
+
+public enum AgentInstallJobStatus {
+  /**
+   * The install has been saved, but binding it to resources has not started yet
+   */
+  PENDING,
+  /**
+   * The install is being bound to resources
+   */
+  RUNNING,
+  COMPLETED,
+  /**
+   * Binding stopped part way; the install remains with the bindings made so far
+   */
+  FAILED
+}
@@ -18,7 +18,9 @@ package com.rackspace.salus.acm.web.model;
 
 import com.rackspace.salus.telemetry.entities.AgentRelease;
 import com.rackspace.salus.telemetry.model.AgentType;
+import java.io.Serializable;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import lombok.Data;
@@ -26,7 +28,7 @@ import lombok.NoArgsConstructor;
 
 @Data
 @NoArgsConstructor
-public class AgentReleaseDTO {
+public class AgentReleaseDTO implements Serializable {
   UUID id;
   AgentType type;
   String version;
@@ -40,7 +42,8 @@ public class AgentReleaseDTO {
     this.id = agentRelease.getId();
     this.type = agentRelease.getType();
     this.version = agentRelease.getVersion();
-    this.labels = agentRelease.getLabels();
+    // copied since instances are cached beyond the persistence context
+    this.labels = agentRelease.getLabels() != null ? new HashMap<>(agentRelease.getLabels()) : null;
     this.url = agentRelease.getUrl();
     this.exe = agentRelease.getExe();
     this.createdTimestamp = DateTimeFormatter.ISO_INSTANT.format(agentRelease.getCreatedTimestamp());
@@ -17,12 +17,13 @@
 package com.rackspace.salus.acm.web.model;
 
 import com.rackspace.salus.telemetry.entities.BoundAgentInstall;
+import java.io.Serializable;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 @Data
 @NoArgsConstructor
-public class BoundAgentInstallDTO {
+public class BoundAgentInstallDTO implements Serializable {
   String resourceId;
 
   AgentInstallDTO agentInstall;
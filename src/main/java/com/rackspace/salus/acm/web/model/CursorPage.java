@@ -0,0 +1,35 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.web.model;
+
+import java.util.List;
+import lombok.Data;
+
+/**
+ * A page of results retrieved by cursor rather than page number. The total number of results
+ * is not computed.
+ */
+@Data
+public class CursorPage<T> {
+
+  List<T> content;
+
+  /**
+   * Opaque cursor to pass to retrieve the next page or null if this is the last page
+   */
+  String next;
+}
@@ -0,0 +1,55 @@
+-- Tables owned by this service. The shared entity tables are managed by the telemetry model.
+
+CREATE TABLE IF NOT EXISTS agent_install_event_outbox (
+  id                BIGINT       NOT NULL AUTO_INCREMENT,
+  tenant_id         VARCHAR(255) NOT NULL,
+  resource_id       VARCHAR(255) NOT NULL,
+  agent_type        VARCHAR(255) NULL,
+  op                VARCHAR(255) NOT NULL,
+  created_timestamp TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  PRIMARY KEY (id)
+);
+
+-- The instance relaying the outbox, which is taken in turn so that events are published in order
+CREATE TABLE IF NOT EXISTS agent_install_event_relay_lease (
+  id                INT          NOT NULL,
+  holder            VARCHAR(255) NULL,
+  expires_timestamp TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  PRIMARY KEY (id)
+);
+
+INSERT IGNORE INTO agent_install_event_relay_lease (id) VALUES (1);
+
+CREATE TABLE IF NOT EXISTS agent_release_sort_keys (
+  agent_release_id VARCHAR(255) NOT NULL,
+  type             VARCHAR(255) NOT NULL,
+  sort_key         VARCHAR(255) CHARACTER SET ascii COLLATE ascii_bin NOT NULL,
+  PRIMARY KEY (agent_release_id),
+  INDEX agent_release_sort_keys_by_type (type, sort_key)
+);
+
+-- The install bound to each tenant resource and agent type, which enforces that there is only one
+CREATE TABLE IF NOT EXISTS bound_agent_install_keys (
+  tenant_id        VARCHAR(255) NOT NULL,
+  resource_id      VARCHAR(255) NOT NULL,
+  agent_type       VARCHAR(64)  NOT NULL,
+  agent_install_id VARCHAR(255) NOT NULL,
+  version_sort_key VARCHAR(255) CHARACTER SET ascii COLLATE ascii_bin NOT NULL,
+  PRIMARY KEY (tenant_id, resource_id, agent_type),
+  INDEX bound_agent_install_keys_by_install (agent_install_id)
+);
+
+CREATE TABLE IF NOT EXISTS agent_install_jobs (
+  id                VARCHAR(255)  NOT NULL,
+  tenant_id         VARCHAR(255)  NOT NULL,
+  agent_install_id  VARCHAR(255)  NOT NULL,
+  status            VARCHAR(32)   NOT NULL,
+  resources_bound   INT           NOT NULL DEFAULT 0,
+  attempts          INT           NOT NULL DEFAULT 0,
+  message           VARCHAR(1024) NULL,
+  created_timestamp TIMESTAMP(3)  NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  updated_timestamp TIMESTAMP(3)  NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3),
+  PRIMARY KEY (id),
+  INDEX agent_install_jobs_by_created (created_timestamp),
+  INDEX agent_install_jobs_by_status (status, updated_timestamp)
+);
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.config;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.serverError;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.salus.resource_management.web.client.ResourceApi;
+import com.rackspace.salus.resource_management.web.model.ResourceDTO;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.cloud.contract.wiremock.AutoConfigureWireMock;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+/**
+ * Exercises the resource management client against a local WireMock stand-in.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(
+    properties = {
+        "salus.services.resource-management-url=http://localhost:${wiremock.server.port}",
+        "salus.services.resource-management-client.read-timeout=250ms",
+        "salus.services.resource-management-client.max-connections=10",
+        "salus.services.resource-management-client.circuit-breaker-sliding-window-size=4"
+    }
+)
+@AutoConfigureWireMock(port = 0)
+public class RestClientsConfigTest {
+
+  @Configuration
+  @Import({RestClientsConfig.class, ServicesProperties.class})
+  @EnableConfigurationProperties
+  public static class TestConfig {
+
+    @Bean
+    public ObjectMapper objectMapper() {
+      return new ObjectMapper();
+    }
+
+    @Bean
+    public RestTemplateBuilder restTemplateBuilder() {
+      return new RestTemplateBuilder();
+    }
+
+    @Bean
+    public MeterRegistry meterRegistry() {
+      return new SimpleMeterRegistry();
+    }
+  }
+
+  @Autowired
+  ResourceApi resourceApi;
+
+  @Autowired
+  CircuitBreaker resourceManagementCircuitBreaker;
+
+  @Autowired
+  MeterRegistry meterRegistry;
+
+  @Before
+  public void setUp() {
+    resourceManagementCircuitBreaker.reset();
+  }
+
+  @Test
+  public void testGetResourcesWithLabels() {
+    stubFor(get(anyUrl())
+        .willReturn(okJson("[{\"tenantId\":\"t-1\",\"resourceId\":\"r-1\"}]")));
+
+    final List<ResourceDTO> resources = getResources();
+
+    assertThat(resources).extracting(ResourceDTO::getResourceId).containsExactly("r-1");
+
+    assertThat(
+        meterRegistry.get("httpcomponents.httpclient.pool.total.max")
+            .tag("httpclient", "resourceManagement")
+            .gauge().value()
+    ).isEqualTo(10);
+  }
+
+  @Test
+  public void testGetResourcesWithLabels_slowResponse() {
+    stubFor(get(anyUrl())
+        .willReturn(okJson("[]").withFixedDelay(2000)));
+
+    final long start = System.currentTimeMillis();
+    assertThatThrownBy(this::getResources)
+        .isInstanceOf(ResourceAccessException.class);
+
+    // bounded by the read timeout rather than the response delay
+    assertThat(System.currentTimeMillis() - start).isLessThan(2000);
+  }
+
+  @Test
+  public void testCircuitBreakerOpens() {
+    stubFor(get(anyUrl())
+        .willReturn(serverError()));
+
+    for (int i = 0; i < 4; i++) {
+      assertThatThrownBy(this::getResources)
+          .isInstanceOf(HttpServerErrorException.class);
+    }
+
+    assertThat(resourceManagementCircuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThatThrownBy(this::getResources)
+        .isInstanceOf(CallNotPermittedException.class);
+
+    // the rejected call never reached resource management
+    verify(4, getRequestedFor(anyUrl()));
+
+    assertThat(
+        meterRegistry.get("resilience4j.circuitbreaker.not.permitted.calls")
+            .tag("name", "resourceManagement")
+            .counter().count()
+    ).isEqualTo(1);
+  }
+
+  private List<ResourceDTO> getResources() {
+    return resourceApi.getResourcesWithLabels(
+        "t-1", Collections.singletonMap("os", "linux"), LabelSelectorMethod.AND);
+  }
+}
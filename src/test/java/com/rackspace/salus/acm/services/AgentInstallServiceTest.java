@@ -19,16 +19,26 @@ package com.rackspace.salus.acm.services;
 import static com.rackspace.salus.telemetry.model.AgentType.FILEBEAT;
 import static com.rackspace.salus.telemetry.model.AgentType.TELEGRAF;
 import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
 import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
 import com.rackspace.salus.acm.web.model.AgentInstallCreate;
+import com.rackspace.salus.acm.web.model.AgentInstallDTO;
+import com.rackspace.salus.acm.web.model.AgentInstallJobDTO;
+import com.rackspace.salus.acm.web.model.AgentInstallJobStatus;
+import com.rackspace.salus.acm.web.model.BoundAgentInstallDTO;
+import com.rackspace.salus.acm.web.model.BoundAgentInstallLookup;
+import com.rackspace.salus.acm.web.model.CursorPage;
 import com.rackspace.salus.resource_management.web.client.ResourceApi;
 import com.rackspace.salus.resource_management.web.model.ResourceDTO;
 import com.rackspace.salus.telemetry.entities.AgentInstall;
@@ -36,6 +46,7 @@ import com.rackspace.salus.telemetry.entities.AgentRelease;
 import com.rackspace.salus.telemetry.entities.BoundAgentInstall;
 import com.rackspace.salus.telemetry.entities.Resource;
 import com.rackspace.salus.telemetry.errors.AlreadyExistsException;
+import com.rackspace.salus.telemetry.messaging.AgentInstallChangeEvent;
 import com.rackspace.salus.telemetry.messaging.OperationType;
 import com.rackspace.salus.telemetry.messaging.ResourceEvent;
 import com.rackspace.salus.telemetry.model.AgentType;
@@ -48,6 +59,7 @@ import com.rackspace.salus.telemetry.repositories.ResourceRepository;
 import com.rackspace.salus.telemetry.repositories.TenantMetadataRepository;
 import com.rackspace.salus.test.EnableTestContainersDatabase;
 import java.net.ConnectException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -58,6 +70,8 @@ import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Collectors;
 import javax.persistence.EntityManager;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -65,11 +79,14 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
-import org.springframework.boot.autoconfigure.cache.CacheType;
 import org.springframework.boot.autoconfigure.kafka.KafkaAutoConfiguration;
-import org.springframework.boot.test.autoconfigure.core.AutoConfigureCache;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.web.client.ResourceAccessException;
@@ -78,13 +95,17 @@ import org.springframework.web.client.ResourceAccessException;
 @RunWith(SpringRunner.class)
 @SpringBootTest(
     properties = {
-        "salus.services.resourceManagementUrl=http://this-is-a-non-null-value"
+        "salus.services.resourceManagementUrl=http://this-is-a-non-null-value",
+        // matching resources are stubbed via the resource management client
+        "salus.agent-catalog.resource-selection=REMOTE",
+        // installs are saved directly via repositories, so always verify the label index
+        "salus.agent-catalog.label-index-revalidate-after=0s",
+        // used to verify the number of statements issued
+        "spring.jpa.properties.hibernate.generate_statistics=true"
     }
 )
 @EnableTestContainersDatabase
 @EnableAutoConfiguration(exclude = KafkaAutoConfiguration.class)
-// skip the cache config to avoid cache already exists errors
-@AutoConfigureCache(cacheProvider = CacheType.NONE)
 public class AgentInstallServiceTest {
 
   @MockBean
@@ -120,14 +141,33 @@ public class AgentInstallServiceTest {
   @Autowired
   BoundAgentInstallRepository boundAgentInstallRepository;
 
+  @Autowired
+  BoundAgentInstallKeys boundAgentInstallKeys;
+
+  @Autowired
+  BoundAgentInstallCache boundAgentInstallCache;
+
+  @Autowired
+  AgentCatalogProperties agentCatalogProperties;
+
+  @Autowired
+  JdbcTemplate jdbcTemplate;
+
   @Autowired
   EntityManager em;
 
   @Captor
   ArgumentCaptor<List<TenantResource>> tenantResourcesArg;
 
+  @Autowired
+  CacheManager cacheManager;
+
   @After
   public void tearDown() {
+    // the caches are shared with other tests and don't see changes made via repositories
+    cacheManager.getCacheNames().forEach(name -> cacheManager.getCache(name).clear());
+    jdbcTemplate.update("DELETE FROM bound_agent_install_keys");
+    jdbcTemplate.update("DELETE FROM agent_install_jobs");
     boundAgentInstallRepository.deleteAll();
     agentInstallRepository.deleteAll();
     agentReleaseRepository.deleteAll();
@@ -172,11 +212,11 @@ public class AgentInstallServiceTest {
       resourceLabels.put("arch", "x64");
       resourceLabels.put("cluster", "prod");
 
-      final List<AgentInstall> matches = agentInstallService
+      final List<MatchedInstall> matches = agentInstallService
           .getInstallsFromResourceLabels("t-1", resourceLabels);
 
       final List<UUID> installIds = matches.stream()
-          .map(AgentInstall::getId)
+          .map(MatchedInstall::getId)
           .collect(Collectors.toList());
       assertThat(installIds).containsExactlyInAnyOrder(
           install1.getId(), install2.getId(), install3.getId(), install6.getId(), install8.getId(), install9.getId()
@@ -190,11 +230,11 @@ public class AgentInstallServiceTest {
       resourceLabels.put("arch", "x64");
       resourceLabels.put("cluster", "prod");
 
-      final List<AgentInstall> matches = agentInstallService
+      final List<MatchedInstall> matches = agentInstallService
           .getInstallsFromResourceLabels("t-2", resourceLabels);
 
       final List<UUID> installIds = matches.stream()
-          .map(AgentInstall::getId)
+          .map(MatchedInstall::getId)
           .collect(Collectors.toList());
       assertThat(installIds).containsExactlyInAnyOrder(
           install5.getId()
@@ -208,11 +248,11 @@ public class AgentInstallServiceTest {
       resourceLabels.put("arch", "x64");
       resourceLabels.put("cluster", "dev");
 
-      final List<AgentInstall> matches = agentInstallService
+      final List<MatchedInstall> matches = agentInstallService
           .getInstallsFromResourceLabels("t-1", resourceLabels);
 
       final List<UUID> installIds = matches.stream()
-          .map(AgentInstall::getId)
+          .map(MatchedInstall::getId)
           .collect(Collectors.toList());
       assertThat(installIds).containsExactlyInAnyOrder(
           install4.getId(), install8.getId(), install9.getId()
@@ -225,11 +265,11 @@ public class AgentInstallServiceTest {
       resourceLabels.put("os", "linux");
       resourceLabels.put("cluster", "prod");
 
-      final List<AgentInstall> matches = agentInstallService
+      final List<MatchedInstall> matches = agentInstallService
           .getInstallsFromResourceLabels("t-1", resourceLabels);
 
       final List<UUID> installIds = matches.stream()
-          .map(AgentInstall::getId)
+          .map(MatchedInstall::getId)
           .collect(Collectors.toList());
       assertThat(installIds).containsExactlyInAnyOrder(
           install1.getId(), install2.getId(), install3.getId(), install6.getId(), install8.getId(), install9.getId()
@@ -243,7 +283,7 @@ public class AgentInstallServiceTest {
       resourceLabels.put("arch", "x64");
       resourceLabels.put("cluster", "prod");
 
-      final List<AgentInstall> matches = agentInstallService
+      final List<MatchedInstall> matches = agentInstallService
           .getInstallsFromResourceLabels("t-other", resourceLabels);
 
       assertThat(matches).isEmpty();
@@ -254,11 +294,11 @@ public class AgentInstallServiceTest {
       Map<String, String> resourceLabels = new HashMap<>();
       resourceLabels.put("os", "linux");
 
-      final List<AgentInstall> matches = agentInstallService
+      final List<MatchedInstall> matches = agentInstallService
           .getInstallsFromResourceLabels("t-1", resourceLabels);
 
       final List<UUID> installIds = matches.stream()
-          .map(AgentInstall::getId)
+          .map(MatchedInstall::getId)
           .collect(Collectors.toList());
       assertThat(installIds).containsExactlyInAnyOrder(
           install8.getId(), install9.getId()
@@ -269,11 +309,11 @@ public class AgentInstallServiceTest {
       // empty resource labels should only get installs with no labels
       Map<String, String> resourceLabels = Collections.emptyMap();
 
-      final List<AgentInstall> matches = agentInstallService
+      final List<MatchedInstall> matches = agentInstallService
           .getInstallsFromResourceLabels("t-1", resourceLabels);
 
       final List<UUID> installIds = matches.stream()
-          .map(AgentInstall::getId)
+          .map(MatchedInstall::getId)
           .collect(Collectors.toList());
       assertThat(installIds).containsExactlyInAnyOrder(
           install9.getId()
@@ -281,6 +321,120 @@ public class AgentInstallServiceTest {
     }
   }
 
+  @Test
+  public void testQueryInstallsFromLabels() {
+    final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
+
+    final AgentInstall installAnd = saveInstall(
+        release1, "t-1", LabelSelectorMethod.AND, "os", "linux", "cluster", "prod");
+    final AgentInstall installOr = saveInstall(
+        release1, "t-1", LabelSelectorMethod.OR, "os", "windows", "cluster", "prod");
+    saveInstall(
+        release1, "t-1", LabelSelectorMethod.AND, "os", "linux", "cluster", "dev");
+    final AgentInstall installEmpty = saveInstall(
+        release1, "t-1", LabelSelectorMethod.OR);
+
+    Map<String, String> resourceLabels = new HashMap<>();
+    resourceLabels.put("os", "linux");
+    resourceLabels.put("cluster", "prod");
+
+    // the database query path should agree with the label index
+    final List<UUID> queried = agentInstallService
+        .queryInstallsFromResourceLabels("t-1", resourceLabels).stream()
+        .map(AgentInstall::getId)
+        .collect(Collectors.toList());
+    final List<UUID> indexed = agentInstallService
+        .getInstallsFromResourceLabels("t-1", resourceLabels).stream()
+        .map(MatchedInstall::getId)
+        .collect(Collectors.toList());
+
+    assertThat(queried).containsExactlyInAnyOrder(
+        installAnd.getId(), installOr.getId(), installEmpty.getId());
+    assertThat(indexed).containsExactlyInAnyOrder(queried.toArray(new UUID[0]));
+  }
+
+  @Test
+  public void testQueryInstallsFromLabels_beyondFirstBucket() {
+    final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
+
+    final AgentInstall install = saveInstall(
+        release1, "t-1", LabelSelectorMethod.AND, "os", "linux", "zone", "z5");
+
+    Map<String, String> resourceLabels = new HashMap<>();
+    for (int i = 1; i <= 4; i++) {
+      resourceLabels.put("label" + i, "value" + i);
+    }
+    resourceLabels.put("os", "linux");
+    resourceLabels.put("zone", "z5");
+
+    assertThat(AgentInstallService.labelMatchBucket(resourceLabels.size())).isEqualTo(8);
+    assertThat(agentInstallService.queryInstallsFromResourceLabels("t-1", resourceLabels))
+        .extracting(AgentInstall::getId)
+        .containsExactly(install.getId());
+
+    assertThat(AgentInstallService.labelMatchBucket(0)).isEqualTo(4);
+    assertThat(AgentInstallService.labelMatchBucket(4)).isEqualTo(4);
+    assertThat(AgentInstallService.labelMatchBucket(17)).isEqualTo(32);
+  }
+
+  @Test
+  public void testGetInstallsFromLabels_tracksInstallChanges() {
+    final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
+
+    when(resourceApi.getResourcesWithLabels(eq("t-1"), any(), any()))
+        .thenReturn(Collections.emptyList());
+
+    final Map<String, String> resourceLabels = Collections.singletonMap("os", "linux");
+
+    // prime the index for the tenant
+    assertThat(agentInstallService.getInstallsFromResourceLabels("t-1", resourceLabels))
+        .isEmpty();
+
+    final AgentInstall install = agentInstallService.install(
+        "t-1",
+        new AgentInstallCreate()
+            .setAgentReleaseId(release1.getId())
+            .setLabelSelector(resourceLabels)
+            .setLabelSelectorMethod(LabelSelectorMethod.AND)
+    );
+
+    assertThat(agentInstallService.getInstallsFromResourceLabels("t-1", resourceLabels))
+        .extracting(MatchedInstall::getId)
+        .containsExactly(install.getId());
+
+    agentInstallService.delete("t-1", install.getId());
+
+    assertThat(agentInstallService.getInstallsFromResourceLabels("t-1", resourceLabels))
+        .isEmpty();
+  }
+
+  @Test
+  public void testGetInstallsFromLabels_tracksSelectorChangesOfOtherInstances() {
+    final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
+
+    final AgentInstall install = saveInstall(
+        release1, "t-1", LabelSelectorMethod.AND, "os", "linux");
+
+    final Map<String, String> linux = Collections.singletonMap("os", "linux");
+    final Map<String, String> windows = Collections.singletonMap("os", "windows");
+
+    assertThat(agentInstallService.getInstallsFromResourceLabels("t-1", linux))
+        .extracting(MatchedInstall::getId)
+        .containsExactly(install.getId());
+
+    // change the selector as another instance would, without evicting the local index
+    jdbcTemplate.update(
+        "UPDATE agent_install_label_selectors SET label_selector = 'windows'"
+            + " WHERE agent_install_id = ?",
+        install.getId().toString());
+
+    assertThat(agentInstallService.getInstallsFromResourceLabels("t-1", linux))
+        .isEmpty();
+    assertThat(agentInstallService.getInstallsFromResourceLabels("t-1", windows))
+        .extracting(MatchedInstall::getId)
+        .containsExactly(install.getId());
+  }
+
   @Test
   public void testDefaultLabelSelectorMethod() {
     final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
@@ -295,7 +449,7 @@ public class AgentInstallServiceTest {
             .setLabelSelector(labelSelector)
     );
 
-    List<AgentInstall> savedInstalls = agentInstallService.getInstallsFromResourceLabels("t-1", labelSelector);
+    List<MatchedInstall> savedInstalls = agentInstallService.getInstallsFromResourceLabels("t-1", labelSelector);
     assertThat(savedInstalls.size()).isEqualTo(1);
     assertThat(savedInstalls.get(0).getLabelSelectorMethod()).isEqualTo(LabelSelectorMethod.AND);
   }
@@ -497,6 +651,254 @@ public class AgentInstallServiceTest {
     verifyNoMoreInteractions(boundEventSender, resourceApi);
   }
 
+  @Test
+  public void testGetBindingForResourceAndAgentType() {
+    final AgentRelease telegrafRelease = saveRelease("1.0.0", TELEGRAF);
+    final AgentRelease filebeatRelease = saveRelease("2.0.0", FILEBEAT);
+    final AgentInstall telegrafInstall = saveInstall(telegrafRelease, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    final AgentInstall filebeatInstall = saveInstall(filebeatRelease, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    saveBinding(telegrafInstall, "r-1");
+    saveBinding(filebeatInstall, "r-1");
+
+    final BoundAgentInstallDTO binding = agentInstallService
+        .getBindingForResourceAndAgentType("t-1", "r-1", FILEBEAT);
+
+    assertThat(binding.getResourceId()).isEqualTo("r-1");
+    assertThat(binding.getAgentInstall().getId()).isEqualTo(filebeatInstall.getId());
+    assertThat(binding.getAgentInstall().getAgentRelease().getVersion()).isEqualTo("2.0.0");
+
+    assertThatThrownBy(() ->
+        agentInstallService.getBindingForResourceAndAgentType("t-2", "r-1", FILEBEAT))
+        .isInstanceOf(NotFoundException.class);
+  }
+
+  @Test
+  public void testGetBindingForResourceAndAgentType_evictedByBindingChanges() {
+    when(resourceRepository.findByTenantIdAndResourceId(any(), any()))
+        .then(invocationOnMock ->
+            Optional.of(new Resource()
+                .setAssociatedWithEnvoy(true)
+                .setTenantId(invocationOnMock.getArgument(0))
+                .setResourceId(invocationOnMock.getArgument(1))
+                .setLabels(singletonMap("os", "windows")))
+        );
+
+    final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
+    final AgentInstall install = saveInstall(release, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    saveBinding(install, "r-1");
+
+    assertThat(agentInstallService.getBindingForResourceAndAgentType("t-1", "r-1", TELEGRAF)
+        .getAgentInstall().getId()).isEqualTo(install.getId());
+
+    // unbound by this instance since the resource no longer matches
+    agentInstallService.handleResourceEvent(
+        new ResourceEvent()
+            .setTenantId("t-1")
+            .setResourceId("r-1")
+            .setLabelsChanged(true)
+    );
+
+    assertThatThrownBy(() ->
+        agentInstallService.getBindingForResourceAndAgentType("t-1", "r-1", TELEGRAF))
+        .isInstanceOf(NotFoundException.class);
+
+    // bound and then unbound by another instance, which is only seen via the change events
+    saveBinding(install, "r-1");
+    assertThat(agentInstallService.getBindingForResourceAndAgentType("t-1", "r-1", TELEGRAF)
+        .getAgentInstall().getId()).isEqualTo(install.getId());
+
+    boundAgentInstallRepository.deleteAll();
+    assertThat(agentInstallService.getBindingForResourceAndAgentType("t-1", "r-1", TELEGRAF)
+        .getAgentInstall().getId()).isEqualTo(install.getId());
+
+    boundAgentInstallCache.consumeInstallChangeEvents(Collections.singletonList(
+        new AgentInstallChangeEvent()
+            .setTenantId("t-1")
+            .setResourceId("r-1")
+            .setAgentType(TELEGRAF)
+            .setOp(OperationType.DELETE)
+    ));
+
+    assertThatThrownBy(() ->
+        agentInstallService.getBindingForResourceAndAgentType("t-1", "r-1", TELEGRAF))
+        .isInstanceOf(NotFoundException.class);
+  }
+
+  @Test
+  public void testFindBindings() {
+    final AgentRelease telegrafRelease = saveRelease("1.0.0", TELEGRAF);
+    final AgentRelease filebeatRelease = saveRelease("2.0.0", FILEBEAT);
+    final AgentInstall t1Telegraf = saveInstall(telegrafRelease, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    final AgentInstall t1Filebeat = saveInstall(filebeatRelease, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    final AgentInstall t2Telegraf = saveInstall(telegrafRelease, "t-2", LabelSelectorMethod.AND, "os", "linux");
+    saveBinding(t1Telegraf, "r-1");
+    saveBinding(t1Filebeat, "r-1");
+    saveBinding(t1Telegraf, "r-2");
+    saveBinding(t2Telegraf, "r-1");
+
+    final List<BoundAgentInstallDTO> found = new ArrayList<>();
+    agentInstallService.findBindings(Arrays.asList(
+        new BoundAgentInstallLookup().setTenantId("t-1").setResourceId("r-1").setAgentType(TELEGRAF),
+        new BoundAgentInstallLookup().setTenantId("t-2").setResourceId("r-1").setAgentType(TELEGRAF),
+        // not bound
+        new BoundAgentInstallLookup().setTenantId("t-2").setResourceId("r-2").setAgentType(TELEGRAF)
+    ), found::add);
+
+    assertThat(found)
+        .extracting(binding -> binding.getResourceId() + ":" + binding.getAgentInstall().getId())
+        .containsExactlyInAnyOrder(
+            "r-1:" + t1Telegraf.getId(),
+            "r-1:" + t2Telegraf.getId()
+        );
+  }
+
+  @Test
+  public void testExportInstalls() {
+    final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
+    final AgentInstall install1 = saveInstall(release, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    final AgentInstall install2 = saveInstall(release, "t-1", LabelSelectorMethod.AND, "os", "windows");
+    final AgentInstall otherTenant = saveInstall(release, "t-2", LabelSelectorMethod.AND, "os", "linux");
+    saveBinding(install1, "r-1");
+    saveBinding(install1, "r-2");
+    saveBinding(install2, "r-3");
+    saveBinding(otherTenant, "r-1");
+
+    final List<AgentInstallDTO> installs = new ArrayList<>();
+    final List<BoundAgentInstallDTO> bindings = new ArrayList<>();
+    agentInstallService.exportInstalls("t-1", installs::add, bindings::add);
+
+    assertThat(installs).extracting(AgentInstallDTO::getId)
+        .containsExactlyInAnyOrder(install1.getId(), install2.getId());
+    assertThat(installs).allSatisfy(dto ->
+        assertThat(dto.getAgentRelease().getVersion()).isEqualTo("1.0.0"));
+
+    assertThat(bindings)
+        .extracting(binding -> binding.getResourceId() + ":" + binding.getAgentInstall().getId())
+        .containsExactlyInAnyOrder(
+            "r-1:" + install1.getId(),
+            "r-2:" + install1.getId(),
+            "r-3:" + install2.getId()
+        );
+  }
+
+  @Test
+  public void testGetAgentInstalls_statementsPerPage() {
+    final List<AgentRelease> releases = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      releases.add(agentReleaseRepository.save(
+          new AgentRelease()
+              .setType(TELEGRAF).setVersion("1." + i + ".0").setUrl("").setExe("")
+              .setLabels(Map.of("os", "linux", "arch", "amd64"))
+      ));
+    }
+    for (int i = 0; i < 30; i++) {
+      saveInstall(releases.get(i % releases.size()), "t-1", LabelSelectorMethod.AND,
+          "env", "prod", "index", String.valueOf(i));
+    }
+
+    final Statistics statistics = em.getEntityManagerFactory()
+        .unwrap(SessionFactory.class).getStatistics();
+
+    for (int pageSize : new int[]{5, 25}) {
+      statistics.clear();
+
+      final Page<AgentInstallDTO> page = agentInstallService.getAgentInstalls(
+          "t-1", PageRequest.of(0, pageSize, Sort.by("createdTimestamp")));
+
+      assertThat(page.getContent()).hasSize(pageSize);
+      assertThat(page.getTotalElements()).isEqualTo(30);
+      assertThat(page.getContent()).allSatisfy(dto -> {
+        assertThat(dto.getLabelSelector()).containsEntry("env", "prod");
+        assertThat(dto.getAgentRelease().getLabels()).containsEntry("os", "linux");
+      });
+      // the count, the page of IDs, and the installs with everything they reference
+      assertThat(statistics.getPrepareStatementCount()).isEqualTo(3);
+    }
+  }
+
+  @Test
+  public void testGetAgentInstallsAfter() {
+    final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
+    final List<UUID> expectedIds = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      expectedIds.add(
+          saveInstall(release, "t-1", LabelSelectorMethod.AND, "os", "linux-" + i).getId());
+    }
+    saveInstall(release, "t-2", LabelSelectorMethod.AND, "os", "linux");
+
+    final List<UUID> retrievedIds = new ArrayList<>();
+    String cursor = null;
+    int pages = 0;
+    do {
+      final CursorPage<AgentInstallDTO> page =
+          agentInstallService.getAgentInstallsAfter("t-1", cursor, 2);
+      assertThat(page.getContent()).hasSizeLessThanOrEqualTo(2);
+      page.getContent().forEach(dto -> retrievedIds.add(dto.getId()));
+      cursor = page.getNext();
+      pages++;
+    } while (cursor != null);
+
+    assertThat(pages).isEqualTo(3);
+    assertThat(retrievedIds).containsExactlyInAnyOrder(expectedIds.toArray(new UUID[0]));
+    assertThat(retrievedIds).doesNotHaveDuplicates();
+  }
+
+  @Test
+  public void testGetAgentInstallsAfter_invalidCursor() {
+    assertThatThrownBy(() -> agentInstallService.getAgentInstallsAfter("t-1", "not-a-cursor", 2))
+        .isInstanceOf(InvalidCursorException.class);
+  }
+
+  @Test
+  public void testInstall_mixOfPriorBindings() {
+    final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
+    final AgentRelease release2 = saveRelease("2.0.0", TELEGRAF);
+    final AgentRelease release3 = saveRelease("3.0.0", TELEGRAF);
+
+    when(resourceApi.getResourcesWithLabels(eq("t-1"), any(), eq(LabelSelectorMethod.AND)))
+        .thenReturn(Arrays.asList(
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-unbound"),
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-older"),
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-newer")
+        ));
+
+    final AgentInstall olderInstall = saveInstall(release1, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    final AgentInstall newerInstall = saveInstall(release3, "t-1", LabelSelectorMethod.AND, "os", "windows");
+    saveBinding(olderInstall, "r-older");
+    saveBinding(newerInstall, "r-newer");
+
+    // EXECUTE
+
+    final AgentInstall agentInstall = agentInstallService.install(
+        "t-1",
+        new AgentInstallCreate()
+            .setAgentReleaseId(release2.getId())
+            .setLabelSelector(Collections.singletonMap("env", "prod"))
+            .setLabelSelectorMethod(LabelSelectorMethod.AND)
+    );
+
+    // VERIFY
+
+    final Map<String, UUID> boundInstalls = new HashMap<>();
+    boundAgentInstallRepository.findAll().forEach(binding ->
+        boundInstalls.put(binding.getResourceId(), binding.getAgentInstall().getId()));
+    assertThat(boundInstalls).containsOnly(
+        entry("r-unbound", agentInstall.getId()),
+        entry("r-older", agentInstall.getId()),
+        entry("r-newer", newerInstall.getId())
+    );
+
+    verify(resourceApi).getResourcesWithLabels(
+        "t-1", Collections.singletonMap("env", "prod"), LabelSelectorMethod.AND);
+
+    verify(boundEventSender).sendTo(OperationType.UPSERT, TELEGRAF, Arrays.asList(
+        new TenantResource("t-1", "r-unbound"),
+        new TenantResource("t-1", "r-older")
+    ));
+
+    verifyNoMoreInteractions(boundEventSender, resourceApi);
+  }
+
   @Test
   public void testInstall_priorMultipleNewer() {
     final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
@@ -557,6 +959,329 @@ public class AgentInstallServiceTest {
     verifyNoMoreInteractions(boundEventSender, resourceApi);
   }
 
+  @Test
+  public void testInstall_priorOverlapping() {
+    final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
+    final AgentRelease release2 = saveRelease("2.0.0", TELEGRAF);
+    final AgentRelease release3 = saveRelease("3.0.0", TELEGRAF);
+
+    when(resourceApi.getResourcesWithLabels(eq("t-1"), any(), eq(LabelSelectorMethod.AND)))
+        .thenReturn(Collections.singletonList(
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-1")
+        ));
+
+    final AgentInstall olderInstall = saveInstall(release1, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    final AgentInstall newerInstall = saveInstall(release3, "t-1", LabelSelectorMethod.AND, "env", "prod");
+    // overlapping bindings, as could be left by concurrent installs prior to binding keys
+    saveBinding(olderInstall, "r-1");
+    saveBinding(newerInstall, "r-1");
+
+    // EXECUTE
+
+    final AgentInstall agentInstall = agentInstallService.install(
+        "t-1",
+        new AgentInstallCreate()
+            .setAgentReleaseId(release2.getId())
+            .setLabelSelector(Collections.singletonMap("arch", "amd64"))
+            .setLabelSelectorMethod(LabelSelectorMethod.AND)
+    );
+
+    // VERIFY
+
+    assertThat(agentInstall.getId()).isNotNull();
+
+    // newer than the oldest binding but not the newest, so only the overlap is cleaned up
+    assertThat(boundAgentInstallRepository.findAll())
+        .extracting(binding -> binding.getResourceId() + "=" + binding.getAgentInstall().getId())
+        .containsExactly("r-1=" + newerInstall.getId());
+    assertThat(queryBindingKeys("t-1")).containsOnly(
+        entry("r-1", newerInstall.getId().toString())
+    );
+
+    verify(resourceApi).getResourcesWithLabels("t-1",
+        Collections.singletonMap("arch", "amd64"), LabelSelectorMethod.AND);
+
+    // the resource remains bound to the newer install, so no bound events are sent
+    verifyNoMoreInteractions(boundEventSender, resourceApi);
+  }
+
+  @Test
+  public void testInstall_maintainsBindingKeys() {
+    final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
+    final AgentRelease release2 = saveRelease("2.0.0", TELEGRAF);
+    final AgentRelease release3 = saveRelease("3.0.0", TELEGRAF);
+
+    when(resourceApi.getResourcesWithLabels(eq("t-1"), any(), eq(LabelSelectorMethod.AND)))
+        .thenReturn(Arrays.asList(
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-older"),
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-newer"),
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-unbound")
+        ));
+
+    final AgentInstall olderInstall = saveInstall(release1, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    final AgentInstall newerInstall = saveInstall(release3, "t-1", LabelSelectorMethod.AND, "os", "windows");
+    // saved without keys, as by an earlier release of this service during a rolling deploy
+    saveBinding(olderInstall, "r-older");
+    saveBinding(newerInstall, "r-newer");
+
+    final AgentInstall agentInstall = agentInstallService.install(
+        "t-1",
+        new AgentInstallCreate()
+            .setAgentReleaseId(release2.getId())
+            .setLabelSelector(Collections.singletonMap("env", "prod"))
+            .setLabelSelectorMethod(LabelSelectorMethod.AND)
+    );
+
+    // the newer binding is kept even though the new install claimed its missing key
+    assertThat(boundAgentInstallRepository.findAll())
+        .extracting(binding -> binding.getResourceId() + "=" + binding.getAgentInstall().getId())
+        .containsExactlyInAnyOrder(
+            "r-older=" + agentInstall.getId(),
+            "r-newer=" + newerInstall.getId(),
+            "r-unbound=" + agentInstall.getId()
+        );
+    assertThat(queryBindingKeys("t-1")).containsOnly(
+        entry("r-older", agentInstall.getId().toString()),
+        entry("r-newer", newerInstall.getId().toString()),
+        entry("r-unbound", agentInstall.getId().toString())
+    );
+
+    agentInstallService.delete("t-1", agentInstall.getId());
+
+    assertThat(queryBindingKeys("t-1")).containsOnly(
+        entry("r-newer", newerInstall.getId().toString())
+    );
+  }
+
+  @Test
+  public void testInstallAndRelabel_qualifiedVersions() {
+    final AgentRelease release1 = saveRelease("1.13.3-1", TELEGRAF);
+    final AgentRelease release2 = saveRelease("1.13.3-2", TELEGRAF);
+
+    when(resourceApi.getResourcesWithLabels(eq("t-1"), eq(Collections.singletonMap("os", "linux")),
+        eq(LabelSelectorMethod.AND)))
+        .thenReturn(Collections.singletonList(
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-1")
+        ));
+    when(resourceApi.getResourcesWithLabels(eq("t-1"), eq(Collections.singletonMap("env", "prod")),
+        eq(LabelSelectorMethod.AND)))
+        .thenReturn(Collections.emptyList());
+
+    final AgentInstall install1 = agentInstallService.install(
+        "t-1",
+        new AgentInstallCreate()
+            .setAgentReleaseId(release1.getId())
+            .setLabelSelector(Collections.singletonMap("os", "linux"))
+            .setLabelSelectorMethod(LabelSelectorMethod.AND)
+    );
+
+    assertThat(boundAgentInstallRepository.findAll())
+        .extracting(binding -> binding.getResourceId() + "=" + binding.getAgentInstall().getId())
+        .containsExactly("r-1=" + install1.getId());
+    assertThat(queryBindingKeys("t-1")).containsOnly(
+        entry("r-1", install1.getId().toString())
+    );
+
+    final AgentInstall install2 = agentInstallService.install(
+        "t-1",
+        new AgentInstallCreate()
+            .setAgentReleaseId(release2.getId())
+            .setLabelSelector(Collections.singletonMap("env", "prod"))
+            .setLabelSelectorMethod(LabelSelectorMethod.AND)
+    );
+
+    final Map<String, String> resourceLabels = new HashMap<>();
+    resourceLabels.put("os", "linux");
+    resourceLabels.put("env", "prod");
+    when(resourceRepository.findByTenantIdAndResourceId("t-1", "r-1"))
+        .thenReturn(Optional.of(new Resource()
+            .setAssociatedWithEnvoy(true)
+            .setTenantId("t-1")
+            .setResourceId("r-1")
+            .setLabels(resourceLabels)));
+
+    // EXECUTE
+
+    agentInstallService.handleResourceEvent(
+        new ResourceEvent()
+            .setTenantId("t-1")
+            .setResourceId("r-1")
+            .setLabelsChanged(true)
+    );
+
+    // VERIFY
+
+    assertThat(boundAgentInstallRepository.findAll())
+        .extracting(binding -> binding.getResourceId() + "=" + binding.getAgentInstall().getId())
+        .containsExactly("r-1=" + install2.getId());
+    assertThat(queryBindingKeys("t-1")).containsOnly(
+        entry("r-1", install2.getId().toString())
+    );
+  }
+
+  @Test
+  public void testBackfillKeys() {
+    final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
+    final AgentInstall install = saveInstall(release, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    // saved without keys, as prior to their introduction
+    boundAgentInstallRepository.save(new BoundAgentInstall().setAgentInstall(install).setResourceId("r-1"));
+    boundAgentInstallRepository.save(new BoundAgentInstall().setAgentInstall(install).setResourceId("r-2"));
+
+    boundAgentInstallKeys.backfillKeys();
+
+    assertThat(queryBindingKeys("t-1")).containsOnly(
+        entry("r-1", install.getId().toString()),
+        entry("r-2", install.getId().toString())
+    );
+  }
+
+  @Test
+  public void testInstall_bindsInChunks() {
+    final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
+
+    when(resourceApi.getResourcesWithLabels(eq("t-1"), any(), eq(LabelSelectorMethod.AND)))
+        .thenReturn(Arrays.asList(
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-1"),
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-2"),
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-1"),
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-3")
+        ));
+
+    final int originalChunkSize = agentCatalogProperties.getBindingChunkSize();
+    agentCatalogProperties.setBindingChunkSize(2);
+    try {
+      agentInstallService.install("t-1",
+          new AgentInstallCreate()
+              .setAgentReleaseId(release.getId())
+              .setLabelSelector(Collections.singletonMap("os", "linux"))
+              .setLabelSelectorMethod(LabelSelectorMethod.AND)
+      );
+    } finally {
+      agentCatalogProperties.setBindingChunkSize(originalChunkSize);
+    }
+
+    assertThat(boundAgentInstallRepository.findAll())
+        .extracting(BoundAgentInstall::getResourceId)
+        .containsExactlyInAnyOrder("r-1", "r-2", "r-3");
+
+    // the duplicate resource is dropped and each chunk is published separately
+    verify(boundEventSender, times(2))
+        .sendTo(eq(OperationType.UPSERT), eq(TELEGRAF), tenantResourcesArg.capture());
+    assertThat(tenantResourcesArg.getAllValues()).containsExactly(
+        Arrays.asList(new TenantResource("t-1", "r-1"), new TenantResource("t-1", "r-2")),
+        Collections.singletonList(new TenantResource("t-1", "r-3"))
+    );
+  }
+
+  @Test
+  public void testInstallAsync() throws InterruptedException {
+    final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
+
+    when(resourceApi.getResourcesWithLabels(eq("t-1"), any(), eq(LabelSelectorMethod.AND)))
+        .thenReturn(Arrays.asList(
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-1"),
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-2"),
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-3")
+        ));
+
+    final int originalChunkSize = agentCatalogProperties.getBindingChunkSize();
+    agentCatalogProperties.setBindingChunkSize(2);
+    final AgentInstallJobDTO finished;
+    try {
+      final AgentInstallJobDTO job = agentInstallService.installAsync("t-1",
+          new AgentInstallCreate()
+              .setAgentReleaseId(release.getId())
+              .setLabelSelector(Collections.singletonMap("os", "linux"))
+              .setLabelSelectorMethod(LabelSelectorMethod.AND)
+      );
+      assertThat(job.getStatus()).isEqualTo(AgentInstallJobStatus.PENDING);
+      assertThat(agentInstallRepository.findById(job.getAgentInstallId())).isPresent();
+
+      finished = awaitInstallJob("t-1", job.getId());
+    } finally {
+      agentCatalogProperties.setBindingChunkSize(originalChunkSize);
+    }
+
+    assertThat(finished.getStatus()).isEqualTo(AgentInstallJobStatus.COMPLETED);
+    assertThat(finished.getResourcesBound()).isEqualTo(3);
+    assertThat(boundAgentInstallRepository.findAll())
+        .extracting(BoundAgentInstall::getResourceId)
+        .containsExactlyInAnyOrder("r-1", "r-2", "r-3");
+
+    // an event per chunk of resources
+    verify(boundEventSender, times(2))
+        .sendTo(eq(OperationType.UPSERT), eq(TELEGRAF), tenantResourcesArg.capture());
+
+    // and other tenants can't see the job
+    assertThat(agentInstallService.getInstallJob("t-2", finished.getId())).isNotPresent();
+  }
+
+  @Test
+  public void testInstallAsync_resourceManagementDown() throws InterruptedException {
+    final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
+
+    when(resourceApi.getResourcesWithLabels(any(), any(), any()))
+        .thenThrow(new ResourceAccessException("connection refused"));
+
+    final AgentInstallJobDTO job = agentInstallService.installAsync("t-1",
+        new AgentInstallCreate()
+            .setAgentReleaseId(release.getId())
+            .setLabelSelector(Collections.singletonMap("os", "linux"))
+            .setLabelSelectorMethod(LabelSelectorMethod.AND)
+    );
+
+    final AgentInstallJobDTO finished = awaitInstallJob("t-1", job.getId());
+    assertThat(finished.getStatus()).isEqualTo(AgentInstallJobStatus.FAILED);
+    assertThat(finished.getMessage()).contains("connection refused");
+
+    // the install remains, unlike a synchronous install
+    assertThat(agentInstallRepository.findById(job.getAgentInstallId())).isPresent();
+    verifyNoMoreInteractions(boundEventSender);
+  }
+
+  @Test
+  public void testResumeInstallJobs_abandoned() throws InterruptedException {
+    final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
+    final AgentInstall install = saveInstall(release, "t-1", LabelSelectorMethod.AND, "os", "linux");
+
+    when(resourceApi.getResourcesWithLabels(eq("t-1"), any(), eq(LabelSelectorMethod.AND)))
+        .thenReturn(Collections.singletonList(
+            new ResourceDTO().setTenantId("t-1").setResourceId("r-1")
+        ));
+
+    // left running by an instance that stopped, and left failing after too many attempts
+    final UUID abandonedId = saveInstallJob(install, AgentInstallJobStatus.RUNNING, 1);
+    final UUID exhaustedId = saveInstallJob(install, AgentInstallJobStatus.RUNNING,
+        agentCatalogProperties.getInstallJobMaxAttempts());
+
+    agentInstallService.resumeInstallJobs();
+
+    final AgentInstallJobDTO abandoned = awaitInstallJob("t-1", abandonedId);
+    assertThat(abandoned.getStatus()).isEqualTo(AgentInstallJobStatus.COMPLETED);
+    assertThat(abandoned.getResourcesBound()).isEqualTo(1);
+    assertThat(boundAgentInstallRepository.findAll())
+        .extracting(BoundAgentInstall::getResourceId)
+        .containsExactly("r-1");
+
+    final AgentInstallJobDTO exhausted = agentInstallService.getInstallJob("t-1", exhaustedId).get();
+    assertThat(exhausted.getStatus()).isEqualTo(AgentInstallJobStatus.FAILED);
+    assertThat(exhausted.getMessage()).contains("Abandoned");
+  }
+
+  @Test
+  public void testRunInstallJob_notPending() {
+    final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
+    final AgentInstall install = saveInstall(release, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    final UUID jobId = saveInstallJob(install, AgentInstallJobStatus.RUNNING, 1);
+
+    // such as a job that is resumed while another instance is still running it
+    agentInstallService.runInstallJob(jobId, install.getId());
+
+    assertThat(agentInstallService.getInstallJob("t-1", jobId).get().getStatus())
+        .isEqualTo(AgentInstallJobStatus.RUNNING);
+    verifyNoMoreInteractions(resourceApi, boundEventSender);
+  }
+
   @Test
   public void testInstall_alreadyExists() {
     final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
@@ -705,6 +1430,39 @@ public class AgentInstallServiceTest {
     verifyNoMoreInteractions(boundEventSender, resourceApi);
   }
 
+  @Test
+  public void testDelete_inChunks() {
+    final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
+    final AgentInstall install = saveInstall(release, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    for (int i = 0; i < 5; i++) {
+      saveBinding(install, "r-" + i);
+    }
+
+    final int originalChunkSize = agentCatalogProperties.getDeleteChunkSize();
+    agentCatalogProperties.setDeleteChunkSize(2);
+    try {
+      agentInstallService.delete("t-1", install.getId());
+    } finally {
+      agentCatalogProperties.setDeleteChunkSize(originalChunkSize);
+    }
+
+    assertThat(agentInstallRepository.findById(install.getId())).isNotPresent();
+    assertThat(boundAgentInstallRepository.findAll()).isEmpty();
+    assertThat(queryBindingKeys("t-1")).isEmpty();
+
+    // an event per chunk of bindings
+    verify(boundEventSender, times(3))
+        .sendTo(eq(OperationType.DELETE), eq(TELEGRAF), tenantResourcesArg.capture());
+    assertThat(tenantResourcesArg.getAllValues()).extracting(List::size)
+        .containsExactly(2, 2, 1);
+    assertThat(tenantResourcesArg.getAllValues().stream()
+        .flatMap(List::stream)
+        .map(TenantResource::getResourceId))
+        .containsExactlyInAnyOrder("r-0", "r-1", "r-2", "r-3", "r-4");
+
+    verifyNoMoreInteractions(boundEventSender, resourceApi);
+  }
+
   @Test
   public void testDeleteAgentInstallsForTenant() {
     final AgentRelease release = saveRelease("1.0.0", TELEGRAF);
@@ -869,6 +1627,58 @@ public class AgentInstallServiceTest {
     verifyNoMoreInteractions(boundEventSender, resourceApi);
   }
 
+  @Test
+  public void testHandleResourceEvent_labelsChanged_installDeletedElsewhere() {
+    when(resourceRepository.findByTenantIdAndResourceId("t-1", "r-1"))
+        .thenReturn(Optional.of(new Resource()
+            .setAssociatedWithEnvoy(true)
+            .setTenantId("t-1")
+            .setResourceId("r-1")
+            .setLabels(Collections.singletonMap("os", "linux"))));
+
+    final AgentRelease release1 = saveRelease("1.0.0", TELEGRAF);
+    final AgentRelease release2 = saveRelease("2.0.0", TELEGRAF);
+    final AgentInstall olderInstall = saveInstall(release1, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    final AgentInstall newerInstall = saveInstall(release2, "t-1", LabelSelectorMethod.AND, "os", "linux");
+
+    final Duration revalidateAfter = agentCatalogProperties.getLabelIndexRevalidateAfter();
+    agentCatalogProperties.setLabelIndexRevalidateAfter(Duration.ofMinutes(1));
+    try {
+      // indexes both installs
+      assertThat(agentInstallService.getInstallsFromResourceLabels(
+          "t-1", Collections.singletonMap("os", "linux")))
+          .hasSize(2);
+
+      // as by another instance, which leaves the index of this one unaware
+      agentInstallRepository.deleteById(newerInstall.getId());
+
+      // EXECUTE
+
+      agentInstallService.handleResourceEvent(
+          new ResourceEvent()
+              .setTenantId("t-1")
+              .setResourceId("r-1")
+              .setLabelsChanged(true)
+      );
+    } finally {
+      agentCatalogProperties.setLabelIndexRevalidateAfter(revalidateAfter);
+    }
+
+    // VERIFY
+
+    assertThat(boundAgentInstallRepository.findAll())
+        .extracting(binding -> binding.getResourceId() + "=" + binding.getAgentInstall().getId())
+        .containsExactly("r-1=" + olderInstall.getId());
+    assertThat(queryBindingKeys("t-1")).containsOnly(
+        entry("r-1", olderInstall.getId().toString())
+    );
+
+    verify(boundEventSender).sendTo(eq(OperationType.UPSERT), eq(TELEGRAF), tenantResourcesArg.capture());
+    assertThat(tenantResourcesArg.getValue()).containsExactly(
+        new TenantResource("t-1", "r-1")
+    );
+  }
+
   @Test
   public void testHandleResourceEvent_labelsChanged_newBindingandEnvoyReattach() {
     Map<String, String> resourceLabels = new HashMap<>();
@@ -1298,6 +2108,46 @@ public class AgentInstallServiceTest {
     verifyNoMoreInteractions(boundEventSender, resourceApi);
   }
 
+  @Test
+  public void testHandleResourceEvents_batchOfReattaches() {
+    final AgentRelease releaseT = saveRelease("1.0.0", TELEGRAF);
+    final AgentRelease releaseF = saveRelease("1.0.0", FILEBEAT);
+
+    final AgentInstall installT = saveInstall(releaseT, "t-1", LabelSelectorMethod.AND, "os", "linux");
+    final AgentInstall installF = saveInstall(releaseF, "t-1", LabelSelectorMethod.AND, "os", "linux");
+
+    saveBinding(installT, "r-1");
+    saveBinding(installF, "r-1");
+    saveBinding(installT, "r-2");
+
+    // EXECUTE
+    agentInstallService.handleResourceEvents(Arrays.asList(
+        new ResourceEvent()
+            .setTenantId("t-1")
+            .setResourceId("r-1")
+            .setReattachedEnvoyId("e-1"),
+        new ResourceEvent()
+            .setTenantId("t-1")
+            .setResourceId("r-2")
+            .setReattachedEnvoyId("e-2"),
+        new ResourceEvent()
+            .setTenantId("t-1")
+            .setResourceId("r-3")
+            .setReattachedEnvoyId("e-3")
+    ));
+
+    // VERIFY
+
+    verify(boundEventSender).sendTo(OperationType.UPSERT, TELEGRAF,
+        Collections.singletonList(new TenantResource("t-1", "r-1")));
+    verify(boundEventSender).sendTo(OperationType.UPSERT, FILEBEAT,
+        Collections.singletonList(new TenantResource("t-1", "r-1")));
+    verify(boundEventSender).sendTo(OperationType.UPSERT, TELEGRAF,
+        Collections.singletonList(new TenantResource("t-1", "r-2")));
+
+    verifyNoMoreInteractions(boundEventSender, resourceApi);
+  }
+
   private AgentRelease saveRelease(String v, AgentType agentType) {
     return agentReleaseRepository.save(
         new AgentRelease()
@@ -1321,6 +2171,42 @@ public class AgentInstallServiceTest {
     );
   }
 
+  private AgentInstallJobDTO awaitInstallJob(String tenantId, UUID jobId)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (true) {
+      final AgentInstallJobDTO job = agentInstallService.getInstallJob(tenantId, jobId).get();
+      if (job.getStatus() == AgentInstallJobStatus.COMPLETED ||
+          job.getStatus() == AgentInstallJobStatus.FAILED ||
+          System.currentTimeMillis() > deadline) {
+        return job;
+      }
+      Thread.sleep(50);
+    }
+  }
+
+  private UUID saveInstallJob(AgentInstall install, AgentInstallJobStatus status, int attempts) {
+    final UUID jobId = UUID.randomUUID();
+    jdbcTemplate.update(
+        "INSERT INTO agent_install_jobs"
+            + " (id, tenant_id, agent_install_id, status, attempts, updated_timestamp)"
+            + " VALUES (?, ?, ?, ?, ?, CURRENT_TIMESTAMP(3) - INTERVAL 1 DAY)",
+        jobId.toString(), install.getTenantId(), install.getId().toString(), status.name(),
+        attempts);
+    return jobId;
+  }
+
+  private Map<String, String> queryBindingKeys(String tenantId) {
+    final Map<String, String> keys = new HashMap<>();
+    jdbcTemplate.query(
+        "SELECT resource_id, agent_install_id FROM bound_agent_install_keys WHERE tenant_id = ?",
+        resultSet -> {
+          keys.put(resultSet.getString(1), resultSet.getString(2));
+        },
+        tenantId);
+    return keys;
+  }
+
   private BoundAgentInstall saveBinding(AgentInstall install, String resourceId) {
     return boundAgentInstallRepository.save(
         new BoundAgentInstall()
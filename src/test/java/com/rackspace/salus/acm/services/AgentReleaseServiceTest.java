@@ -24,30 +24,39 @@ import static org.assertj.core.api.Assertions.fail;
 
 import com.rackspace.salus.acm.web.controller.AgentReleaseControllerTest;
 import com.rackspace.salus.acm.web.model.AgentReleaseCreate;
+import com.rackspace.salus.acm.web.model.AgentReleaseDTO;
+import com.rackspace.salus.acm.web.model.CursorPage;
 import com.rackspace.salus.telemetry.entities.AgentInstall;
 import com.rackspace.salus.telemetry.entities.AgentRelease;
 import com.rackspace.salus.telemetry.errors.AlreadyExistsException;
 import com.rackspace.salus.telemetry.model.AgentType;
 import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import com.rackspace.salus.telemetry.model.NotFoundException;
 import com.rackspace.salus.telemetry.repositories.AgentInstallRepository;
 import com.rackspace.salus.telemetry.repositories.AgentReleaseRepository;
 import com.rackspace.salus.test.EnableTestContainersDatabase;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
-import org.springframework.boot.autoconfigure.cache.CacheType;
 import org.springframework.boot.autoconfigure.kafka.KafkaAutoConfiguration;
-import org.springframework.boot.test.autoconfigure.core.AutoConfigureCache;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.cache.CacheManager;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.junit4.SpringRunner;
 
 @RunWith(SpringRunner.class)
@@ -58,8 +67,6 @@ import org.springframework.test.context.junit4.SpringRunner;
 )
 @EnableTestContainersDatabase
 @EnableAutoConfiguration(exclude = KafkaAutoConfiguration.class)
-// skip the cache config to avoid cache already exists errors
-@AutoConfigureCache(cacheProvider = CacheType.NONE)
 public class AgentReleaseServiceTest {
 
   @MockBean
@@ -77,6 +84,9 @@ public class AgentReleaseServiceTest {
   @Autowired
   AgentInstallRepository agentInstallRepository;
 
+  @Autowired
+  JdbcTemplate jdbcTemplate;
+
   @Test
   public void testCreate_unique() {
     final AgentReleaseCreate in = new AgentReleaseCreate()
@@ -157,6 +167,196 @@ public class AgentReleaseServiceTest {
     assertThat(result).isPresent();
   }
 
+  @Test
+  public void testFindAllByTypeNewestFirst() {
+    for (String version : Arrays.asList("1.3.0", "1.10.0", "2.0.0-rc1", "1.9.2", "2.0.0")) {
+      createRelease(version, TELEGRAF);
+    }
+    createRelease("9.0.0", AgentType.FILEBEAT);
+
+    final Page<AgentRelease> page0 = agentReleaseService
+        .findAllByTypeNewestFirst(TELEGRAF, PageRequest.of(0, 3));
+    assertThat(page0.getContent()).extracting(AgentRelease::getVersion)
+        .containsExactly("2.0.0", "2.0.0-rc1", "1.10.0");
+    assertThat(page0.getTotalElements()).isEqualTo(5);
+    assertThat(page0.getTotalPages()).isEqualTo(2);
+
+    final Page<AgentRelease> page1 = agentReleaseService
+        .findAllByTypeNewestFirst(TELEGRAF, PageRequest.of(1, 3));
+    assertThat(page1.getContent()).extracting(AgentRelease::getVersion)
+        .containsExactly("1.9.2", "1.3.0");
+    assertThat(page1.isLast()).isTrue();
+  }
+
+  @Test
+  public void testFindAllByTypeNewestFirst_afterDelete() {
+    final AgentRelease release1 = createRelease("1.0.0", TELEGRAF);
+    createRelease("2.0.0", TELEGRAF);
+
+    agentReleaseService.delete(release1.getId());
+
+    final Page<AgentRelease> page = agentReleaseService
+        .findAllByTypeNewestFirst(TELEGRAF, PageRequest.of(0, 5));
+    assertThat(page.getContent()).extracting(AgentRelease::getVersion)
+        .containsExactly("2.0.0");
+    assertThat(page.getTotalElements()).isEqualTo(1);
+  }
+
+  @Test
+  public void testGetAgentReleasesForTypeAfter() {
+    // equivalent versions, so a page boundary falls between equal sort keys
+    for (String version : Arrays.asList("1.3.0", "1.10.0", "2.0.0-rc1", "1.10", "2.0.0")) {
+      createRelease(version, TELEGRAF);
+    }
+    createRelease("9.0.0", AgentType.FILEBEAT);
+
+    final CursorPage<AgentReleaseDTO> page0 = agentReleaseService
+        .getAgentReleasesForTypeAfter(TELEGRAF, null, 3);
+    assertThat(page0.getContent()).hasSize(3);
+    assertThat(page0.getNext()).isNotNull();
+
+    final CursorPage<AgentReleaseDTO> page1 = agentReleaseService
+        .getAgentReleasesForTypeAfter(TELEGRAF, page0.getNext(), 3);
+    assertThat(page1.getNext()).isNull();
+
+    final List<String> versions = new ArrayList<>();
+    page0.getContent().forEach(dto -> versions.add(dto.getVersion()));
+    page1.getContent().forEach(dto -> versions.add(dto.getVersion()));
+    assertThat(versions.subList(0, 2)).containsExactly("2.0.0", "2.0.0-rc1");
+    assertThat(versions.subList(2, 4)).containsExactlyInAnyOrder("1.10.0", "1.10");
+    assertThat(versions.subList(4, versions.size())).containsExactly("1.3.0");
+  }
+
+  @Test
+  public void testGetAgentReleasesAfter() {
+    final Set<UUID> expectedIds = new HashSet<>();
+    for (String version : Arrays.asList("1.0.0", "1.1.0", "1.2.0")) {
+      expectedIds.add(createRelease(version, TELEGRAF).getId());
+    }
+
+    final CursorPage<AgentReleaseDTO> page0 = agentReleaseService.getAgentReleasesAfter(null, 2);
+    assertThat(page0.getContent()).hasSize(2);
+    assertThat(page0.getNext()).isNotNull();
+
+    final CursorPage<AgentReleaseDTO> page1 = agentReleaseService
+        .getAgentReleasesAfter(page0.getNext(), 2);
+    assertThat(page1.getContent()).hasSize(1);
+    assertThat(page1.getNext()).isNull();
+
+    final Set<UUID> retrievedIds = new HashSet<>();
+    page0.getContent().forEach(dto -> retrievedIds.add(dto.getId()));
+    page1.getContent().forEach(dto -> retrievedIds.add(dto.getId()));
+    assertThat(retrievedIds).isEqualTo(expectedIds);
+  }
+
+  @Test
+  public void testGetAgentRelease() {
+    final AgentRelease release = createRelease("1.11.0", TELEGRAF);
+
+    final AgentReleaseDTO dto = agentReleaseService.getAgentRelease(release.getId());
+    assertThat(dto.getId()).isEqualTo(release.getId());
+    assertThat(dto.getVersion()).isEqualTo("1.11.0");
+    assertThat(dto.getLabels()).isEqualTo(singletonMap("os", "linux"));
+
+    assertThatThrownBy(() -> agentReleaseService.getAgentRelease(UUID.randomUUID()))
+        .isInstanceOf(NotFoundException.class);
+  }
+
+  @Test
+  public void testFindAllByTypeNewestFirst_otherVersionForms() {
+    createRelease("v1.0", TELEGRAF);
+    createRelease("1.13.3", TELEGRAF);
+    createRelease("1.14.0", TELEGRAF);
+    createRelease("1.13.3-1", TELEGRAF);
+    createRelease("1.14.0-beta.2", TELEGRAF);
+
+    final Page<AgentRelease> page = agentReleaseService.findAllByTypeNewestFirst(
+        TELEGRAF, PageRequest.of(0, 10));
+
+    assertThat(page.getContent())
+        .extracting(AgentRelease::getVersion)
+        .containsExactly("1.14.0", "1.14.0-beta.2", "1.13.3-1", "1.13.3", "v1.0");
+  }
+
+  @Test
+  public void testFindAllByTypeNewestFirst_missingSortKey() {
+    createRelease("1.0.0", TELEGRAF);
+    createRelease("2.0.0", TELEGRAF);
+    // such as one created by an instance that doesn't maintain sort keys yet
+    final AgentRelease keyless = saveRelease("3.0.0", TELEGRAF, singletonMap("os", "linux"));
+
+    final Page<AgentRelease> page = agentReleaseService.findAllByTypeNewestFirst(
+        TELEGRAF, PageRequest.of(0, 10));
+    assertThat(page.getTotalElements()).isEqualTo(3);
+    assertThat(page.getContent())
+        .extracting(AgentRelease::getVersion)
+        .containsExactly("2.0.0", "1.0.0", "3.0.0");
+
+    final CursorPage<AgentReleaseDTO> page0 = agentReleaseService
+        .getAgentReleasesForTypeAfter(TELEGRAF, null, 2);
+    final CursorPage<AgentReleaseDTO> page1 = agentReleaseService
+        .getAgentReleasesForTypeAfter(TELEGRAF, page0.getNext(), 2);
+    assertThat(page1.getContent())
+        .extracting(AgentReleaseDTO::getId)
+        .containsExactly(keyless.getId());
+    assertThat(page1.getNext()).isNull();
+  }
+
+  @Test
+  public void testCreateAndDelete_evictCachedReleases() {
+    final AgentRelease release1 = createRelease("1.0.0", TELEGRAF);
+
+    assertThat(agentReleaseService.getAgentReleasesForType(TELEGRAF, PageRequest.of(0, 5)))
+        .extracting(AgentReleaseDTO::getVersion)
+        .containsExactly("1.0.0");
+    assertThat(agentReleaseService.getAgentRelease(release1.getId()).getVersion())
+        .isEqualTo("1.0.0");
+
+    // saved directly, so only seen once the cached page is evicted
+    saveRelease("1.1.0", TELEGRAF, singletonMap("os", "linux"));
+    agentReleaseService.backfillSortKeys();
+    assertThat(agentReleaseService.getAgentReleasesForType(TELEGRAF, PageRequest.of(0, 5)))
+        .extracting(AgentReleaseDTO::getVersion)
+        .containsExactly("1.0.0");
+
+    createRelease("2.0.0", TELEGRAF);
+    assertThat(agentReleaseService.getAgentReleasesForType(TELEGRAF, PageRequest.of(0, 5)))
+        .extracting(AgentReleaseDTO::getVersion)
+        .containsExactly("2.0.0", "1.1.0", "1.0.0");
+
+    agentReleaseService.delete(release1.getId());
+    assertThat(agentReleaseService.getAgentReleasesForType(TELEGRAF, PageRequest.of(0, 5)))
+        .extracting(AgentReleaseDTO::getVersion)
+        .containsExactly("2.0.0", "1.1.0");
+    assertThatThrownBy(() -> agentReleaseService.getAgentRelease(release1.getId()))
+        .isInstanceOf(NotFoundException.class);
+  }
+
+  @Test
+  public void testBackfillSortKeys() {
+    // saved directly, so no sort keys yet
+    saveRelease("1.0.0", TELEGRAF, singletonMap("os", "linux"));
+    saveRelease("1.1.0", TELEGRAF, singletonMap("os", "linux"));
+
+    assertThat(agentReleaseService.findAllByTypeNewestFirst(TELEGRAF, PageRequest.of(0, 5)))
+        .isEmpty();
+
+    agentReleaseService.backfillSortKeys();
+
+    assertThat(agentReleaseService.findAllByTypeNewestFirst(TELEGRAF, PageRequest.of(0, 5)))
+        .extracting(AgentRelease::getVersion)
+        .containsExactly("1.1.0", "1.0.0");
+  }
+
+  private AgentRelease createRelease(String version, AgentType agentType) {
+    return agentReleaseService.create(new AgentReleaseCreate()
+        .setType(agentType)
+        .setVersion(version)
+        .setLabels(singletonMap("os", "linux"))
+        .setUrl("https://example.com/" + version)
+        .setExe("./agent"));
+  }
+
   private AgentRelease saveRelease(String v, AgentType agentType, Map<String, String> labels) {
     return agentReleaseRepository.save(
         new AgentRelease()
@@ -164,10 +364,16 @@ public class AgentReleaseServiceTest {
     );
   }
 
+  @Autowired
+  CacheManager cacheManager;
+
   @After
   public void tearDown() throws Exception {
+    // the caches are shared with other tests and don't see changes made via repositories
+    cacheManager.getCacheNames().forEach(name -> cacheManager.getCache(name).clear());
     agentInstallRepository.deleteAll();
     agentReleaseRepository.deleteAll();
+    jdbcTemplate.update("DELETE FROM agent_release_sort_keys");
   }
 
   private AgentInstall saveInstall(AgentRelease release, String tenantId, LabelSelectorMethod labelSelectorMethod,
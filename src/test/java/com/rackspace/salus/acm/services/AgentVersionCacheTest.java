@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+public class AgentVersionCacheTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Test
+  public void testParse_countsHitsAndMisses() {
+    final AgentVersionCache cache = new AgentVersionCache(new AgentCatalogProperties(), meterRegistry);
+
+    assertThat(cache.parse("1.10.0")).isSameAs(cache.parse("1.10.0"));
+    cache.parse("1.9.0");
+
+    assertThat(meterRegistry.counter("agentVersionCache", "result", "hit").count()).isEqualTo(1);
+    assertThat(meterRegistry.counter("agentVersionCache", "result", "miss").count()).isEqualTo(2);
+  }
+
+  @Test
+  public void testParse_bounded() {
+    final AgentVersionCache cache = new AgentVersionCache(
+        new AgentCatalogProperties().setVersionCacheSize(1), meterRegistry);
+
+    cache.parse("1.0.0");
+    cache.parse("2.0.0");
+    cache.parse("2.0.0");
+
+    assertThat(meterRegistry.counter("agentVersionCache", "result", "hit").count()).isEqualTo(0);
+    assertThat(meterRegistry.get("agentVersionCacheSize").gauge().value()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.apache.maven.artifact.versioning.ComparableVersion;
+import org.junit.Test;
+
+public class AgentVersionSortKeyTest {
+
+  private static final String[] NUMBERS = {"0", "00", "01", "1", "2", "9", "10", "100"};
+  private static final String[] QUALIFIERS = {
+      "alpha", "Alpha", "beta", "milestone", "rc", "RC", "cr", "sp", "snapshot", "ga", "final",
+      "release"
+  };
+
+  @Test
+  public void testOrderMatchesComparableVersion() {
+    final List<String> versions = generateVersions(new Random(0), 3000);
+
+    final List<String> bySortKey = new ArrayList<>(versions);
+    bySortKey.sort(Comparator.comparing(AgentVersionSortKey::of));
+
+    // every pair of neighbors must be ordered the same, and equal when ComparableVersion is
+    for (int i = 1; i < bySortKey.size(); i++) {
+      final String previous = bySortKey.get(i - 1);
+      final String current = bySortKey.get(i);
+      final int expected = Integer.signum(
+          new ComparableVersion(previous).compareTo(new ComparableVersion(current)));
+      final int actual = Integer.signum(
+          AgentVersionSortKey.of(previous).compareTo(AgentVersionSortKey.of(current)));
+
+      assertThat(actual)
+          .describedAs("comparing %s to %s", previous, current)
+          .isEqualTo(expected);
+    }
+
+    // and sorting both ways lines up, given that equivalent versions share a key
+    final List<String> byComparableVersion = new ArrayList<>(versions);
+    byComparableVersion.sort(Comparator.comparing(ComparableVersion::new));
+    assertThat(keysOf(byComparableVersion)).isEqualTo(keysOf(bySortKey));
+  }
+
+  @Test
+  public void testEquivalentVersionsShareKey() {
+    assertThat(AgentVersionSortKey.of("1.0.0")).isEqualTo(AgentVersionSortKey.of("1"));
+    assertThat(AgentVersionSortKey.of("1.0-final")).isEqualTo(AgentVersionSortKey.of("1"));
+    assertThat(AgentVersionSortKey.of("1.0-RC1")).isEqualTo(AgentVersionSortKey.of("1-rc01"));
+  }
+
+  @Test
+  public void testOtherVersionFormsOrdered() {
+    // in ComparableVersion order, each differing from the previous
+    final String[] versions = {
+        "v1.0", "1", "1-1", "1.0.1-alpha", "1.0.1", "1.1", "1.13.3", "1.13.3-1", "1.13.3-2",
+        "1.13.3.1", "2.0.0-beta.1", "2.0.0-beta.10", "2.0.0-rc1", "2.0.0", "2.0.0-foo",
+        "2.0.0-20200101"
+    };
+
+    for (int i = 1; i < versions.length; i++) {
+      assertThat(new ComparableVersion(versions[i - 1]))
+          .isLessThan(new ComparableVersion(versions[i]));
+      assertThat(AgentVersionSortKey.of(versions[i - 1]))
+          .describedAs("comparing %s to %s", versions[i - 1], versions[i])
+          .isLessThan(AgentVersionSortKey.of(versions[i]));
+    }
+  }
+
+  @Test
+  public void testKeysBounded() {
+    final String manyParts = String.join(".", Collections.nCopies(100, "1"));
+    assertThat(AgentVersionSortKey.of(manyParts)).hasSize(AgentVersionSortKey.MAX_LENGTH);
+
+    final String longNumber = String.join("", Collections.nCopies(120, "9"));
+    assertThat(AgentVersionSortKey.of(longNumber))
+        .isEqualTo(AgentVersionSortKey.of(longNumber + "9"));
+
+    for (String version : new String[]{"", "-", "..", "1..0", "1_1", "\u00e9t\u00e9"}) {
+      assertThat(AgentVersionSortKey.of(version)).describedAs(version).isNotEmpty();
+    }
+  }
+
+  private static List<String> generateVersions(Random random, int count) {
+    final List<String> versions = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final StringBuilder version = new StringBuilder(pick(random, NUMBERS));
+      for (int parts = random.nextInt(4); parts > 0; parts--) {
+        version.append('.').append(pick(random, NUMBERS));
+      }
+
+      if (random.nextBoolean()) {
+        final String qualifier = pick(random, QUALIFIERS);
+        version.append('-').append(qualifier);
+        if (qualifier.matches("(?i)alpha|beta|milestone|rc|cr|sp") && random.nextBoolean()) {
+          version.append(pick(random, NUMBERS));
+        }
+      }
+      versions.add(version.toString());
+    }
+    return versions;
+  }
+
+  private static List<String> keysOf(List<String> versions) {
+    return versions.stream()
+        .map(AgentVersionSortKey::of)
+        .collect(Collectors.toList());
+  }
+
+  private static String pick(Random random, String[] choices) {
+    return choices[random.nextInt(choices.length)];
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.rackspace.salus.acm.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import com.rackspace.salus.telemetry.messaging.AgentInstallChangeEvent;
+import com.rackspace.salus.telemetry.messaging.OperationType;
+import com.rackspace.salus.telemetry.model.AgentType;
+import com.rackspace.salus.test.EnableTestContainersDatabase;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.kafka.KafkaAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(
+    properties = {
+        "salus.services.resourceManagementUrl=http://this-is-a-non-null-value",
+        // batches are relayed by the tests rather than on schedule
+        "salus.agent-catalog.outbox-relay-interval=1h"
+    }
+)
+@EnableTestContainersDatabase
+@EnableAutoConfiguration(exclude = KafkaAutoConfiguration.class)
+public class BoundEventRelayTest {
+
+  @MockBean
+  BoundEventSender boundEventSender;
+
+  @MockBean
+  ResourceEventListener resourceEventListener;
+
+  @Autowired
+  BoundEventRelay boundEventRelay;
+
+  @Autowired
+  JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  PlatformTransactionManager transactionManager;
+
+  @Captor
+  ArgumentCaptor<List<AgentInstallChangeEvent>> eventsArg;
+
+  @After
+  public void tearDown() {
+    jdbcTemplate.update("DELETE FROM agent_install_event_outbox");
+    jdbcTemplate.update(
+        "UPDATE agent_install_event_relay_lease SET holder = NULL WHERE id = 1");
+  }
+
+  @Test
+  public void testRelayBatch() {
+    saveOutboxEvent("r-1", OperationType.UPSERT);
+    saveOutboxEvent("r-2", OperationType.DELETE);
+
+    final int relayed = boundEventRelay.relayBatch();
+
+    assertThat(relayed).isEqualTo(2);
+    verify(boundEventSender).publish(eventsArg.capture());
+    assertThat(eventsArg.getValue()).containsExactly(
+        event("r-1", OperationType.UPSERT),
+        event("r-2", OperationType.DELETE)
+    );
+    assertThat(countOutboxEvents()).isZero();
+
+    verifyNoMoreInteractions(boundEventSender);
+  }
+
+  @Test
+  public void testRelayBatch_leaseHeldElsewhere() {
+    jdbcTemplate.update("UPDATE agent_install_event_relay_lease"
+        + " SET holder = 'other', expires_timestamp = CURRENT_TIMESTAMP(3) + INTERVAL 1 MINUTE"
+        + " WHERE id = 1");
+    saveOutboxEvent("r-1", OperationType.UPSERT);
+
+    final int relayed = boundEventRelay.relayBatch();
+
+    assertThat(relayed).isZero();
+    assertThat(countOutboxEvents()).isEqualTo(1);
+
+    verifyNoMoreInteractions(boundEventSender);
+  }
+
+  @Test
+  public void testRelayBatch_writersProceedWhilePublishing() throws Exception {
+    saveOutboxEvent("r-1", OperationType.UPSERT);
+
+    final CountDownLatch publishing = new CountDownLatch(1);
+    final CountDownLatch acknowledged = new CountDownLatch(1);
+    doAnswer(invocationOnMock -> {
+      publishing.countDown();
+      acknowledged.await();
+      return null;
+    }).when(boundEventSender).publish(any());
+
+    final CompletableFuture<Integer> relay = CompletableFuture.supplyAsync(
+        () -> boundEventRelay.relayBatch());
+    try {
+      assertThat(publishing.await(10, TimeUnit.SECONDS)).isTrue();
+
+      // EXECUTE
+
+      // as done when saving bindings, which would wait on the relay if it held outbox locks
+      CompletableFuture.runAsync(() ->
+          new TransactionTemplate(transactionManager).execute(status -> {
+            saveOutboxEvent("r-2", OperationType.UPSERT);
+            return null;
+          }))
+          .get(10, TimeUnit.SECONDS);
+    } finally {
+      acknowledged.countDown();
+    }
+
+    // VERIFY
+
+    assertThat(relay.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+    // only the published event was removed
+    assertThat(jdbcTemplate.queryForList(
+        "SELECT resource_id FROM agent_install_event_outbox", String.class))
+        .containsExactly("r-2");
+  }
+
+  private void saveOutboxEvent(String resourceId, OperationType op) {
+    jdbcTemplate.update(
+        "INSERT INTO agent_install_event_outbox (tenant_id, resource_id, agent_type, op)"
+            + " VALUES (?, ?, ?, ?)",
+        "t-1", resourceId, AgentType.TELEGRAF.name(), op.name());
+  }
+
+  private int countOutboxEvents() {
+    return jdbcTemplate.queryForObject(
+        "SELECT COUNT(*) FROM agent_install_event_outbox", Integer.class);
+  }
+
+  private static AgentInstallChangeEvent event(String resourceId, OperationType op) {
+    return new AgentInstallChangeEvent()
+        .setTenantId("t-1")
+        .setResourceId(resourceId)
+        .setAgentType(AgentType.TELEGRAF)
+        .setOp(op);
+  }
+}
@@ -16,17 +16,23 @@
 
 package com.rackspace.salus.acm.services;
 
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
+import com.rackspace.salus.common.errors.RuntimeKafkaException;
 import com.rackspace.salus.common.messaging.KafkaTopicProperties;
 import com.rackspace.salus.telemetry.messaging.AgentInstallChangeEvent;
 import com.rackspace.salus.telemetry.messaging.OperationType;
 import com.rackspace.salus.telemetry.model.AgentType;
 import java.util.Arrays;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,6 +41,7 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.support.SendResult;
 import org.springframework.test.context.junit4.SpringRunner;
@@ -53,11 +60,20 @@ public class BoundEventSenderTest {
     public KafkaTopicProperties kafkaTopicProperties() {
       return new KafkaTopicProperties();
     }
+
+    @Bean
+    public AgentCatalogProperties agentCatalogProperties() {
+      // small window to exercise waiting on outstanding sends
+      return new AgentCatalogProperties().setEventSendWindow(1);
+    }
   }
 
   @MockBean
   KafkaTemplate kafkaTemplate;
 
+  @MockBean
+  JdbcTemplate jdbcTemplate;
+
   @Autowired
   KafkaTopicProperties kafkaTopicProperties;
 
@@ -65,15 +81,30 @@ public class BoundEventSenderTest {
   BoundEventSender boundEventSender;
 
   @Test
-  public void testSending() {
+  public void testSending_writesOutbox() {
+    final List<TenantResource> affected = Arrays.asList(
+        new TenantResource("t-1", "r-1"),
+        new TenantResource("t-1", "r-2")
+    );
+
+    boundEventSender.sendTo(OperationType.UPSERT, AgentType.TELEGRAF, affected);
+
+    verify(jdbcTemplate).batchUpdate(
+        startsWith("INSERT INTO agent_install_event_outbox"), eq(affected), eq(2), any());
+
+    verifyNoMoreInteractions(jdbcTemplate, kafkaTemplate);
+  }
+
+  @Test
+  public void testPublishing() {
 
     SettableListenableFuture<SendResult<String, Object>> future = new SettableListenableFuture();
     future.set(null);
     when(kafkaTemplate.send(anyString(), anyString(), any())).thenReturn(future);
 
-    boundEventSender.sendTo(OperationType.UPSERT, AgentType.TELEGRAF, Arrays.asList(
-        new TenantResource("t-1", "r-1"),
-        new TenantResource("t-1", "r-2")
+    boundEventSender.publish(Arrays.asList(
+        event("t-1", "r-1"),
+        event("t-1", "r-2")
     ));
 
     verify(kafkaTemplate).send(
@@ -97,4 +128,31 @@ public class BoundEventSenderTest {
 
     verifyNoMoreInteractions(kafkaTemplate);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testPublishing_failure() {
+
+    SettableListenableFuture<SendResult<String, Object>> succeeded = new SettableListenableFuture();
+    succeeded.set(null);
+    SettableListenableFuture<SendResult<String, Object>> failed = new SettableListenableFuture();
+    failed.setException(new IllegalStateException("broker unavailable"));
+    when(kafkaTemplate.send(anyString(), anyString(), any()))
+        .thenReturn(succeeded, failed, succeeded);
+
+    assertThatThrownBy(() ->
+        boundEventSender.publish(Arrays.asList(
+            event("t-1", "r-1"),
+            event("t-1", "r-2"),
+            event("t-1", "r-3")
+        )))
+        .isInstanceOf(RuntimeKafkaException.class);
+  }
+
+  private static AgentInstallChangeEvent event(String tenantId, String resourceId) {
+    return new AgentInstallChangeEvent()
+        .setTenantId(tenantId)
+        .setResourceId(resourceId)
+        .setAgentType(AgentType.TELEGRAF)
+        .setOp(OperationType.UPSERT);
+  }
+}
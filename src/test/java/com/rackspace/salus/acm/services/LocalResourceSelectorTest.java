@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rackspace.salus.telemetry.entities.AgentInstall;
+import com.rackspace.salus.telemetry.entities.Resource;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import com.rackspace.salus.telemetry.repositories.ResourceRepository;
+import com.rackspace.salus.test.EnableTestContainersDatabase;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.kafka.KafkaAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.cache.CacheManager;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(
+    properties = {
+        "salus.services.resourceManagementUrl=http://this-is-a-non-null-value"
+    }
+)
+@EnableTestContainersDatabase
+@EnableAutoConfiguration(exclude = KafkaAutoConfiguration.class)
+public class LocalResourceSelectorTest {
+
+  @MockBean
+  AgentInstallService agentInstallService;
+
+  @MockBean
+  BoundEventSender boundEventSender;
+
+  @Autowired
+  ResourceSelector resourceSelector;
+
+  @Autowired
+  ResourceRepository resourceRepository;
+
+  @Autowired
+  CacheManager cacheManager;
+
+  @After
+  public void tearDown() {
+    // the caches are shared with other tests and don't see changes made via repositories
+    cacheManager.getCacheNames().forEach(name -> cacheManager.getCache(name).clear());
+    resourceRepository.deleteAll();
+  }
+
+  @Test
+  public void testSelectorIsLocal() {
+    assertThat(resourceSelector).isInstanceOf(LocalResourceSelector.class);
+  }
+
+  @Test
+  public void testForEachMatchingChunk_and() {
+    saveResource("t-1", "r-1", "os", "linux", "env", "prod");
+    saveResource("t-1", "r-2", "os", "linux", "env", "dev");
+    saveResource("t-1", "r-3", "os", "windows", "env", "prod");
+    saveResource("t-1", "r-4", "os", "linux", "env", "prod", "region", "east");
+    saveResource("t-2", "r-1", "os", "linux", "env", "prod");
+
+    final List<List<String>> chunks = select("t-1", LabelSelectorMethod.AND, 10,
+        "os", "linux", "env", "prod");
+
+    assertThat(chunks).containsExactly(List.of("r-1", "r-4"));
+  }
+
+  @Test
+  public void testForEachMatchingChunk_or() {
+    saveResource("t-1", "r-1", "os", "linux");
+    saveResource("t-1", "r-2", "os", "darwin");
+    saveResource("t-1", "r-3", "os", "windows", "env", "prod");
+    saveResource("t-1", "r-4", "env", "dev");
+
+    final List<List<String>> chunks = select("t-1", LabelSelectorMethod.OR, 10,
+        "os", "linux", "env", "prod");
+
+    assertThat(chunks).containsExactly(List.of("r-1", "r-3"));
+  }
+
+  @Test
+  public void testForEachMatchingChunk_emptySelector() {
+    saveResource("t-1", "r-1", "os", "linux");
+    saveResource("t-1", "r-2");
+    saveResource("t-2", "r-3", "os", "linux");
+
+    final List<List<String>> chunks = select("t-1", LabelSelectorMethod.AND, 10);
+
+    assertThat(chunks).containsExactly(List.of("r-1", "r-2"));
+  }
+
+  @Test
+  public void testForEachMatchingChunk_chunked() {
+    for (int i = 0; i < 5; i++) {
+      saveResource("t-1", "r-" + i, "os", "linux");
+    }
+    saveResource("t-1", "r-5", "os", "windows");
+
+    final List<List<String>> chunks = select("t-1", LabelSelectorMethod.AND, 2,
+        "os", "linux");
+
+    assertThat(chunks).containsExactly(
+        List.of("r-0", "r-1"),
+        List.of("r-2", "r-3"),
+        List.of("r-4")
+    );
+  }
+
+  private List<List<String>> select(String tenantId, LabelSelectorMethod labelSelectorMethod,
+                                    int chunkSize, String... labelPairs) {
+    final AgentInstall agentInstall = new AgentInstall()
+        .setTenantId(tenantId)
+        .setLabelSelector(labels(labelPairs))
+        .setLabelSelectorMethod(labelSelectorMethod);
+
+    final List<List<String>> chunks = new ArrayList<>();
+    resourceSelector.forEachMatchingChunk(agentInstall, chunkSize,
+        chunk -> chunks.add(new ArrayList<>(chunk)));
+    return chunks;
+  }
+
+  private void saveResource(String tenantId, String resourceId, String... labelPairs) {
+    resourceRepository.save(
+        new Resource()
+            .setTenantId(tenantId)
+            .setResourceId(resourceId)
+            .setAssociatedWithEnvoy(false)
+            .setLabels(labels(labelPairs))
+    );
+  }
+
+  private static Map<String, String> labels(String... labelPairs) {
+    if (labelPairs.length == 0) {
+      return Collections.emptyMap();
+    }
+    final Map<String, String> labels = new HashMap<>();
+    for (int i = 2; i <= labelPairs.length; i += 2) {
+      labels.put(labelPairs[i - 2], labelPairs[i - 1]);
+    }
+    return labels;
+  }
+}
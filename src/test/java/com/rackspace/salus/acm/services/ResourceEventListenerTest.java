@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
+import com.rackspace.salus.common.messaging.KafkaTopicProperties;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.springframework.beans.factory.ObjectProvider;
+
+public class ResourceEventListenerTest {
+
+  @Test
+  public void testCoalesce_mergesSuccessiveChanges() {
+    final List<ResourceEvent> coalesced = ResourceEventListener.coalesce(Arrays.asList(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1").setLabelsChanged(true),
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-2").setLabelsChanged(true),
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1").setReattachedEnvoyId("e-1"),
+        new ResourceEvent().setTenantId("t-2").setResourceId("r-1")
+    ));
+
+    assertThat(coalesced).containsExactly(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+            .setLabelsChanged(true).setReattachedEnvoyId("e-1"),
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-2").setLabelsChanged(true),
+        new ResourceEvent().setTenantId("t-2").setResourceId("r-1")
+    );
+  }
+
+  @Test
+  public void testCoalesce_deleteSupersedesEarlierEvents() {
+    final List<ResourceEvent> coalesced = ResourceEventListener.coalesce(Arrays.asList(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1").setLabelsChanged(true),
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1").setDeleted(true),
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1").setLabelsChanged(true),
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+    ));
+
+    assertThat(coalesced).containsExactly(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1").setDeleted(true),
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1").setLabelsChanged(true)
+    );
+  }
+
+  @Test
+  public void testPartition_keepsResourceEventsTogether() {
+    final List<ResourceEvent> events = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      events.add(new ResourceEvent().setTenantId("t-1").setResourceId("r-" + (i % 10))
+          .setReattachedEnvoyId("e-" + i));
+    }
+
+    final List<List<ResourceEvent>> lanes = ResourceEventListener.partition(events, 4);
+
+    assertThat(lanes).hasSizeLessThanOrEqualTo(4);
+    assertThat(lanes).allSatisfy(lane -> assertThat(lane).isNotEmpty());
+    assertThat(lanes.stream().mapToInt(List::size).sum()).isEqualTo(events.size());
+
+    for (List<ResourceEvent> lane : lanes) {
+      for (ResourceEvent event : lane) {
+        // every event of the resource is in this lane and in the original relative order
+        final List<ResourceEvent> ofResource = events.stream()
+            .filter(other -> other.getResourceId().equals(event.getResourceId()))
+            .collect(Collectors.toList());
+        assertThat(lane.stream()
+            .filter(other -> other.getResourceId().equals(event.getResourceId()))
+            .collect(Collectors.toList()))
+            .containsExactlyElementsOf(ofResource);
+      }
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testEvictChangedResources() {
+    final ResourceLookupCache resourceLookupCache = mock(ResourceLookupCache.class);
+    final ResourceEventListener listener = new ResourceEventListener(
+        new KafkaTopicProperties(), mock(AgentInstallService.class),
+        new AgentCatalogProperties().setResourceEventWorkers(1),
+        mock(ObjectProvider.class), resourceLookupCache);
+    try {
+      listener.evictChangedResources(Arrays.asList(
+          new ResourceEvent().setTenantId("t-1").setResourceId("r-1").setLabelsChanged(true),
+          new ResourceEvent().setTenantId("t-1").setResourceId("r-2").setReattachedEnvoyId("e-1"),
+          new ResourceEvent().setTenantId("t-1").setResourceId("r-3").setDeleted(true),
+          new ResourceEvent().setTenantId("t-1").setResourceId("r-4")
+      ));
+    } finally {
+      listener.stop();
+    }
+
+    verify(resourceLookupCache).evict("t-1", "r-1");
+    verify(resourceLookupCache).evict("t-1", "r-2");
+    verify(resourceLookupCache).evict("t-1", "r-3");
+    verifyNoMoreInteractions(resourceLookupCache);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testConsumeResourceEvents_evictsAgainAfterHandling() throws InterruptedException {
+    final ResourceLookupCache resourceLookupCache = mock(ResourceLookupCache.class);
+    final AgentInstallService agentInstallService = mock(AgentInstallService.class);
+    final ResourceEventListener listener = new ResourceEventListener(
+        new KafkaTopicProperties(), agentInstallService,
+        new AgentCatalogProperties().setResourceEventWorkers(1),
+        mock(ObjectProvider.class), resourceLookupCache);
+    final List<ResourceEvent> events = Arrays.asList(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1").setLabelsChanged(true)
+    );
+    try {
+      listener.consumeResourceEvents(events);
+    } finally {
+      listener.stop();
+    }
+
+    // evicted again once committed, in case a racing lookup re-cached the prior labels
+    final InOrder inOrder = inOrder(resourceLookupCache, agentInstallService);
+    inOrder.verify(resourceLookupCache).evict("t-1", "r-1");
+    inOrder.verify(agentInstallService).handleResourceEvents(events);
+    inOrder.verify(resourceLookupCache).evict("t-1", "r-1");
+    verifyNoMoreInteractions(resourceLookupCache, agentInstallService);
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rackspace.salus.telemetry.entities.AgentInstall;
+import com.rackspace.salus.telemetry.entities.Resource;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import com.rackspace.salus.telemetry.repositories.ResourceRepository;
+import com.rackspace.salus.test.EnableTestContainersDatabase;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.kafka.KafkaAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.cache.CacheManager;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(
+    properties = {
+        "salus.services.resourceManagementUrl=http://this-is-a-non-null-value",
+        "salus.agent-catalog.resource-selection=INDEX"
+    }
+)
+@EnableTestContainersDatabase
+@EnableAutoConfiguration(exclude = KafkaAutoConfiguration.class)
+public class ResourceLabelIndexTest {
+
+  @MockBean
+  AgentInstallService agentInstallService;
+
+  @MockBean
+  BoundEventSender boundEventSender;
+
+  @Autowired
+  ResourceLabelIndex resourceLabelIndex;
+
+  @Autowired
+  ResourceSelector resourceSelector;
+
+  @Autowired
+  ResourceRepository resourceRepository;
+
+  @Autowired
+  MeterRegistry meterRegistry;
+
+  @Autowired
+  CacheManager cacheManager;
+
+  @After
+  public void tearDown() {
+    // the caches are shared with other tests and don't see changes made via repositories
+    cacheManager.getCacheNames().forEach(name -> cacheManager.getCache(name).clear());
+    resourceRepository.deleteAll();
+  }
+
+  // the index outlives each test, so each test uses its own tenant
+
+  @Test
+  public void testBootstrap() {
+    saveResource("t-bootstrap", "r-1", "os", "linux", "env", "prod");
+    saveResource("t-bootstrap", "r-2", "os", "linux", "env", "dev");
+    saveResource("t-bootstrap", "r-3", "os", "windows", "env", "prod");
+    saveResource("t-bootstrap", "r-4");
+
+    resourceLabelIndex.bootstrap();
+
+    assertThat(resourceLabelIndex.isReady()).isTrue();
+    assertThat(resourceSelector).isSameAs(resourceLabelIndex);
+
+    assertThat(resourceLabelIndex.findMatchingResources("t-bootstrap",
+        labels("os", "linux", "env", "prod"), LabelSelectorMethod.AND))
+        .containsExactly("r-1");
+    assertThat(resourceLabelIndex.findMatchingResources("t-bootstrap",
+        labels("os", "windows", "env", "dev"), LabelSelectorMethod.OR))
+        .containsExactly("r-2", "r-3");
+    assertThat(resourceLabelIndex.findMatchingResources("t-bootstrap",
+        labels(), LabelSelectorMethod.AND))
+        .containsExactly("r-1", "r-2", "r-3", "r-4");
+    assertThat(resourceLabelIndex.findMatchingResources("t-other",
+        labels("os", "linux"), LabelSelectorMethod.AND))
+        .isEmpty();
+  }
+
+  @Test
+  public void testStartBootstrap() throws InterruptedException {
+    saveResource("t-started", "r-1", "os", "linux");
+
+    final long replayFrom = resourceLabelIndex.startBootstrap();
+    assertThat(replayFrom).isLessThan(System.currentTimeMillis());
+    // only started once, so later assignments replay from the same point
+    assertThat(resourceLabelIndex.startBootstrap()).isEqualTo(replayFrom);
+
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (!resourceLabelIndex.isReady() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(resourceLabelIndex.isReady()).isTrue();
+  }
+
+  @Test
+  public void testForEachMatchingChunk() {
+    for (int i = 0; i < 5; i++) {
+      saveResource("t-chunks", "r-" + i, "os", "linux");
+    }
+    resourceLabelIndex.bootstrap();
+
+    final List<List<String>> chunks = new ArrayList<>();
+    resourceLabelIndex.forEachMatchingChunk(
+        new AgentInstall()
+            .setTenantId("t-chunks")
+            .setLabelSelector(labels("os", "linux"))
+            .setLabelSelectorMethod(LabelSelectorMethod.AND),
+        2,
+        chunk -> chunks.add(new ArrayList<>(chunk)));
+
+    assertThat(chunks).containsExactly(
+        List.of("r-0", "r-1"),
+        List.of("r-2", "r-3"),
+        List.of("r-4")
+    );
+  }
+
+  @Test
+  public void testHandleResourceEvents() {
+    // events are only applied once the index is bootstrapping or bootstrapped
+    resourceLabelIndex.bootstrap();
+    final double indexedBefore = indexedResources();
+
+    // a resource that isn't indexed yet is read regardless of the kind of event
+    final Resource resource = saveResource("t-events", "r-1", "os", "linux");
+    resourceLabelIndex.handleResourceEvents(List.of(
+        new ResourceEvent().setTenantId("t-events").setResourceId("r-1")
+    ));
+
+    assertThat(resourceLabelIndex.findMatchingResources("t-events",
+        labels("os", "linux"), LabelSelectorMethod.AND))
+        .containsExactly("r-1");
+    assertThat(indexedResources()).isEqualTo(indexedBefore + 1);
+
+    resource.setLabels(labels("os", "windows"));
+    resourceRepository.save(resource);
+    resourceLabelIndex.handleResourceEvents(List.of(
+        new ResourceEvent().setTenantId("t-events").setResourceId("r-1").setLabelsChanged(true)
+    ));
+
+    assertThat(resourceLabelIndex.findMatchingResources("t-events",
+        labels("os", "linux"), LabelSelectorMethod.AND))
+        .isEmpty();
+    assertThat(resourceLabelIndex.findMatchingResources("t-events",
+        labels("os", "windows"), LabelSelectorMethod.AND))
+        .containsExactly("r-1");
+
+    resourceLabelIndex.handleResourceEvents(List.of(
+        new ResourceEvent().setTenantId("t-events").setResourceId("r-1").setDeleted(true)
+    ));
+
+    assertThat(resourceLabelIndex.findMatchingResources("t-events",
+        labels(), LabelSelectorMethod.AND))
+        .isEmpty();
+    assertThat(indexedResources()).isEqualTo(indexedBefore);
+  }
+
+  @Test
+  public void testHandleResourceEvents_resourceAlreadyRemoved() {
+    resourceLabelIndex.bootstrap();
+
+    resourceLabelIndex.handleResourceEvents(List.of(
+        new ResourceEvent().setTenantId("t-removed").setResourceId("r-1").setLabelsChanged(true)
+    ));
+
+    assertThat(resourceLabelIndex.findMatchingResources("t-removed",
+        labels(), LabelSelectorMethod.AND))
+        .isEmpty();
+  }
+
+  private double indexedResources() {
+    return meterRegistry.get("resourceLabelIndexResources").gauge().value();
+  }
+
+  private Resource saveResource(String tenantId, String resourceId, String... labelPairs) {
+    return resourceRepository.save(
+        new Resource()
+            .setTenantId(tenantId)
+            .setResourceId(resourceId)
+            .setAssociatedWithEnvoy(false)
+            .setLabels(labels(labelPairs))
+    );
+  }
+
+  private static Map<String, String> labels(String... labelPairs) {
+    if (labelPairs.length == 0) {
+      return Collections.emptyMap();
+    }
+    final Map<String, String> labels = new HashMap<>();
+    for (int i = 2; i <= labelPairs.length; i += 2) {
+      labels.put(labelPairs[i - 2], labelPairs[i - 1]);
+    }
+    return labels;
+  }
+}
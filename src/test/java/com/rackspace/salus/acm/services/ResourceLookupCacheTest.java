@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.acm.services;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.rackspace.salus.acm.config.CacheConfig;
+import com.rackspace.salus.resource_management.web.model.ResourceDTO;
+import com.rackspace.salus.telemetry.entities.Resource;
+import com.rackspace.salus.telemetry.repositories.ResourceRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import javax.persistence.EntityManager;
+import org.junit.Test;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.transaction.PlatformTransactionManager;
+
+public class ResourceLookupCacheTest {
+
+  private final ResourceRepository resourceRepository = mock(ResourceRepository.class);
+  private final EntityManager em = mock(EntityManager.class);
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private final ResourceLookupCache cache = new ResourceLookupCache(
+      resourceRepository, em, new ConcurrentMapCacheManager(CacheConfig.RESOURCES),
+      mock(PlatformTransactionManager.class), meterRegistry);
+
+  @Test
+  public void testGet_cached() {
+    when(resourceRepository.findByTenantIdAndResourceId("t-1", "r-1"))
+        .thenReturn(Optional.of(resource("linux")));
+
+    final ResourceDTO first = cache.get("t-1", "r-1");
+    final ResourceDTO second = cache.get("t-1", "r-1");
+
+    assertThat(first.getLabels()).containsEntry("os", "linux");
+    assertThat(first.isAssociatedWithEnvoy()).isTrue();
+    assertThat(second).isEqualTo(first);
+    verify(resourceRepository).findByTenantIdAndResourceId("t-1", "r-1");
+    verifyNoMoreInteractions(resourceRepository);
+  }
+
+  @Test
+  public void testGet_evicted() {
+    when(resourceRepository.findByTenantIdAndResourceId("t-1", "r-1"))
+        .thenReturn(Optional.of(resource("linux")))
+        .thenReturn(Optional.of(resource("windows")));
+
+    assertThat(cache.get("t-1", "r-1").getLabels()).containsEntry("os", "linux");
+    cache.evict("t-1", "r-1");
+    assertThat(cache.get("t-1", "r-1").getLabels()).containsEntry("os", "windows");
+
+    verify(resourceRepository, times(2)).findByTenantIdAndResourceId("t-1", "r-1");
+    assertThat(meterRegistry.get("resourceLookupCacheEvictions").counter().count())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void testGet_missingNotCached() {
+    when(resourceRepository.findByTenantIdAndResourceId("t-1", "r-1"))
+        .thenReturn(Optional.empty());
+
+    assertThat(cache.get("t-1", "r-1")).isNull();
+    assertThat(cache.get("t-1", "r-1")).isNull();
+
+    verify(resourceRepository, times(2)).findByTenantIdAndResourceId("t-1", "r-1");
+  }
+
+  @Test
+  public void testGetAll_servedFromCache() {
+    when(resourceRepository.findByTenantIdAndResourceId("t-1", "r-1"))
+        .thenReturn(Optional.of(resource("linux")));
+    cache.get("t-1", "r-1");
+
+    final Map<String, ResourceDTO> found =
+        cache.getAll("t-1", Collections.singletonList("r-1"));
+
+    assertThat(found).containsOnlyKeys("r-1");
+    assertThat(found.get("r-1").getLabels()).containsEntry("os", "linux");
+    verifyZeroInteractions(em);
+  }
+
+  private static Resource resource(String os) {
+    return new Resource()
+        .setTenantId("t-1")
+        .setResourceId("r-1")
+        .setAssociatedWithEnvoy(true)
+        .setLabels(Collections.singletonMap("os", os));
+  }
+}
@@ -18,18 +18,36 @@ package com.rackspace.salus.acm.web.controller;
 
 import static com.rackspace.salus.test.JsonTestUtils.readContent;
 import static java.util.Collections.singletonMap;
+import static org.hamcrest.CoreMatchers.is;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import com.rackspace.salus.acm.config.AgentCatalogProperties;
 import com.rackspace.salus.acm.services.AgentInstallService;
+import com.rackspace.salus.acm.services.InvalidCursorException;
 import com.rackspace.salus.acm.web.model.AgentInstallCreate;
+import com.rackspace.salus.acm.web.model.AgentInstallDTO;
+import com.rackspace.salus.acm.web.model.AgentInstallJobDTO;
+import com.rackspace.salus.acm.web.model.AgentInstallJobStatus;
+import com.rackspace.salus.acm.web.model.BoundAgentInstallDTO;
+import com.rackspace.salus.acm.web.model.BoundAgentInstallLookup;
+import com.rackspace.salus.acm.web.model.BoundAgentInstallLookupRequest;
+import com.rackspace.salus.acm.web.model.CursorPage;
 import com.rackspace.salus.telemetry.entities.AgentInstall;
 import com.rackspace.salus.telemetry.entities.AgentRelease;
 import com.rackspace.salus.telemetry.entities.BoundAgentInstall;
@@ -39,24 +57,34 @@ import com.rackspace.salus.telemetry.repositories.AgentInstallRepository;
 import com.rackspace.salus.telemetry.repositories.BoundAgentInstallRepository;
 import com.rackspace.salus.telemetry.repositories.TenantMetadataRepository;
 import com.rackspace.salus.test.JsonTestUtils;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
 import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.skyscreamer.jsonassert.JSONAssert;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 @RunWith(SpringRunner.class)
 @WebMvcTest(controllers = AgentInstallController.class)
+@Import({AgentCatalogProperties.class})
 public class AgentInstallControllerTest {
 
   @Autowired
@@ -83,8 +111,8 @@ public class AgentInstallControllerTest {
     final AgentRelease release = populateRelease();
     final AgentInstall install = populateInstall(release);
 
-    when(boundAgentInstallRepository.findAllByTenantResourceAgentType(any(), any(), any()))
-        .thenReturn(Collections.singletonList(
+    when(agentInstallService.getBindingForResourceAndAgentType(any(), any(), any()))
+        .thenReturn(new BoundAgentInstallDTO(
             new BoundAgentInstall()
                 .setResourceId("r-1")
                 .setAgentInstall(install)
@@ -99,7 +127,7 @@ public class AgentInstallControllerTest {
             // id field should not be returned
             readContent("AgentInstallControllerTest/single_install_binding.json"), true));
 
-    verify(boundAgentInstallRepository).findAllByTenantResourceAgentType(
+    verify(agentInstallService).getBindingForResourceAndAgentType(
         "t-1", "r-1", AgentType.TELEGRAF
     );
 
@@ -107,14 +135,160 @@ public class AgentInstallControllerTest {
         boundAgentInstallRepository, agentInstallRepository, agentInstallService);
   }
 
+  @Test
+  public void testGetBindings() throws Exception {
+    final AgentInstall install = populateInstall(populateRelease());
+
+    doAnswer(invocation -> {
+      final Consumer<BoundAgentInstallDTO> consumer = invocation.getArgument(1);
+      consumer.accept(new BoundAgentInstallDTO(
+          new BoundAgentInstall()
+              .setResourceId("r-1")
+              .setAgentInstall(install)
+      ));
+      return null;
+    }).when(agentInstallService).findBindings(any(), any());
+
+    final MvcResult result = mockMvc.perform(
+        post("/api/admin/bound-agent-installs")
+            .accept(MediaType.APPLICATION_JSON)
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(readContent("AgentInstallControllerTest/bulk_install_bindings_request.json")))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(content().json(
+            readContent("AgentInstallControllerTest/bulk_install_bindings.json"), true));
+
+    verify(agentInstallService).findBindings(eq(List.of(
+        new BoundAgentInstallLookup().setTenantId("t-1").setResourceId("r-1")
+            .setAgentType(AgentType.TELEGRAF),
+        new BoundAgentInstallLookup().setTenantId("t-1").setResourceId("r-2")
+            .setAgentType(AgentType.TELEGRAF)
+    )), any());
+
+    verifyNoMoreInteractions(
+        boundAgentInstallRepository, agentInstallRepository, agentInstallService);
+  }
+
+  @Test
+  public void testGetBindings_invalid() throws Exception {
+    mockMvc.perform(
+        post("/api/admin/bound-agent-installs")
+            .accept(MediaType.APPLICATION_JSON)
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("{\"bindings\": [{\"tenantId\": \"t-1\"}]}"))
+        .andExpect(status().isBadRequest());
+
+    verifyNoMoreInteractions(
+        boundAgentInstallRepository, agentInstallRepository, agentInstallService);
+  }
+
+  @Test
+  public void testGetBindings_tooMany() throws Exception {
+    final String lookup =
+        "{\"tenantId\": \"t-1\", \"resourceId\": \"r-1\", \"agentType\": \"TELEGRAF\"}";
+
+    mockMvc.perform(
+        post("/api/admin/bound-agent-installs")
+            .accept(MediaType.APPLICATION_JSON)
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("{\"bindings\": [" + String.join(",",
+                Collections.nCopies(BoundAgentInstallLookupRequest.MAX_BINDINGS + 1, lookup))
+                + "]}"))
+        .andExpect(status().isBadRequest());
+
+    verifyNoMoreInteractions(
+        boundAgentInstallRepository, agentInstallRepository, agentInstallService);
+  }
+
+  @Test
+  public void testGetAgentInstallsByCursor() throws Exception {
+    final AgentInstall install = populateInstall(populateRelease());
+
+    when(agentInstallService.getAgentInstallsAfter(any(), any(), anyInt()))
+        .thenReturn(new CursorPage<AgentInstallDTO>()
+            .setContent(Collections.singletonList(new AgentInstallDTO(install)))
+            .setNext("next-cursor"));
+
+    mockMvc.perform(
+        get("/api/tenant/{tenantId}/agent-installs", "t-1")
+            .param("cursor", "this-cursor")
+            .param("size", "1")
+            .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.content[0].id", is(install.getId().toString())))
+        .andExpect(jsonPath("$.next", is("next-cursor")));
+
+    verify(agentInstallService).getAgentInstallsAfter("t-1", "this-cursor", 1);
+
+    verifyNoMoreInteractions(
+        boundAgentInstallRepository, agentInstallRepository, agentInstallService);
+  }
+
+  @Test
+  public void testGetAgentInstallsByCursor_invalid() throws Exception {
+    when(agentInstallService.getAgentInstallsAfter(any(), any(), anyInt()))
+        .thenThrow(new InvalidCursorException("The given cursor is not valid", null));
+
+    mockMvc.perform(
+        get("/api/tenant/{tenantId}/agent-installs", "t-1")
+            .param("cursor", "not-a-cursor")
+            .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  public void testExportAgentInstalls() throws Exception {
+    final AgentInstall install = populateInstall(populateRelease());
+
+    doAnswer(invocation -> {
+      final Consumer<AgentInstallDTO> installConsumer = invocation.getArgument(1);
+      final Consumer<BoundAgentInstallDTO> bindingConsumer = invocation.getArgument(2);
+      final AgentInstallDTO installDTO = new AgentInstallDTO(install);
+      installConsumer.accept(installDTO);
+      bindingConsumer.accept(new BoundAgentInstallDTO().setResourceId("r-1").setAgentInstall(installDTO));
+      bindingConsumer.accept(new BoundAgentInstallDTO().setResourceId("r-2").setAgentInstall(installDTO));
+      return null;
+    }).when(agentInstallService).exportInstalls(any(), any(), any());
+
+    final MvcResult result = mockMvc.perform(
+        get("/api/admin/tenant/{tenantId}/agent-installs/export", "t-1"))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+    // the export alone has its own async timeout
+    assertThat(result.getRequest().getAsyncContext().getTimeout())
+        .isEqualTo(Duration.ofHours(1).toMillis());
+
+    final String body = mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(content().contentType("application/x-ndjson"))
+        .andReturn().getResponse().getContentAsString();
+
+    final String[] lines = body.split("\n");
+    assertThat(lines).hasSize(3);
+    JSONAssert.assertEquals(
+        readContent("AgentInstallControllerTest/agent_install_response.json"), lines[0], false);
+    JSONAssert.assertEquals("{\"resourceId\": \"r-1\", \"agentInstall\": {\"tenantId\": \"t-1\"}}",
+        lines[1], false);
+    JSONAssert.assertEquals("{\"resourceId\": \"r-2\"}", lines[2], false);
+
+    verify(agentInstallService).exportInstalls(eq("t-1"), any(), any());
+
+    verifyNoMoreInteractions(
+        boundAgentInstallRepository, agentInstallRepository, agentInstallService);
+  }
+
   @Test
   public void testGetAgentInstalls() throws Exception {
     final AgentRelease release = populateRelease();
     final AgentInstall install = populateInstall(release);
 
-    when(agentInstallRepository.findAllByTenantId(any(), any()))
+    when(agentInstallService.getAgentInstalls(any(), any()))
         .thenReturn(
-            pageOfSingleton(install)
+            pageOfSingleton(new AgentInstallDTO(install))
         );
 
     mockMvc.perform(get(
@@ -126,7 +300,7 @@ public class AgentInstallControllerTest {
             // id field should not be returned
             readContent("AgentInstallControllerTest/agent_install_response_paged.json"), true));
 
-    verify(agentInstallRepository).findAllByTenantId("t-1", PageRequest.of(0, 1));
+    verify(agentInstallService).getAgentInstalls("t-1", PageRequest.of(0, 1));
 
     verifyNoMoreInteractions(
         boundAgentInstallRepository, agentInstallRepository, agentInstallService);
@@ -161,6 +335,90 @@ public class AgentInstallControllerTest {
         boundAgentInstallRepository, agentInstallRepository, agentInstallService);
   }
 
+  @Test
+  public void testCreate_resourceManagementUnavailable() throws Exception {
+    when(agentInstallService.install(any(), any()))
+        .thenThrow(CallNotPermittedException.createCallNotPermittedException(
+            CircuitBreaker.ofDefaults("resourceManagement")));
+
+    mockMvc.perform(
+        post("/api/tenant/{tenantId}/agent-installs", "t-1")
+            .accept(MediaType.APPLICATION_JSON)
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(
+                JsonTestUtils.readContent("AgentInstallControllerTest/agent_install_create.json")))
+        .andExpect(status().isServiceUnavailable())
+        .andExpect(jsonPath("$.message", is("Resource management is unavailable")));
+  }
+
+  @Test
+  public void testCreateAsync() throws Exception {
+    final AgentRelease release = populateRelease();
+    final UUID jobId = UUID.fromString("00000000-0000-0000-0002-000000000001");
+    final UUID agentInstallId = UUID.fromString("00000000-0000-0000-0001-000000000001");
+
+    when(agentInstallService.installAsync(any(), any()))
+        .thenReturn(new AgentInstallJobDTO()
+            .setId(jobId)
+            .setAgentInstallId(agentInstallId)
+            .setStatus(AgentInstallJobStatus.PENDING));
+
+    mockMvc.perform(
+        post("/api/tenant/{tenantId}/agent-installs", "t-1")
+            .param("async", "true")
+            .accept(MediaType.APPLICATION_JSON)
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(
+                JsonTestUtils.readContent("AgentInstallControllerTest/agent_install_create.json")))
+        .andExpect(status().isAccepted())
+        .andExpect(header().string("Location",
+            "http://localhost/api/tenant/t-1/agent-install-jobs/" + jobId))
+        .andExpect(jsonPath("$.id", is(jobId.toString())))
+        .andExpect(jsonPath("$.agentInstallId", is(agentInstallId.toString())))
+        .andExpect(jsonPath("$.status", is("PENDING")));
+
+    verify(agentInstallService).installAsync("t-1", new AgentInstallCreate()
+        .setAgentReleaseId(release.getId())
+        .setLabelSelector(Collections.singletonMap("os", "linux"))
+        .setLabelSelectorMethod(LabelSelectorMethod.AND)
+    );
+
+    verifyNoMoreInteractions(
+        boundAgentInstallRepository, agentInstallRepository, agentInstallService);
+  }
+
+  @Test
+  public void testGetInstallJob() throws Exception {
+    final UUID jobId = UUID.randomUUID();
+
+    when(agentInstallService.getInstallJob(any(), any()))
+        .thenReturn(Optional.of(new AgentInstallJobDTO()
+            .setId(jobId)
+            .setAgentInstallId(UUID.randomUUID())
+            .setStatus(AgentInstallJobStatus.RUNNING)
+            .setResourcesBound(1000)));
+
+    mockMvc.perform(
+        get("/api/tenant/{tenantId}/agent-install-jobs/{jobId}", "t-1", jobId)
+            .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.status", is("RUNNING")))
+        .andExpect(jsonPath("$.resourcesBound", is(1000)));
+
+    verify(agentInstallService).getInstallJob("t-1", jobId);
+  }
+
+  @Test
+  public void testGetInstallJob_notFound() throws Exception {
+    when(agentInstallService.getInstallJob(any(), any()))
+        .thenReturn(Optional.empty());
+
+    mockMvc.perform(
+        get("/api/tenant/{tenantId}/agent-install-jobs/{jobId}", "t-1", UUID.randomUUID())
+            .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isNotFound());
+  }
+
   @Test
   public void testCreateWithOr() throws Exception {
     final AgentRelease release = populateRelease();
@@ -20,7 +20,6 @@ import static com.rackspace.salus.test.JsonTestUtils.readContent;
 import static java.util.Collections.singletonMap;
 import static org.hamcrest.CoreMatchers.is;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -46,7 +45,6 @@ import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
 import java.util.UUID;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Test;
@@ -87,8 +85,8 @@ public class AgentReleaseControllerTest {
     String tenantId = RandomStringUtils.randomAlphabetic( 8 );
     final AgentRelease release = populateRelease("1.11.0");
 
-    when(agentReleaseRepository.findAll(any()))
-        .thenReturn(pageOfSingleton(release));
+    when(agentReleaseService.getAgentReleases(any()))
+        .thenReturn(pageOfSingleton(new AgentReleaseDTO(release)));
     when(tenantMetadataRepository.existsByTenantId(tenantId))
         .thenReturn(true);
 
@@ -107,8 +105,8 @@ public class AgentReleaseControllerTest {
     String tenantId = RandomStringUtils.randomAlphabetic( 8 );
     final AgentRelease release = populateRelease("1.11.0");
 
-    when(agentReleaseRepository.findAll(any()))
-        .thenReturn(pageOfSingleton(release));
+    when(agentReleaseService.getAgentReleases(any()))
+        .thenReturn(pageOfSingleton(new AgentReleaseDTO(release)));
     when(tenantMetadataRepository.existsByTenantId(tenantId))
         .thenReturn(false);
 
@@ -127,9 +125,9 @@ public class AgentReleaseControllerTest {
   public void testGetAgentReleasesForTenant_allTypes() throws Exception {
     final AgentRelease release = populateRelease("1.11.0");
 
-    when(agentReleaseRepository.findAll(any()))
+    when(agentReleaseService.getAgentReleases(any()))
         .thenReturn(
-            pageOfSingleton(release)
+            pageOfSingleton(new AgentReleaseDTO(release))
         );
 
     mockMvc.perform(get(
@@ -141,7 +139,7 @@ public class AgentReleaseControllerTest {
             // id field should not be returned
             readContent("AgentInstallControllerTest/agent_release_response_paged.json"), true));
 
-    verify(agentReleaseRepository).findAll(PageRequest.of(0, 1));
+    verify(agentReleaseService).getAgentReleases(PageRequest.of(0, 1));
 
     verifyNoMoreInteractions(
         agentReleaseRepository, agentReleaseService);
@@ -149,9 +147,11 @@ public class AgentReleaseControllerTest {
 
   @Test
   public void testGetAgentReleasesForTenant_specificType_emptyPage() throws Exception {
-    when(agentReleaseRepository.findAllByType(any()))
+    when(agentReleaseService.getAgentReleasesForType(any(), any()))
         .thenReturn(
-            List.of()
+            new PageImpl<>(
+                List.of(),
+                PageRequest.of(0, 1), 0)
         );
 
     PagedContent<AgentReleaseDTO> expected = new PagedContent<AgentReleaseDTO>()
@@ -169,7 +169,7 @@ public class AgentReleaseControllerTest {
         .andExpect(status().isOk())
         .andExpect(content().json(objectMapper.writeValueAsString(expected), true));
 
-    verify(agentReleaseRepository).findAllByType(AgentType.TELEGRAF);
+    verify(agentReleaseService).getAgentReleasesForType(AgentType.TELEGRAF, PageRequest.of(0, 1));
 
     verifyNoMoreInteractions(
         agentReleaseRepository, agentReleaseService);
@@ -177,13 +177,15 @@ public class AgentReleaseControllerTest {
 
   @Test
   public void testGetAgentReleasesForTenant_specificType_partialOnePage() throws Exception {
-    when(agentReleaseRepository.findAllByType(any()))
+    when(agentReleaseService.getAgentReleasesForType(any(), any()))
         .thenReturn(
-            List.of(
-                populateRelease("1.3.0"),
-                populateRelease("2.1.0"),
-                populateRelease("2.0.0")
-            )
+            new PageImpl<>(
+                List.of(
+                    populateReleaseDTO("2.1.0"),
+                    populateReleaseDTO("2.0.0"),
+                    populateReleaseDTO("1.3.0")
+                ),
+                PageRequest.of(0, 4), 3)
         );
 
     PagedContent<AgentReleaseDTO> expected = new PagedContent<AgentReleaseDTO>()
@@ -206,7 +208,7 @@ public class AgentReleaseControllerTest {
         .andExpect(status().isOk())
         .andExpect(content().json(objectMapper.writeValueAsString(expected), true));
 
-    verify(agentReleaseRepository).findAllByType(AgentType.TELEGRAF);
+    verify(agentReleaseService).getAgentReleasesForType(AgentType.TELEGRAF, PageRequest.of(0, 4));
 
     verifyNoMoreInteractions(
         agentReleaseRepository, agentReleaseService);
@@ -214,14 +216,16 @@ public class AgentReleaseControllerTest {
 
   @Test
   public void testGetAgentReleasesForTenant_specificType_exactOnePage() throws Exception {
-    when(agentReleaseRepository.findAllByType(any()))
+    when(agentReleaseService.getAgentReleasesForType(any(), any()))
         .thenReturn(
-            List.of(
-                populateRelease("1.3.0"),
-                populateRelease("2.1.0"),
-                populateRelease("3.4.0"),
-                populateRelease("2.0.0")
-            )
+            new PageImpl<>(
+                List.of(
+                    populateReleaseDTO("3.4.0"),
+                    populateReleaseDTO("2.1.0"),
+                    populateReleaseDTO("2.0.0"),
+                    populateReleaseDTO("1.3.0")
+                ),
+                PageRequest.of(0, 4), 4)
         );
 
     PagedContent<AgentReleaseDTO> expected = new PagedContent<AgentReleaseDTO>()
@@ -245,7 +249,7 @@ public class AgentReleaseControllerTest {
         .andExpect(status().isOk())
         .andExpect(content().json(objectMapper.writeValueAsString(expected), true));
 
-    verify(agentReleaseRepository).findAllByType(AgentType.TELEGRAF);
+    verify(agentReleaseService).getAgentReleasesForType(AgentType.TELEGRAF, PageRequest.of(0, 4));
 
     verifyNoMoreInteractions(
         agentReleaseRepository, agentReleaseService);
@@ -253,14 +257,11 @@ public class AgentReleaseControllerTest {
 
   @Test
   public void testGetAgentReleasesForTenant_specificType_beyondLastPage() throws Exception {
-    when(agentReleaseRepository.findAllByType(any()))
+    when(agentReleaseService.getAgentReleasesForType(any(), any()))
         .thenReturn(
-            List.of(
-                populateRelease("1.3.0"),
-                populateRelease("2.1.0"),
-                populateRelease("3.4.0"),
-                populateRelease("2.0.0")
-            )
+            new PageImpl<>(
+                List.of(),
+                PageRequest.of(500, 3), 4)
         );
 
     PagedContent<AgentReleaseDTO> expected = new PagedContent<AgentReleaseDTO>()
@@ -279,7 +280,7 @@ public class AgentReleaseControllerTest {
         .andExpect(status().isOk())
         .andExpect(content().json(objectMapper.writeValueAsString(expected), true));
 
-    verify(agentReleaseRepository).findAllByType(AgentType.TELEGRAF);
+    verify(agentReleaseService).getAgentReleasesForType(AgentType.TELEGRAF, PageRequest.of(500, 3));
 
     verifyNoMoreInteractions(
         agentReleaseRepository, agentReleaseService);
@@ -287,14 +288,20 @@ public class AgentReleaseControllerTest {
 
   @Test
   public void testGetAgentReleasesForTenant_specificType_twoPages() throws Exception {
-    when(agentReleaseRepository.findAllByType(any()))
+    when(agentReleaseService.getAgentReleasesForType(any(), any()))
         .thenReturn(
-            List.of(
-                populateRelease("1.3.0"),
-                populateRelease("2.1.0"),
-                populateRelease("3.4.0"),
-                populateRelease("2.0.0")
-            )
+            new PageImpl<>(
+                List.of(
+                    populateReleaseDTO("3.4.0"),
+                    populateReleaseDTO("2.1.0"),
+                    populateReleaseDTO("2.0.0")
+                ),
+                PageRequest.of(0, 3), 4),
+            new PageImpl<>(
+                List.of(
+                    populateReleaseDTO("1.3.0")
+                ),
+                PageRequest.of(1, 3), 4)
         );
 
     PagedContent<AgentReleaseDTO> expectedPage0 = new PagedContent<AgentReleaseDTO>()
@@ -335,7 +342,8 @@ public class AgentReleaseControllerTest {
         .andExpect(status().isOk())
         .andExpect(content().json(objectMapper.writeValueAsString(expectedPage1), true));
 
-    verify(agentReleaseRepository, times(2)).findAllByType(AgentType.TELEGRAF);
+    verify(agentReleaseService).getAgentReleasesForType(AgentType.TELEGRAF, PageRequest.of(0, 3));
+    verify(agentReleaseService).getAgentReleasesForType(AgentType.TELEGRAF, PageRequest.of(1, 3));
 
     verifyNoMoreInteractions(
         agentReleaseRepository, agentReleaseService);
@@ -346,10 +354,8 @@ public class AgentReleaseControllerTest {
 
   @Test
   public void testGetAgentReleaseForTenant() throws Exception {
-    final AgentRelease release = populateRelease("1.11.0");
-
-    when(agentReleaseRepository.findById(any()))
-        .thenReturn(Optional.of(release));
+    when(agentReleaseService.getAgentRelease(any()))
+        .thenReturn(populateReleaseDTO("1.11.0"));
 
     mockMvc.perform(get(
         "/api/tenant/{tenantId}/agent-releases/{agentReleaseId}",
@@ -360,7 +366,7 @@ public class AgentReleaseControllerTest {
             // id field should not be returned
             readContent("AgentInstallControllerTest/agent_release_response.json"), true));
 
-    verify(agentReleaseRepository).findById(UUID.fromString("00000000-0000-0000-0001-000000000000"));
+    verify(agentReleaseService).getAgentRelease(UUID.fromString("00000000-0000-0000-0001-000000000000"));
 
     verifyNoMoreInteractions(
         agentReleaseRepository, agentReleaseService);
@@ -370,9 +376,9 @@ public class AgentReleaseControllerTest {
   public void testGetAgentReleases() throws Exception {
     final AgentRelease release = populateRelease("1.11.0");
 
-    when(agentReleaseRepository.findAll(any()))
+    when(agentReleaseService.getAgentReleases(any()))
         .thenReturn(
-            pageOfSingleton(release)
+            pageOfSingleton(new AgentReleaseDTO(release))
         );
 
     mockMvc.perform(get(
@@ -383,7 +389,7 @@ public class AgentReleaseControllerTest {
             // id field should not be returned
             readContent("AgentInstallControllerTest/agent_release_response_paged.json"), true));
 
-    verify(agentReleaseRepository).findAll(PageRequest.of(0, 1));
+    verify(agentReleaseService).getAgentReleases(PageRequest.of(0, 1));
 
     verifyNoMoreInteractions(
         agentReleaseRepository, agentReleaseService);
@@ -391,10 +397,8 @@ public class AgentReleaseControllerTest {
 
   @Test
   public void testGetAgentRelease() throws Exception {
-    final AgentRelease release = populateRelease("1.11.0");
-
-    when(agentReleaseRepository.findById(any()))
-        .thenReturn(Optional.of(release));
+    when(agentReleaseService.getAgentRelease(any()))
+        .thenReturn(populateReleaseDTO("1.11.0"));
 
     mockMvc.perform(get(
         "/api/admin/agent-releases/{agentReleaseId}",
@@ -405,7 +409,7 @@ public class AgentReleaseControllerTest {
             // id field should not be returned
             readContent("AgentInstallControllerTest/agent_release_response.json"), true));
 
-    verify(agentReleaseRepository).findById(UUID.fromString("00000000-0000-0000-0001-000000000000"));
+    verify(agentReleaseService).getAgentRelease(UUID.fromString("00000000-0000-0000-0001-000000000000"));
 
     verifyNoMoreInteractions(
         agentReleaseRepository, agentReleaseService);